@@ -0,0 +1,743 @@
+package tunecomposer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javafx.collections.ObservableList;
+import javafx.scene.Node;
+import javafx.scene.layout.Pane;
+import tunecomposer.actionclasses.Action;
+
+/**
+ * A write-ahead journal of the changes made to the composition since it was
+ * last saved, so that they can be recovered if the program stops without
+ * saving them.
+ *
+ * Each undo entry is recorded once it has been pushed, undone or redone. A
+ * record lists the top-level SoundObjects the entry took away, as they were
+ * last recorded, and the ones it put in their place, each as the bytes of a
+ * SoundObjectSnapshot. SoundObjects do not keep any identity between runs of
+ * the program, so on replay a SoundObject to take away is found by its
+ * contents. Only the SoundObjects an entry touched are looked at, so
+ * recording and replaying take time in proportion to the edits.
+ *
+ * Records are gathered in memory and handed to a background thread that
+ * appends them to the file at most once per pulse. The file starts with
+ * MAGIC, VERSION and the last-modified time of the document it belongs to,
+ * so that a journal is only replayed onto the document it was written
+ * against. A record that was only partly written when the program stopped
+ * is dropped.
+ */
+public class ActionJournal {
+
+    /**
+     * First int of every journal file, and the version of its layout.
+     */
+    private static final int MAGIC = 0x54434A4C;
+    private static final int VERSION = 1;
+
+    /**
+     * Journal of a composition that has not been saved to a file yet.
+     */
+    private static final Path UNTITLED_JOURNAL = Paths.get(
+            System.getProperty("user.home"), ".tunecomposer", "untitled.journal");
+
+    /**
+     * Added to the path of a document to get the path of its journal.
+     */
+    private static final String JOURNAL_SUFFIX = ".journal";
+
+    /**
+     * Background thread the journal file is written on.
+     */
+    private static final ExecutorService WRITER = Executors.newSingleThreadExecutor((r) -> {
+        Thread thread = new Thread(r, "Journal writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Pane holding the composition, and the actionManager given to the
+     * SoundObjects rebuilt on replay.
+     */
+    private final Pane soundObjPane;
+    private final ActionManager actionManager;
+
+    /**
+     * Journal file being written, or null while nothing is recorded.
+     */
+    private Path path;
+
+    /**
+     * Records not yet handed to the WRITER.
+     */
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+
+    /**
+     * Hands the pending records to the WRITER at most once per pulse.
+     * Created on the first record, once the FX toolkit is running.
+     */
+    private PulseCoalescer flushCoalescer;
+
+    /**
+     * Open journal file. Only used on the WRITER thread.
+     */
+    private FileChannel channel;
+
+    /**
+     * Number of bytes at the end of the last journal read that did not make
+     * up a whole record.
+     */
+    private long trailingBytes;
+
+    /**
+     * Number of records of the last journal resumed that could not be
+     * replayed, and were dropped from it.
+     */
+    private int droppedCount;
+
+    /**
+     * One record read back from a journal file: the snapshots of the
+     * top-level SoundObjects taken away and of those put in their place.
+     */
+    private static class Record {
+        private final byte[][] removed;
+        private final byte[][] added;
+        private final long end;
+
+        /**
+         * Constructs a record from its snapshots.
+         *
+         * @param removed snapshots of the SoundObjects taken away
+         * @param added snapshots of the SoundObjects put in their place
+         * @param end offset in the journal file just past the record
+         */
+        private Record(byte[][] removed, byte[][] added, long end) {
+            this.removed = removed;
+            this.added = added;
+            this.end = end;
+        }
+    }
+
+    /**
+     * Constructs a journal that records nothing until start() or resume().
+     *
+     * @param soundObjPane pane holding the composition
+     * @param actionManager actionManager for the composition
+     */
+    public ActionJournal(Pane soundObjPane, ActionManager actionManager) {
+        this.soundObjPane = soundObjPane;
+        this.actionManager = actionManager;
+    }
+
+    /**
+     * Starts a new, empty journal for the given document, taking the
+     * SoundObjects now on the pane as what the document holds. Any other
+     * journal that was being written is deleted.
+     *
+     * @param filePath path of the document, or null if it is not saved yet
+     */
+    public void start(String filePath) {
+        markPane();
+        pending.reset();
+        Path previous = path;
+        Path journalPath = getJournalPath(filePath);
+        long lastModified = getLastModified(filePath);
+        path = journalPath;
+        WRITER.execute(() -> {
+            closeChannel();
+            if ((previous != null) && !previous.equals(journalPath)) {
+                delete(previous);
+            }
+            create(journalPath, lastModified);
+        });
+    }
+
+    /**
+     * Replays the journal of the given document onto the SoundObjects now on
+     * the pane, if it was written against the document as it is on disk and
+     * holds at least one record, then carries on recording in it. Otherwise
+     * starts a new journal for the document.
+     *
+     * Replay stops at the first record that does not fit the SoundObjects on
+     * the pane, leaving the composition as it was after the record before.
+     * That record and the ones after it are dropped from the journal, and
+     * counted by getDroppedCount().
+     *
+     * @param filePath path of the document, or null if it is not saved yet
+     * @return number of changes recovered
+     */
+    public int resume(String filePath) {
+        Path journalPath = getJournalPath(filePath);
+        long lastModified = getLastModified(filePath);
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(journalPath);
+            if ((filePath != null) &&
+                    (Files.getLastModifiedTime(journalPath).toMillis() < lastModified)) {
+                bytes = null;
+            }
+        }
+        catch (IOException ex) {
+            bytes = null;
+        }
+
+        droppedCount = 0;
+        ArrayList<Record> records = (bytes == null) ? null : readRecords(bytes, lastModified);
+        if ((records == null) || records.isEmpty()) {
+            start(filePath);
+            return 0;
+        }
+
+        markPane();
+        int replayed = replay(records);
+        droppedCount = records.size() - replayed;
+        if (replayed == 0) {
+            start(filePath);
+            return 0;
+        }
+        pending.reset();
+        Path previous = path;
+        path = journalPath;
+        long validLength = records.get(replayed - 1).end;
+        WRITER.execute(() -> {
+            closeChannel();
+            if ((previous != null) && !previous.equals(journalPath)) {
+                delete(previous);
+            }
+            reopen(journalPath, validLength);
+        });
+        return replayed;
+    }
+
+    /**
+     * Returns the number of records the last call to resume() could not
+     * replay.
+     *
+     * @return number of changes dropped from the journal
+     */
+    public int getDroppedCount() {
+        return droppedCount;
+    }
+
+    /**
+     * Stops recording and deletes the journal, for when the changes in it are
+     * saved or thrown away. Waits for the file to be deleted if asked to,
+     * such as before the program exits.
+     *
+     * @param wait true to return only once the journal is deleted
+     */
+    public void discard(boolean wait) {
+        pending.reset();
+        Path journalPath = path;
+        path = null;
+        Future<?> done = WRITER.submit(() -> {
+            closeChannel();
+            if (journalPath != null) {
+                delete(journalPath);
+            }
+        });
+        if (wait) {
+            try {
+                done.get();
+            }
+            catch (InterruptedException | ExecutionException ex) {
+                System.err.println("Unable to delete journal: " + ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Records what the given undo entry did, after it has been done, undone
+     * or redone. Must be called before the entry is dehydrated.
+     *
+     * @param actions the entry
+     */
+    public void record(ArrayList<Action> actions) {
+        if (path == null) {
+            return;
+        }
+        ArrayList<SoundObject> touched = new ArrayList<>();
+        for (Action a : actions) {
+            a.collectTouched(touched);
+        }
+        if (touched.isEmpty()) {
+            return;
+        }
+
+        // Every top-level SoundObject that held a touched note when last
+        // recorded, or holds one now, along with the notes they hold.
+        LinkedHashSet<NoteBar> seen = new LinkedHashSet<>();
+        for (SoundObject sObj : touched) {
+            collectNotes(sObj, seen);
+        }
+        ArrayDeque<NoteBar> toVisit = new ArrayDeque<>(seen);
+        LinkedHashSet<SoundObject> before = new LinkedHashSet<>();
+        LinkedHashSet<SoundObject> after = new LinkedHashSet<>();
+        ObservableList<Node> nodes = SoundObjectViewport.getSoundObjectNodes(soundObjPane);
+        while (!toVisit.isEmpty()) {
+            NoteBar note = toVisit.poll();
+            ArrayList<NoteBar> reached = new ArrayList<>();
+            if ((note.journalTop != null) && before.add(note.journalTop)) {
+                collectNotes(note.journalTop, reached);
+            }
+            if (nodes.contains(note.visualRectangle)) {
+                SoundObject top = (note.getTopGesture() == null) ? note : note.getTopGesture();
+                if (after.add(top)) {
+                    collectNotes(top, reached);
+                }
+            }
+            for (NoteBar other : reached) {
+                if (seen.add(other)) {
+                    toVisit.add(other);
+                }
+            }
+        }
+
+        ArrayList<byte[]> removed = new ArrayList<>();
+        ArrayList<byte[]> added = new ArrayList<>();
+        ArrayList<SoundObject> unchanged = new ArrayList<>();
+        for (SoundObject top : before) {
+            byte[] old = SoundObjectSnapshot.ofJournaled(Collections.singletonList(top)).toBytes();
+            if (after.contains(top) && Arrays.equals(old, encode(top))) {
+                unchanged.add(top);
+            }
+            else {
+                removed.add(old);
+            }
+        }
+        after.removeAll(unchanged);
+        before.removeAll(unchanged);
+        for (SoundObject top : after) {
+            added.add(encode(top));
+        }
+        if (removed.isEmpty() && added.isEmpty()) {
+            return;
+        }
+
+        for (SoundObject top : before) {
+            ArrayList<NoteBar> notes = new ArrayList<>();
+            collectNotes(top, notes);
+            notes.forEach((note) -> {
+                note.journalTop = null;
+            });
+        }
+        after.forEach(ActionJournal::mark);
+
+        DataOutputStream out = new DataOutputStream(pending);
+        try {
+            writeSnapshots(out, removed);
+            writeSnapshots(out, added);
+        }
+        catch (IOException ex) {
+            System.err.println("Unable to record journal entry: " + ex.getMessage());
+        }
+        if (flushCoalescer == null) {
+            flushCoalescer = new PulseCoalescer(this::flush);
+        }
+        flushCoalescer.request();
+    }
+
+    /**
+     * Returns the journal file for the given document.
+     *
+     * @param filePath path of the document, or null if it is not saved yet
+     * @return path of its journal
+     */
+    public static Path getJournalPath(String filePath) {
+        if (filePath == null) {
+            return UNTITLED_JOURNAL;
+        }
+        return Paths.get(filePath + JOURNAL_SUFFIX);
+    }
+
+    /**
+     * Returns the last-modified time of the given document.
+     *
+     * @param filePath path of the document, or null
+     * @return last-modified time in milliseconds, or 0 if there is no file
+     */
+    private static long getLastModified(String filePath) {
+        return (filePath == null) ? 0 : new File(filePath).lastModified();
+    }
+
+    /**
+     * Takes every SoundObject now on the pane as recorded.
+     */
+    private void markPane() {
+        for (Node n : SoundObjectViewport.getSoundObjectNodes(soundObjPane)) {
+            SoundObject sObj = (SoundObject) n.getUserData();
+            if ((sObj != null) && (sObj.getTopGesture() == null)) {
+                mark(sObj);
+            }
+        }
+    }
+
+    /**
+     * Takes the given top-level SoundObject as recorded as it is now.
+     *
+     * @param top the top-level SoundObject
+     */
+    private static void mark(SoundObject top) {
+        ArrayList<NoteBar> notes = new ArrayList<>();
+        collectNotes(top, notes);
+        for (NoteBar note : notes) {
+            note.journalX = (int) note.visualRectangle.getX();
+            note.journalY = (int) note.visualRectangle.getY();
+            note.journalWidth = note.getDuration();
+            note.journalInstrument = note.getInstrument();
+            note.journalTop = top;
+        }
+    }
+
+    /**
+     * Adds the given SoundObject if it is a note, or every note inside it if
+     * it is a gesture, to the given collection.
+     *
+     * @param sObj the NoteBar or Gesture
+     * @param notes collection to add the notes to
+     */
+    private static void collectNotes(SoundObject sObj, Collection<NoteBar> notes) {
+        if (sObj instanceof Gesture) {
+            for (SoundObject inner : ((Gesture) sObj).containedSoundObjects) {
+                collectNotes(inner, notes);
+            }
+        }
+        else {
+            notes.add((NoteBar) sObj);
+        }
+    }
+
+    /**
+     * Returns the bytes of a snapshot of the given top-level SoundObject as
+     * it is now.
+     *
+     * @param top the top-level SoundObject
+     * @return the snapshot as bytes
+     */
+    private static byte[] encode(SoundObject top) {
+        return SoundObjectSnapshot.of(Collections.singletonList(top)).toBytes();
+    }
+
+    /**
+     * Returns the key a top-level SoundObject is found under on replay: the
+     * journaled x and y of its first note.
+     *
+     * @param top the top-level SoundObject
+     * @return its key
+     */
+    private static long keyOf(SoundObject top) {
+        SoundObject first = top;
+        while (first instanceof Gesture) {
+            first = ((Gesture) first).containedSoundObjects.get(0);
+        }
+        NoteBar note = (NoteBar) first;
+        return SoundObjectSnapshot.noteKey(note.journalX, note.journalY);
+    }
+
+    /**
+     * Writes a count and then each snapshot with its length.
+     *
+     * @param out stream to write to
+     * @param snapshots the snapshots as bytes
+     * @throws IOException if they cannot be written
+     */
+    private static void writeSnapshots(DataOutputStream out, ArrayList<byte[]> snapshots)
+            throws IOException {
+        out.writeInt(snapshots.size());
+        for (byte[] snapshot : snapshots) {
+            out.writeInt(snapshot.length);
+            out.write(snapshot);
+        }
+    }
+
+    /**
+     * Reads the records of a journal written against a document with the
+     * given last-modified time.
+     *
+     * @param bytes contents of the journal file
+     * @param lastModified last-modified time of the document
+     * @return the whole records, or null if the journal is not for the
+     *          document as it is
+     */
+    private ArrayList<Record> readRecords(byte[] bytes, long lastModified) {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        ArrayList<Record> records = new ArrayList<>();
+        int read = 0;
+        try {
+            if ((in.readInt() != MAGIC) || (in.readInt() != VERSION)
+                    || (in.readLong() != lastModified)) {
+                return null;
+            }
+            read = 2 * Integer.BYTES + Long.BYTES;
+            while (read < bytes.length) {
+                byte[][] removed = readSnapshots(in, bytes.length);
+                byte[][] added = readSnapshots(in, bytes.length);
+                read = bytes.length - in.available();
+                records.add(new Record(removed, added, read));
+            }
+        }
+        catch (EOFException ex) {
+            // the last record was cut short
+        }
+        catch (IOException ex) {
+            return null;
+        }
+        trailingBytes = bytes.length - read;
+        return records;
+    }
+
+    /**
+     * Reads a count and then each snapshot with its length.
+     *
+     * @param in stream to read from
+     * @param limit largest length that can be valid
+     * @return the snapshots as bytes
+     * @throws IOException if they cannot be read
+     */
+    private static byte[][] readSnapshots(DataInputStream in, int limit) throws IOException {
+        int count = in.readInt();
+        if ((count < 0) || (count > limit)) {
+            throw new EOFException();
+        }
+        byte[][] snapshots = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            int length = in.readInt();
+            if ((length < 0) || (length > limit)) {
+                throw new EOFException();
+            }
+            snapshots[i] = new byte[length];
+            in.readFully(snapshots[i]);
+        }
+        return snapshots;
+    }
+
+    /**
+     * Applies the given records to the SoundObjects on the pane, in order,
+     * until one names a SoundObject that is not on the pane or cannot be
+     * read. Each record is applied whole or not at all.
+     * Only the SoundObjects named by the records are built or looked at,
+     * besides one pass to index the pane.
+     *
+     * @param records records read by readRecords()
+     * @return number of records applied
+     */
+    private int replay(ArrayList<Record> records) {
+        HashMap<Long, ArrayList<SoundObject>> index = new HashMap<>();
+        for (Node n : SoundObjectViewport.getSoundObjectNodes(soundObjPane)) {
+            SoundObject sObj = (SoundObject) n.getUserData();
+            if ((sObj != null) && (sObj.getTopGesture() == null)) {
+                index.computeIfAbsent(keyOf(sObj), (key) -> new ArrayList<>()).add(sObj);
+            }
+        }
+
+        SoundObjectPaneController.deferSelectionUpdates();
+        int replayed = 0;
+        for (Record record : records) {
+            if (!apply(record, index)) {
+                System.err.println("Unable to replay the journal past change "
+                        + replayed + " of " + records.size());
+                break;
+            }
+            replayed++;
+        }
+        SoundObjectPaneController.resumeSelectionUpdates();
+        return replayed;
+    }
+
+    /**
+     * Applies one record to the SoundObjects on the pane, once every
+     * SoundObject it takes away has been found and every one it puts in
+     * has been read.
+     *
+     * @param record the record
+     * @param index top-level SoundObjects on the pane, by keyOf()
+     * @return false if the record does not fit the pane and nothing was
+     *          changed
+     */
+    private boolean apply(Record record, HashMap<Long, ArrayList<SoundObject>> index) {
+        ArrayList<SoundObject> found = new ArrayList<>();
+        ArrayList<ArrayList<SoundObject>> foundIn = new ArrayList<>();
+        for (byte[] removed : record.removed) {
+            SoundObjectSnapshot snapshot = SoundObjectSnapshot.fromBytes(removed);
+            ArrayList<SoundObject> candidates = (snapshot == null) ? null
+                    : index.get(snapshot.getFirstNoteKey());
+            SoundObject match = null;
+            if (candidates != null) {
+                for (SoundObject candidate : candidates) {
+                    if (!found.contains(candidate)
+                            && Arrays.equals(removed, encode(candidate))) {
+                        match = candidate;
+                        break;
+                    }
+                }
+            }
+            if (match == null) {
+                return false;
+            }
+            found.add(match);
+            foundIn.add(candidates);
+        }
+        ArrayList<SoundObjectSnapshot> snapshots = new ArrayList<>();
+        for (byte[] added : record.added) {
+            SoundObjectSnapshot snapshot = SoundObjectSnapshot.fromBytes(added);
+            if (snapshot == null) {
+                return false;
+            }
+            snapshots.add(snapshot);
+        }
+
+        for (int i = 0; i < found.size(); i++) {
+            foundIn.get(i).remove(found.get(i));
+            found.get(i).removeFromPane(soundObjPane);
+        }
+        SoundObjectPaneController.staticUpdateSelectedArray(soundObjPane);
+        for (SoundObjectSnapshot snapshot : snapshots) {
+            for (SoundObject sObj : snapshot.toSoundObjects(soundObjPane, actionManager)) {
+                sObj.addToPane(soundObjPane);
+                sObj.unselect();
+                mark(sObj);
+                index.computeIfAbsent(keyOf(sObj), (key) -> new ArrayList<>()).add(sObj);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Hands the pending records to the WRITER.
+     */
+    private void flush() {
+        if ((pending.size() == 0) || (path == null)) {
+            return;
+        }
+        byte[] bytes = pending.toByteArray();
+        pending.reset();
+        WRITER.execute(() -> {
+            append(bytes);
+        });
+    }
+
+    /**
+     * Creates an empty journal at the given path, replacing any there.
+     * Runs on the WRITER.
+     *
+     * @param journalPath path of the journal
+     * @param lastModified last-modified time of the document
+     */
+    private void create(Path journalPath, long lastModified) {
+        try {
+            Files.createDirectories(journalPath.toAbsolutePath().getParent());
+            channel = FileChannel.open(journalPath, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            ByteBuffer header = ByteBuffer.allocate(2 * Integer.BYTES + Long.BYTES);
+            header.putInt(MAGIC).putInt(VERSION).putLong(lastModified).flip();
+            write(header);
+        }
+        catch (IOException ex) {
+            System.err.println("Unable to create journal: " + ex.getMessage());
+            closeChannel();
+        }
+    }
+
+    /**
+     * Opens the journal at the given path to carry on recording in it,
+     * dropping any record that was cut short. Runs on the WRITER.
+     *
+     * @param journalPath path of the journal
+     * @param validLength length of the whole records in it
+     */
+    private void reopen(Path journalPath, long validLength) {
+        try {
+            channel = FileChannel.open(journalPath, StandardOpenOption.WRITE);
+            channel.truncate(validLength);
+            channel.position(validLength);
+        }
+        catch (IOException ex) {
+            System.err.println("Unable to open journal: " + ex.getMessage());
+            closeChannel();
+        }
+    }
+
+    /**
+     * Appends records to the open journal. Runs on the WRITER.
+     *
+     * @param bytes the records
+     */
+    private void append(byte[] bytes) {
+        try {
+            write(ByteBuffer.wrap(bytes));
+        }
+        catch (IOException ex) {
+            System.err.println("Unable to write journal: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Writes the given bytes to the open journal and forces them to disk.
+     * Runs on the WRITER.
+     *
+     * @param buffer the bytes to write
+     * @throws IOException if they cannot be written
+     */
+    private void write(ByteBuffer buffer) throws IOException {
+        if (channel == null) {
+            return;
+        }
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        channel.force(false);
+    }
+
+    /**
+     * Closes the open journal, if any. Runs on the WRITER.
+     */
+    private void closeChannel() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        }
+        catch (IOException ex) {
+            System.err.println("Unable to close journal: " + ex.getMessage());
+        }
+        channel = null;
+    }
+
+    /**
+     * Deletes the journal at the given path, if there is one. Runs on the
+     * WRITER.
+     *
+     * @param journalPath path of the journal
+     */
+    private static void delete(Path journalPath) {
+        try {
+            Files.deleteIfExists(journalPath);
+        }
+        catch (IOException ex) {
+            System.err.println("Unable to delete journal: " + ex.getMessage());
+        }
+    }
+}
@@ -1,15 +1,37 @@
 package tunecomposer;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.EmptyStackException;
+import java.util.IdentityHashMap;
+import java.util.Set;
 import java.util.Stack;
 import tunecomposer.actionclasses.Action;
-import java.util.Observable;
+import tunecomposer.actionclasses.CoalescedAction;
+import tunecomposer.actionclasses.MoveAction;
+import tunecomposer.actionclasses.SelectAction;
+import tunecomposer.actionclasses.UnselectAction;
 
 /**
  * Manages the undo and redo stacks that all "undo-able" actions are pushed onto.
+ * 
+ * Compound operations may run inside a transaction. Between beginTransaction()
+ * and commit(), actions executed or put onto the stack are gathered into one
+ * undo entry instead, and the selected array is rescanned only once, at the
+ * end. rollback() undoes the gathered actions and drops them.
+ * 
+ * The history is kept within a memory budget. Each entry's size is estimated
+ * from its actions when it is pushed, and once the entries on both stacks add
+ * up to more than the budget, the oldest undo entries are forgotten. The most
+ * recent entry is always kept.
+ * 
+ * Quick runs of small edits are coalesced. An entry that only selects or
+ * unselects SoundObjects, pushed within COALESCE_WINDOW of the entry below it
+ * which also only did so, is merged into that entry, and so is a move of the
+ * same selection that was just moved. Undo, redo and saving stop the entry on
+ * top from taking in any more.
  */
-public class ActionManager extends Observable {
+public class ActionManager {
     
     /**
      * References to the stacks which hold actions to manage.
@@ -17,6 +39,59 @@ public class ActionManager extends Observable {
     public Stack<ArrayList<Action>> undoStack;
     public Stack<ArrayList<Action>> redoStack;
     
+    /**
+     * Default memory budget for the undo and redo stacks, in bytes. May be
+     * changed with the tunecomposer.undoBudget system property.
+     */
+    public static final long DEFAULT_HISTORY_BUDGET = 64L * 1024 * 1024;
+    
+    /**
+     * Memory budget for the undo and redo stacks, in bytes.
+     */
+    private long historyBudget = Long.getLong("tunecomposer.undoBudget", 
+            DEFAULT_HISTORY_BUDGET);
+    
+    /**
+     * Estimated size of every entry on either stack, and their total.
+     */
+    private final IdentityHashMap<ArrayList<Action>, Long> entrySizes = new IdentityHashMap<>();
+    private long historySize = 0;
+    
+    /**
+     * Longest time between two entries that may be merged, in nanoseconds.
+     */
+    public static final long COALESCE_WINDOW = 1_000_000_000L;
+    
+    /**
+     * System.nanoTime() of the last push, and whether the entry on top may
+     * still take in the next one.
+     */
+    private long lastPushTime;
+    private boolean coalescingAllowed = false;
+    
+    /**
+     * Journal every entry is recorded in once done, undone or redone, or null.
+     */
+    private ActionJournal journal;
+    
+    /**
+     * Number of beginTransaction() calls not yet committed or rolled back.
+     * Nested transactions are merged into the outermost one.
+     */
+    private int transactionDepth = 0;
+    
+    /**
+     * Actions gathered by the open transaction, in the order they were
+     * executed, or null if no transaction is open.
+     */
+    private ArrayList<Action> transactionActions;
+    
+    /**
+     * The actions in transactionActions, by identity, so that gathering an
+     * action checks whether it is already gathered in constant time.
+     */
+    private Set<Action> transactionMembers;
+    
     /**
      * Constructs the undo and redo stacks. 
      * These stacks can contain any object of type Action.
@@ -28,11 +103,15 @@ public class ActionManager extends Observable {
     
     /**
      * Perform the given action. 
+     * If a transaction is open, the action is gathered into it.
      * 
      * @param action Action type object to be performed in program
      */
     public void execute(Action action) throws IllegalArgumentException {
         action.execute();
+        if (isInTransaction()) {
+            record(action);
+        }
     }
     
     /**
@@ -51,23 +130,28 @@ public class ActionManager extends Observable {
      * Puts given Action onto the stack. 
      * If actionArray is null, then does nothing. 
      * Clears redoStack to avoid redoing actions when it doesn't make sense to.
-     * Notify Observer (Application Controller) that a change has been made.
+     * Posts UNDO_STACK_CHANGED on the ChangeEventBus.
+     * If a transaction is open, the action is gathered into it instead.
      * 
      * @param action action to put onto the stack
      */
     public void putInUndoStack(Action action) {
-        setChanged();
+        if (isInTransaction()) {
+            record(action);
+            return;
+        }
         ArrayList<Action> actionArray = new ArrayList();
         actionArray.add(action);
-        redoStack.clear();
-        undoStack.push(actionArray);
-        notifyObservers();
+        clearRedoStack();
+        pushNewEntry(actionArray);
+        ChangeEventBus.post(ChangeEvent.UNDO_STACK_CHANGED);
     }
     
     /**
      * Puts given ArrayList of actions onto the stack. 
      * If actionArray is null, then does nothing. 
      * Clears redoStack to avoid redoing actions when it doesn't make sense to.
+     * If a transaction is open, the actions are gathered into it instead.
      * 
      * @param actionArray Actions to put onto the stack
      */
@@ -75,10 +159,188 @@ public class ActionManager extends Observable {
         if (actionArray.isEmpty()) {
             return;
         }
+        if (isInTransaction()) {
+            actionArray.forEach(this::record);
+            return;
+        }
+        clearRedoStack();
+        pushNewEntry(actionArray);
+        ChangeEventBus.post(ChangeEvent.UNDO_STACK_CHANGED);
+    }
+    
+    /**
+     * Pushes a new entry onto the undoStack, recording it in the journal,
+     * dehydrating its actions and counting its estimated size, and forgets the oldest entries if the
+     * history is now over budget.
+     * 
+     * @param actionArray the entry to push
+     */
+    private void pushNewEntry(ArrayList<Action> actionArray) {
+        if (journal != null) {
+            journal.record(actionArray);
+        }
+        for (Action a : actionArray) {
+            a.dehydrate(this);
+        }
+        long now = System.nanoTime();
+        ArrayList<Action> top = peekUndoStack();
+        if (coalescingAllowed && (now - lastPushTime <= COALESCE_WINDOW)
+                && (top != null) && canCoalesce(top, actionArray)) {
+            if ((top.size() == 1) && (top.get(0) instanceof CoalescedAction)) {
+                ((CoalescedAction) top.get(0)).add(actionArray);
+            }
+            else {
+                CoalescedAction merged = new CoalescedAction(new ArrayList<>(top));
+                merged.add(actionArray);
+                top.clear();
+                top.add(merged);
+            }
+            measure(top);
+        }
+        else {
+            undoStack.push(actionArray);
+            measure(actionArray);
+        }
+        lastPushTime = now;
+        coalescingAllowed = true;
+        trimHistory();
+    }
+    
+    /**
+     * Returns true if the given new entry may be merged into the entry on top
+     * of the undoStack: both only select or unselect, or the new entry only
+     * moves the selection that the top entry last moved.
+     * 
+     * @param top the entry on top of the undoStack
+     * @param actionArray the new entry
+     * @return true if they may be merged
+     */
+    private boolean canCoalesce(ArrayList<Action> top, ArrayList<Action> actionArray) {
+        Action last = top.get(top.size() - 1);
+        if (last instanceof CoalescedAction) {
+            last = ((CoalescedAction) last).getLastAction();
+        }
+        if (isSelectionOnly(top) && isSelectionOnly(actionArray)) {
+            return true;
+        }
+        if (!(last instanceof MoveAction)) {
+            return false;
+        }
+        for (Action a : actionArray) {
+            if (!(a instanceof MoveAction) || (a.affectedObjs != last.affectedObjs)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Returns true if every action in the entry only selects or unselects.
+     * 
+     * @param actionArray the entry
+     * @return true if the entry only changes the selection
+     */
+    private boolean isSelectionOnly(ArrayList<Action> actionArray) {
+        for (Action a : actionArray) {
+            if (a instanceof CoalescedAction) {
+                if (!((CoalescedAction) a).isSelectionOnly()) {
+                    return false;
+                }
+            }
+            else if (!(a instanceof SelectAction) && !(a instanceof UnselectAction)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Stops the entry on top of the undoStack from taking in the next one,
+     * so that it stays as it is, such as when the composition is saved.
+     */
+    public void stopCoalescing() {
+        coalescingAllowed = false;
+    }
+    
+    /**
+     * Estimates the size of an entry on either stack again, after its
+     * actions have been undone, redone or dehydrated.
+     * 
+     * @param actionArray the entry to measure
+     */
+    private void measure(ArrayList<Action> actionArray) {
+        forget(actionArray);
+        long size = 0;
+        for (Action a : actionArray) {
+            size += a.getEstimatedSize();
+        }
+        entrySizes.put(actionArray, size);
+        historySize += size;
+    }
+    
+    /**
+     * Forgets the oldest undo entries until the history is within its budget
+     * or only the most recent entry is left. Those changes can no longer be
+     * undone.
+     */
+    private void trimHistory() {
+        while ((historySize > historyBudget) && (undoStack.size() > 1)) {
+            forget(undoStack.remove(0));
+        }
+    }
+    
+    /**
+     * Removes every entry from the redoStack.
+     */
+    private void clearRedoStack() {
+        redoStack.forEach(this::forget);
+        redoStack.clear();
+    }
+    
+    /**
+     * Stops counting the size of an entry that has left both stacks.
+     * 
+     * @param actionArray the entry removed
+     */
+    private void forget(ArrayList<Action> actionArray) {
+        Long size = entrySizes.remove(actionArray);
+        if (size != null) {
+            historySize -= size;
+        }
+    }
+    
+    /**
+     * Removes every entry from both stacks, as for a new session.
+     * Posts UNDO_STACK_CHANGED on the ChangeEventBus.
+     */
+    public void clearHistory() {
+        stopCoalescing();
+        undoStack.clear();
         redoStack.clear();
-        undoStack.push(actionArray);
-        setChanged();
-        notifyObservers();
+        entrySizes.clear();
+        historySize = 0;
+        ChangeEventBus.post(ChangeEvent.UNDO_STACK_CHANGED);
+    }
+    
+    /**
+     * Sets the memory budget for the undo and redo stacks, forgetting the
+     * oldest undo entries at once if they no longer fit.
+     * 
+     * @param budget budget in bytes
+     */
+    public void setHistoryBudget(long budget) {
+        historyBudget = budget;
+        trimHistory();
+        ChangeEventBus.post(ChangeEvent.UNDO_STACK_CHANGED);
+    }
+    
+    /**
+     * Returns the estimated memory kept alive by both stacks.
+     * 
+     * @return estimated size in bytes
+     */
+    public long getHistorySize() {
+        return historySize;
     }
     
     /**
@@ -98,44 +360,137 @@ public class ActionManager extends Observable {
     
     /**
      * Pop top item on undoStack. 
-     * Undo the action, then push it onto the redoStack.
+     * Undo the action, with the selected array rescanned once at the end,
+     * then push it onto the redoStack.
      */
     public void undo() {
-        
-        setChanged();
-        
+        stopCoalescing();
         if (undoStack.isEmpty()) {
             return;
         }
         ArrayList<Action> undoActions;
         undoActions = undoStack.pop();
         
+        SoundObjectPaneController.deferSelectionUpdates();
         undoActions.forEach((a) -> {
             a.undo();
         });
+        SoundObjectPaneController.resumeSelectionUpdates();
+        if (journal != null) {
+            journal.record(undoActions);
+        }
         redoStack.push(undoActions);
-        notifyObservers();
+        measure(undoActions);
+        ChangeEventBus.post(ChangeEvent.UNDO_STACK_CHANGED);
     }
     
     /**
      * Pop top item from redoStack. 
-     * Redo the action's effects, and push it back onto the undoStack.
+     * Redo the action's effects, with the selected array rescanned once at
+     * the end, and push it back onto the undoStack.
      */
     public void redo() {
-        
-        setChanged();
-        
+        stopCoalescing();
         if (redoStack.isEmpty()) {
             return;
         }
         ArrayList<Action> redoActions;
         redoActions = redoStack.pop();
         
+        SoundObjectPaneController.deferSelectionUpdates();
         redoActions.forEach((a) -> {
             a.redo();
         });
+        SoundObjectPaneController.resumeSelectionUpdates();
+        if (journal != null) {
+            journal.record(redoActions);
+        }
+        redoActions.forEach((a) -> {
+            a.dehydrate(this);
+        });
         undoStack.push(redoActions);
-        notifyObservers();
+        measure(redoActions);
+        trimHistory();
+        ChangeEventBus.post(ChangeEvent.UNDO_STACK_CHANGED);
+    }
+    
+    /**
+     * Sets the journal that entries are recorded in once they are done,
+     * undone or redone.
+     * 
+     * @param journal the journal, or null to record nothing
+     */
+    public void setJournal(ActionJournal journal) {
+        this.journal = journal;
+    }
+    
+    /**
+     * Opens a transaction, or nests inside the one already open.
+     * Until the matching commit(), actions executed or put onto the stack are
+     * gathered instead of pushed, and selection rescans are put off.
+     */
+    public void beginTransaction() {
+        if (transactionDepth++ == 0) {
+            transactionActions = new ArrayList<>();
+            transactionMembers = Collections.newSetFromMap(new IdentityHashMap<>());
+            SoundObjectPaneController.deferSelectionUpdates();
+        }
+    }
+    
+    /**
+     * Closes the innermost transaction. Closing the outermost one puts every
+     * gathered action onto the stack as one entry, rescans the selected array
+     * once and posts a single UNDO_STACK_CHANGED.
+     * Does nothing if no transaction is open.
+     */
+    public void commit() {
+        if (!isInTransaction() || (--transactionDepth > 0)) {
+            return;
+        }
+        ArrayList<Action> actions = transactionActions;
+        transactionActions = null;
+        transactionMembers = null;
+        SoundObjectPaneController.resumeSelectionUpdates();
+        putInUndoStack(actions);
+    }
+    
+    /**
+     * Abandons the open transaction, including any transactions nested in it.
+     * The gathered actions are undone in reverse order and are not put onto
+     * the stack. Does nothing if no transaction is open.
+     */
+    public void rollback() {
+        if (!isInTransaction()) {
+            return;
+        }
+        ArrayList<Action> actions = transactionActions;
+        transactionActions = null;
+        transactionMembers = null;
+        transactionDepth = 0;
+        for (int i = actions.size() - 1; i >= 0; i--) {
+            actions.get(i).undo();
+        }
+        SoundObjectPaneController.resumeSelectionUpdates();
+    }
+    
+    /**
+     * Returns true if a transaction is open.
+     * 
+     * @return true between beginTransaction() and the matching commit()
+     */
+    public boolean isInTransaction() {
+        return transactionDepth > 0;
+    }
+    
+    /**
+     * Gathers the given action into the open transaction, once.
+     * 
+     * @param action action executed or put onto the stack
+     */
+    private void record(Action action) {
+        if (transactionMembers.add(action)) {
+            transactionActions.add(action);
+        }
     }
     
     /**
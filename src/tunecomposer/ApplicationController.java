@@ -2,23 +2,25 @@ package tunecomposer;
 
 import java.nio.file.FileAlreadyExistsException;
 import java.util.ArrayList;
-import java.util.Observable;
-import java.util.Observer;
+import java.util.EnumSet;
 import java.util.Optional;
-import javafx.collections.ObservableList;
+import java.util.Set;
 import javafx.fxml.FXML;
 import javafx.event.ActionEvent;
 import javafx.fxml.Initializable;
-import javafx.scene.Node;
 import javafx.scene.control.Alert;
 import static javafx.scene.control.Alert.AlertType.NONE;
+import javafx.scene.control.Button;
 import javafx.scene.control.ButtonType;
+import javafx.scene.control.CheckMenuItem;
+import javafx.scene.control.Label;
 import javafx.scene.control.Menu;
 import javafx.scene.control.MenuItem;
+import javafx.scene.control.ProgressBar;
 import javafx.scene.control.TextInputDialog;
 import javafx.scene.input.Clipboard;
+import javafx.scene.layout.HBox;
 import javafx.scene.layout.Pane;
-import tunecomposer.actionclasses.Action;
 
 /**
  * Controls the application and handles the menu item selections.
@@ -115,6 +117,47 @@ public class ApplicationController implements Initializable {
      */
     @FXML
     private MenuItem MinorChordMenuItem;
+    /**
+     * File, Edit, Insert and Actions Menus, disabled while a sliced job runs.
+     */
+    @FXML
+    private Menu FileMenu;
+    @FXML
+    private Menu EditMenu;
+    @FXML
+    private Menu InsertMenu;
+    @FXML
+    private Menu ActionsMenu;
+    /**
+     * Shows the progress of the running sliced job.
+     */
+    @FXML
+    private HBox progressBox;
+    @FXML
+    private Label progressLabel;
+    @FXML
+    private ProgressBar progressBar;
+    /**
+     * Cancel Button, enabled while the running sliced job can be cancelled.
+     */
+    @FXML
+    private Button CancelButton;
+    /**
+     * Canvas Rendering Menu Button, checked when notes are drawn on a Canvas.
+     */
+    @FXML
+    private CheckMenuItem CanvasRenderingMenuItem;
+    /**
+     * Performance Statistics Menu Button, checked when the status line is
+     * shown.
+     */
+    @FXML
+    private CheckMenuItem PerformanceStatisticsMenuItem;
+    /**
+     * Shows the reports of the StatusLine.
+     */
+    @FXML
+    private Label statusLabel;
     /**
      * Object that contains the undo and redo stack for the program. 
      */
@@ -136,6 +179,12 @@ public class ApplicationController implements Initializable {
      */
     @FXML
     public CompositionPaneController compositionPaneController;
+    
+    /**
+     * Reference to the minimapPaneController. 
+     */
+    @FXML
+    public MinimapPaneController minimapPaneController;
         
     /**
      * Initialize FXML Application. 
@@ -154,20 +203,49 @@ public class ApplicationController implements Initializable {
         appObserver = new ApplicationObserver();
         actionManager = compositionPaneController.actionManager;
         
-        compositionPaneController.redBarPaneController
-                .addObserver(appObserver);
-        
-        actionManager.addObserver(appObserver);
+        ChangeEventBus.subscribe(EnumSet.allOf(ChangeEvent.class), appObserver);
         
         compositionPaneController.setActionManager(actionManager);
         
         Pane sObjPane = compositionPaneController.soundObjectPane;
-        fileManager = new FileManager(sObjPane, actionManager);
+        fileManager = new FileManager(sObjPane, actionManager, 
+                compositionPaneController.scheduler);
+        fileManager.recoverUnsavedChanges();
         TuneComposer.setAppController(this);
 
-        fileManager.addObserver(appObserver);
+        minimapPaneController.setCompositionPaneController(compositionPaneController);
+        
+        TimeSlicedScheduler scheduler = compositionPaneController.scheduler;
+        progressBox.visibleProperty().bind(scheduler.runningProperty());
+        progressBox.managedProperty().bind(scheduler.runningProperty());
+        progressLabel.textProperty().bind(scheduler.messageProperty());
+        progressBar.progressProperty().bind(scheduler.progressProperty());
+        CancelButton.disableProperty().bind(scheduler.cancellableProperty().not());
+        statusLabel.textProperty().bind(StatusLine.messageProperty());
+        FileMenu.disableProperty().bind(scheduler.runningProperty());
+        EditMenu.disableProperty().bind(scheduler.runningProperty());
+        InsertMenu.disableProperty().bind(scheduler.runningProperty());
+        ActionsMenu.disableProperty().bind(scheduler.runningProperty());
+        scheduler.runningProperty().addListener((observable) -> {
+            appObserver.setDisable();
+        });
+        EditMenu.setOnShowing((event) -> {
+            ChangeEventBus.post(ChangeEvent.CLIPBOARD_CHANGED);
+            ChangeEventBus.flush();
+        });
     }   
     
+    /**
+     * Handles the Cancel button shown while a sliced job runs.
+     * Rolls the job back if it can be cancelled.
+     * 
+     * @param event the button click event
+     */
+    @FXML
+    protected void handleCancelButtonAction(ActionEvent event) {
+        compositionPaneController.scheduler.cancel();
+    }
+    
     /**
      * Handles the About menu item and opens an About window.
      * 
@@ -521,6 +599,83 @@ public class ApplicationController implements Initializable {
         compositionPaneController.addChord(noteData);
     }
     
+    /**
+     * Handles the Zoom In menu item selection.
+     * 
+     * @param event the menu selection event
+     */
+    @FXML
+    protected void handleZoomInMenuItemAction(ActionEvent event) {
+        compositionPaneController.zoomIn();
+    }
+    
+    /**
+     * Handles the Zoom Out menu item selection.
+     * 
+     * @param event the menu selection event
+     */
+    @FXML
+    protected void handleZoomOutMenuItemAction(ActionEvent event) {
+        compositionPaneController.zoomOut();
+    }
+    
+    /**
+     * Handles the Zoom In Vertically menu item selection.
+     * 
+     * @param event the menu selection event
+     */
+    @FXML
+    protected void handleZoomInVerticallyMenuItemAction(ActionEvent event) {
+        compositionPaneController.zoomInVertically();
+    }
+    
+    /**
+     * Handles the Zoom Out Vertically menu item selection.
+     * 
+     * @param event the menu selection event
+     */
+    @FXML
+    protected void handleZoomOutVerticallyMenuItemAction(ActionEvent event) {
+        compositionPaneController.zoomOutVertically();
+    }
+    
+    /**
+     * Handles the Actual Size menu item selection.
+     * 
+     * @param event the menu selection event
+     */
+    @FXML
+    protected void handleActualSizeMenuItemAction(ActionEvent event) {
+        compositionPaneController.resetZoom();
+    }
+    
+    /**
+     * Handles the Canvas Rendering menu item selection.
+     * Switches between drawing notes onto a Canvas and giving each visible
+     * note its own node.
+     * 
+     * @param event the menu selection event
+     */
+    @FXML
+    protected void handleCanvasRenderingMenuItemAction(ActionEvent event) {
+        compositionPaneController.setCanvasRendering(
+                CanvasRenderingMenuItem.isSelected());
+    }
+    
+    /**
+     * Handles the Performance Statistics menu item selection.
+     * Shows or hides the status line, which reports how many drag events
+     * were folded together and how well playback prefetching kept up.
+     * 
+     * @param event the menu selection event
+     */
+    @FXML
+    protected void handlePerformanceStatisticsMenuItemAction(ActionEvent event) {
+        boolean selected = PerformanceStatisticsMenuItem.isSelected();
+        statusLabel.setVisible(selected);
+        statusLabel.setManaged(selected);
+    }
+    
     /**
      * Handles the Play menu item selection.
      * 
@@ -609,258 +764,243 @@ public class ApplicationController implements Initializable {
     }
     
     /**
-     * Nested class that observes the ActionManager, FileManager and RedBarPaneController
-     * and uses the observed info to disable or enable the menuItems.
+     * Nested class that listens on the ChangeEventBus and uses the kinds of
+     * change to disable or enable the menuItems. Only the menuItems that
+     * depend on what changed are checked, and each check takes constant time,
+     * except the Paste check, which only runs when the clipboard may have
+     * changed.
      */
-    class ApplicationObserver implements Observer {
-        
-        /**
-         * List of selected items updated from ActionManager.
-         */
-        ArrayList<SoundObject> selItems;
+    class ApplicationObserver implements ChangeEventBus.Listener {
         
         /**
-         * List of all sound objects on the pane, updated from ActionManager.
+         * Length and hash code of the clipboard text last checked by
+         * checkDisablePaste(), and whether it could be parsed. The text
+         * itself is not kept, as it may be very large. The length is -1 if
+         * nothing has been checked yet.
          */
-        ObservableList<Node> allSoundObjects;
-        
-        boolean isRedoEmpty;
-        boolean isUndoEmpty;
-        
-        ArrayList<Action> lastSavedAction;
+        private int checkedClipboardLength = -1;
+        private int checkedClipboardHash;
+        private boolean checkedClipboardParsable;
         
         /**
-         * Update is called by notifyObservers in Action Manager and the Red Bar
-         * Controller whenever a change is made to the undo stack or the red line
-         * reaches the end of the last note.
-         * Updates the disabling of all menu buttons.
+         * Called once per pulse with the kinds of change posted on the 
+         * ChangeEventBus during it. Updates the disabling of the menu items
+         * that depend on them.
          * 
-         * @param observed instance of the observable class.
-         * @param x optional object to be passed, not used.
+         * @param events the kinds of change that happened
          */
         @Override
-        public void update(Observable observed, Object x){
-            if (observed instanceof ActionManager){
-                actionManager = (ActionManager) observed;
+        public void changed(Set<ChangeEvent> events){
+            if (compositionPaneController.scheduler.isRunning()) {
+                return;
             }
-            else if (observed instanceof FileManager){
-                lastSavedAction = ((FileManager)observed).getLastSaveAction();
+            if (events.contains(ChangeEvent.UNDO_STACK_CHANGED)) {
+                checkDisableUndo();
+                checkDisableRedo();
+                checkDisableSave();
+                checkDisableSaveAs();
+            }
+            if (events.contains(ChangeEvent.SELECTION_CHANGED)) {
+                checkDisableCopy();
+                checkDisableCut();
+                checkDisableGroup();
+                checkDisableUngroup();
+                checkDisablePlaySelected();
+                checkDisableDelete();
+                checkDisableChangeInstrument();
+            }
+            if (events.contains(ChangeEvent.MODEL_CHANGED)) {
+                checkDisableSelAll();
+                checkDisablePlay();
+                checkDisableNew();
+            }
+            if (events.contains(ChangeEvent.CLIPBOARD_CHANGED)) {
+                checkDisablePaste();
+            }
+            if (events.contains(ChangeEvent.TRANSPORT_CHANGED)) {
+                checkDisableStop();
             }
-            
-            setDisable();
         }
         
         /**
-         * Updates the disabling of all menu items based on changes made to the
-         * observable classes.
+         * Updates the disabling of all menu items. While a sliced job runs,
+         * all of them are disabled.
          */
         private void setDisable(){
             
-            isRedoEmpty = actionManager.isRedoStackEmpty();
-            isUndoEmpty = actionManager.isUndoStackEmpty();
-            
-            selItems = SoundObjectPaneController.SELECTED_SOUNDOBJECT_ARRAY;
+            if (compositionPaneController.scheduler.isRunning()) {
+                toggleMenuItemDisable(true);
+                return;
+            }
             
-            allSoundObjects = compositionPaneController.
-                    soundObjectPane.getChildren();
-                        
             toggleMenuItemDisable(false);
-            
-            checkDisableUndo();
-            checkDisableRedo();
-            checkDisableCopy();
-            checkDisableCut();
-            checkDisablePaste();
-            checkDisableSelAll();
-            checkDisableGroup();
-            checkDisableUngroup();
-            checkDisablePlay();
-            checkDisablePlaySelected();
-            checkDisableDelete();
-            checkDisableStop();
-            checkDisableSave();
-            checkDisableSaveAs();
-            checkDisableNew();
-            checkDisableChangeInstrument();
+            changed(EnumSet.allOf(ChangeEvent.class));
         }
         
         /**
-         * Disables "Undo" if it needs to be disabled.
-         * Precondition: button is enabled.
+         * Disables "Undo" if the undo stack is empty.
          */
         private void checkDisableUndo(){
-            if (isUndoEmpty){
-                UndoMenuItem.setDisable(true);
-            }
+            UndoMenuItem.setDisable(actionManager.isUndoStackEmpty());
         }
         
         /**
-         * Disables "Redo" if it needs to be disabled.
-         * Precondition: button is enabled.
+         * Disables "Redo" if the redo stack is empty.
          */
         private void checkDisableRedo(){
-            if (isRedoEmpty){
-                RedoMenuItem.setDisable(true);
-            }
+            RedoMenuItem.setDisable(actionManager.isRedoStackEmpty());
         }
         
         /**
-         * Disables "Copy" if it needs to be disabled.
-         * Precondition: button is enabled.
+         * Disables "Copy" if nothing is selected.
          */
         private void checkDisableCopy(){
-            if(selItems.isEmpty()){
-                CopyMenuItem.setDisable(true);
-            }
+            CopyMenuItem.setDisable(isSelectionEmpty());
         }
         
         /**
-         * Disables "Cut" if it needs to be disabled.
-         * Precondition: button is enabled.
+         * Disables "Cut" if nothing is selected.
          */
         private void checkDisableCut(){
-            if(selItems.isEmpty()){
-                CutMenuItem.setDisable(true);
-            }
+            CutMenuItem.setDisable(isSelectionEmpty());
         }
         
         /**
-         * Disables "Paste" menuItem if it needs to be disabled.
-         * Disables if the clipboard does not contain data that can be parsed
-         * Precondition: button is enabled.
+         * Disables "Paste" menuItem if the clipboard does not contain data 
+         * that can be parsed. A SoundObjectSnapshot can always be pasted. 
+         * Runs only when CLIPBOARD_CHANGED is posted. The clipboard text is
+         * only parsed again when its length or hash code differ from the
+         * last time it was checked.
          */
         private void checkDisablePaste(){
-            PasteMenuItem.setDisable(true);
+            Clipboard clipboard = Clipboard.getSystemClipboard();
+            if (clipboard.hasContent(SoundObjectSnapshot.DATA_FORMAT)) {
+                PasteMenuItem.setDisable(false);
+                return;
+            }
             
-            Clipboard clipboard;
-            clipboard = Clipboard.getSystemClipboard();
-
             String clipboardStr = clipboard.getString();
             
             if (clipboardStr == null) {
+                PasteMenuItem.setDisable(true);
                 return;
             }
             
-            SoundObjectParser parser = new SoundObjectParser(clipboardStr, compositionPaneController.
-                    soundObjectPane, actionManager);
-            
-            if (parser.isParsable()) {
-                PasteMenuItem.setDisable(false);
+            if ((clipboardStr.length() != checkedClipboardLength)
+                    || (clipboardStr.hashCode() != checkedClipboardHash)) {
+                checkedClipboardLength = clipboardStr.length();
+                checkedClipboardHash = clipboardStr.hashCode();
+                checkedClipboardParsable = SoundObjectParser.isParsable(clipboardStr);
             }
+            PasteMenuItem.setDisable(!checkedClipboardParsable);
         }
         
         /**
-         * Disables "Select All" if it needs to be disabled.
-         * Precondition: button is enabled.
+         * Disables "Select All" if the composition is empty.
          */
         private void checkDisableSelAll(){
-            if (allSoundObjects.isEmpty()){
-                SelAllMenuItem.setDisable(true);
-            }
+            SelAllMenuItem.setDisable(isCompositionEmpty());
         }
         
         /**
-         * Disables "Group" if it needs to be disabled.
-         * Precondition: button is enabled.
+         * Disables "Group" unless at least two SoundObjects are selected.
          */
         private void checkDisableGroup(){
-            if(selItems.isEmpty()){
-                GroupMenuItem.setDisable(true);
-            }
-            else if (selItems.size()==1){
-                GroupMenuItem.setDisable(true);
-            }
+            GroupMenuItem.setDisable(
+                    SoundObjectPaneController.SELECTED_SOUNDOBJECT_ARRAY.size() < 2);
         }
         
         /**
-         * Disables "Ungroup" if it needs to be disabled.
-         * Precondition: button is enabled.
+         * Disables "Ungroup" unless a Gesture is selected.
          */
         private void checkDisableUngroup(){
-            UngroupMenuItem.setDisable(true);
-            for (SoundObject sObj: selItems){
-                if (sObj instanceof Gesture){
-                    UngroupMenuItem.setDisable(false);
-                }
-            }
+            UngroupMenuItem.setDisable(
+                    SoundObjectPaneController.getSelectedGestureCount() == 0);
         }
         
         /**
-         * Disables "Delete" if it needs to be disabled.
-         * Precondition: button is enabled.
+         * Disables "Delete" if nothing is selected.
          */
         private void checkDisableDelete(){
-            if(selItems.isEmpty()){
-                DeleteMenuItem.setDisable(true);
-            }
+            DeleteMenuItem.setDisable(isSelectionEmpty());
         }
         
         /**
-         * Disables "Play" if it needs to be disabled.
-         * Precondition: button is enabled.
+         * Disables "Play" if the composition is empty.
          */
         private void checkDisablePlay(){
-            if (allSoundObjects.isEmpty()){
-                PlayMenuItem.setDisable(true);
-            }
+            PlayMenuItem.setDisable(isCompositionEmpty());
         }
         
         /**
-         * Disables "Play Selected" if it needs to be disabled.
-         * Precondition: button is enabled.
+         * Disables "Play Selected" if nothing is selected.
          */
         private void checkDisablePlaySelected(){
-            if (selItems.isEmpty()){
-                PlaySelectedMenuItem.setDisable(true);
-            }
+            PlaySelectedMenuItem.setDisable(isSelectionEmpty());
         }
         
         /**
-         * Disables "Stop" if it needs to be disabled.
-         * Precondition: button is enabled.
+         * Disables "Stop", as playback has stopped.
          */
         private void checkDisableStop(){
             StopMenuItem.setDisable(true);
         }
         
         /**
-         * Disables "Change Instrument" if it needs to be disabled.
-         * Precondition: button is enabled.
+         * Disables "Change Instrument" if nothing is selected.
          */
         private void checkDisableChangeInstrument(){
-            if (selItems.isEmpty()){
-                ChangeInstrumentMenu.setDisable(true);
-            }
+            ChangeInstrumentMenu.setDisable(isSelectionEmpty());
         }
         
         /**
-         * Disables "Save" if it needs to be disabled.
-         * Precondition: button is enabled.
+         * Disables "Save" if nothing has been done since the last save.
          */
         private void checkDisableSave(){
-            if (lastSavedAction == actionManager.peekUndoStack()){
-                SaveMenuItem.setDisable(true);
-            }
+            SaveMenuItem.setDisable(isSaved());
         }
         
         /**
-         * Disables "SaveAs" if it needs to be disabled.
-         * Precondition: button is enabled.
+         * Disables "SaveAs" if nothing has been done since the last save.
          */
         private void checkDisableSaveAs(){
-            if (lastSavedAction == actionManager.peekUndoStack()){
-                SaveAsMenuItem.setDisable(true);
-            }
+            SaveAsMenuItem.setDisable(isSaved());
         }
         
         /**
-         * Disables "New" if it needs to be disabled.
-         * Precondition: button is enabled.
+         * Disables "New" if the composition is empty.
          */
         private void checkDisableNew(){
-            if (allSoundObjects.isEmpty()){
-                NewMenuItem.setDisable(true);
-            }
-        }  
+            NewMenuItem.setDisable(isCompositionEmpty());
+        }
+        
+        /**
+         * Returns true if no SoundObjects are selected.
+         * 
+         * @return true if the selection is empty
+         */
+        private boolean isSelectionEmpty(){
+            return SoundObjectPaneController.SELECTED_SOUNDOBJECT_ARRAY.isEmpty();
+        }
+        
+        /**
+         * Returns true if there are no SoundObjects on the composition.
+         * 
+         * @return true if the composition is empty
+         */
+        private boolean isCompositionEmpty(){
+            return SoundObjectViewport.getSoundObjectNodes(
+                    compositionPaneController.soundObjectPane).isEmpty();
+        }
+        
+        /**
+         * Returns true if the top of the undo stack is the action that was
+         * on top when the composition was last saved.
+         * 
+         * @return true if nothing has been done since the last save
+         */
+        private boolean isSaved(){
+            return fileManager.getLastSaveAction() == actionManager.peekUndoStack();
+        }
     }
 }
@@ -0,0 +1,357 @@
+package tunecomposer;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Reads and writes compositions in the binary .tcb format, a compact
+ * alternative to the text format that needs no tokenizing to load.
+ *
+ * A file starts with a header of ints: MAGIC, VERSION, the note count, the
+ * structure length, and the extent of the composition as its first tick, its
+ * end tick, and its lowest and highest y. The notes follow, sorted by tick,
+ * each as four varints: the change in tick, y, width and instrument number
+ * from the note before, zigzag encoded so that small changes either way take
+ * one byte. Last comes the gesture tree, as the structure of a
+ * SoundObjectSnapshot: one varint per entry, either GESTURE_CODE_START,
+ * GESTURE_CODE_END, or a note given by how far its index in sorted order is
+ * from one after the note before it. A composition without gestures, whose
+ * notes were already in order of tick, takes one byte per structure entry.
+ *
+ * Files are read and written through a FileChannel a buffer at a time.
+ */
+public final class BinaryCompositionFormat {
+
+    /**
+     * Extension of files in this format.
+     */
+    public static final String EXTENSION = ".tcb";
+
+    /**
+     * First int of every file, and the version of its layout.
+     */
+    private static final int MAGIC = 0x54434231;
+    private static final int VERSION = 1;
+
+    /**
+     * Size of the buffer files are read and written through, in bytes.
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Most bytes a varint of an int takes.
+     */
+    private static final int MAX_VARINT_LENGTH = 5;
+
+    /**
+     * Structure codes for the start and end of a gesture's contents. Codes
+     * from NOTE_CODE_OFFSET up are notes.
+     */
+    private static final int GESTURE_CODE_START = 0;
+    private static final int GESTURE_CODE_END = 1;
+    private static final int NOTE_CODE_OFFSET = 2;
+
+    /**
+     * Not constructed; all methods are static.
+     */
+    private BinaryCompositionFormat() {
+    }
+
+    /**
+     * Returns true if the file at the given path is in this format, judging
+     * by its name.
+     *
+     * @param filePath path of the file
+     * @return true if its name ends in EXTENSION
+     */
+    public static boolean isBinaryPath(String filePath) {
+        return (filePath != null) && filePath.toLowerCase().endsWith(EXTENSION);
+    }
+
+    /**
+     * Writes the SoundObjects in the given snapshot to the file at the given
+     * path, replacing anything in it.
+     *
+     * @param snapshot snapshot of the composition
+     * @param path path of the file to write
+     * @throws IOException if the file cannot be written
+     */
+    public static void write(SoundObjectSnapshot snapshot, Path path) throws IOException {
+        int noteCount = snapshot.xs.length;
+        // tick in the high half, so that sorting keeps notes with the same
+        // tick in the order they were in
+        long[] order = new long[noteCount];
+        for (int i = 0; i < noteCount; i++) {
+            order[i] = ((long) snapshot.xs[i] << 32) | i;
+        }
+        Arrays.sort(order);
+
+        int minY = Integer.MAX_VALUE;
+        int maxY = Integer.MIN_VALUE;
+        for (int y : snapshot.ys) {
+            minY = Math.min(minY, y);
+            maxY = Math.max(maxY, y);
+        }
+        int startTick = (noteCount == 0) ? 0 : (int) (order[0] >> 32);
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            buffer.putInt(MAGIC).putInt(VERSION);
+            buffer.putInt(noteCount).putInt(snapshot.structure.length);
+            buffer.putInt(startTick).putInt(snapshot.getEndTick());
+            buffer.putInt((noteCount == 0) ? 0 : minY).putInt((noteCount == 0) ? 0 : maxY);
+
+            int[] sortedIndex = new int[noteCount];
+            int lastX = 0;
+            int lastY = 0;
+            int lastWidth = 0;
+            int lastInstrument = 0;
+            for (int k = 0; k < noteCount; k++) {
+                int i = (int) order[k];
+                sortedIndex[i] = k;
+                makeRoom(buffer, channel, 4 * MAX_VARINT_LENGTH);
+                putVarint(buffer, zigzag(snapshot.xs[i] - lastX));
+                putVarint(buffer, zigzag(snapshot.ys[i] - lastY));
+                putVarint(buffer, zigzag(snapshot.widths[i] - lastWidth));
+                putVarint(buffer, zigzag(snapshot.instruments[i] - lastInstrument));
+                lastX = snapshot.xs[i];
+                lastY = snapshot.ys[i];
+                lastWidth = snapshot.widths[i];
+                lastInstrument = snapshot.instruments[i];
+            }
+
+            int lastIndex = -1;
+            for (int entry : snapshot.structure) {
+                makeRoom(buffer, channel, MAX_VARINT_LENGTH);
+                if (entry == SoundObjectSnapshot.GESTURE_START) {
+                    putVarint(buffer, GESTURE_CODE_START);
+                }
+                else if (entry == SoundObjectSnapshot.GESTURE_END) {
+                    putVarint(buffer, GESTURE_CODE_END);
+                }
+                else {
+                    int index = sortedIndex[entry];
+                    putVarint(buffer, NOTE_CODE_OFFSET + zigzag(index - lastIndex - 1));
+                    lastIndex = index;
+                }
+            }
+            buffer.flip();
+            drain(buffer, channel);
+        }
+    }
+
+    /**
+     * Reads the composition in the file at the given path into a snapshot,
+     * without building any SoundObjects.
+     *
+     * @param path path of the file to read
+     * @return snapshot of the composition, with the notes and gestures in
+     *          the order they were written
+     * @throws IOException if the file cannot be read or is not valid
+     */
+    public static SoundObjectSnapshot read(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            buffer.flip();
+            int[] counts = readHeader(buffer, channel);
+            int noteCount = counts[0];
+            int structureLength = counts[1];
+
+            int[] xs = new int[noteCount];
+            int[] ys = new int[noteCount];
+            int[] widths = new int[noteCount];
+            int[] instruments = new int[noteCount];
+            int lastX = 0;
+            int lastY = 0;
+            int lastWidth = 0;
+            int lastInstrument = 0;
+            for (int k = 0; k < noteCount; k++) {
+                lastX += unzigzag(getVarint(buffer, channel));
+                lastY += unzigzag(getVarint(buffer, channel));
+                lastWidth += unzigzag(getVarint(buffer, channel));
+                lastInstrument += unzigzag(getVarint(buffer, channel));
+                xs[k] = lastX;
+                ys[k] = lastY;
+                widths[k] = lastWidth;
+                instruments[k] = lastInstrument;
+            }
+
+            int[] structure = new int[structureLength];
+            int lastIndex = -1;
+            for (int j = 0; j < structureLength; j++) {
+                int code = getVarint(buffer, channel);
+                if (code == GESTURE_CODE_START) {
+                    structure[j] = SoundObjectSnapshot.GESTURE_START;
+                }
+                else if (code == GESTURE_CODE_END) {
+                    structure[j] = SoundObjectSnapshot.GESTURE_END;
+                }
+                else {
+                    lastIndex += 1 + unzigzag(code - NOTE_CODE_OFFSET);
+                    structure[j] = lastIndex;
+                }
+            }
+            return new SoundObjectSnapshot(xs, ys, widths, instruments, structure);
+        }
+    }
+
+    /**
+     * Reads only the header of the file at the given path, to find out
+     * quickly whether read() can be expected to succeed. A file whose header
+     * is valid may still turn out to be cut short or damaged further on.
+     *
+     * @param path path of the file to check
+     * @throws IOException if the file cannot be read, is not in this format,
+     *          or its header is damaged
+     */
+    public static void checkHeader(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(8 * Integer.BYTES);
+            buffer.flip();
+            readHeader(buffer, channel);
+        }
+    }
+
+    /**
+     * Reads the header from the start of the file and checks it against the
+     * size of the file, leaving the buffer at the first note.
+     *
+     * @param buffer empty buffer to read through, of at least 8 ints
+     * @param channel file to read from
+     * @return array of the note count and the structure length
+     * @throws IOException if the file is not in this format or is damaged
+     */
+    private static int[] readHeader(ByteBuffer buffer, FileChannel channel) throws IOException {
+        long fileSize = channel.size();
+        fill(buffer, channel, 8 * Integer.BYTES);
+        if ((buffer.getInt() != MAGIC) || (buffer.getInt() != VERSION)) {
+            throw new IOException("Not a Tune Composer file, or from a newer version");
+        }
+        int noteCount = buffer.getInt();
+        int structureLength = buffer.getInt();
+        // extent of the composition, not needed to rebuild it
+        buffer.position(buffer.position() + 4 * Integer.BYTES);
+        if ((noteCount < 0) || (structureLength < 0)
+                || (4L * noteCount + structureLength > fileSize)) {
+            throw new IOException("Composition file is damaged");
+        }
+        return new int[] {noteCount, structureLength};
+    }
+
+    /**
+     * Maps an int to one whose size follows its distance from 0, so that
+     * small negative numbers make short varints too.
+     *
+     * @param value the int
+     * @return the zigzag encoded int
+     */
+    private static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    /**
+     * Undoes zigzag().
+     *
+     * @param value the zigzag encoded int
+     * @return the int
+     */
+    private static int unzigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Puts an int into the buffer as an unsigned varint, seven bits a byte
+     * from the lowest, with the high bit set on every byte but the last.
+     *
+     * @param buffer buffer with room for MAX_VARINT_LENGTH bytes
+     * @param value the int
+     */
+    private static void putVarint(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    /**
+     * Gets an unsigned varint written by putVarint(), reading more of the
+     * file into the buffer as needed.
+     *
+     * @param buffer buffer being read
+     * @param channel file the buffer is filled from
+     * @return the int
+     * @throws IOException if the file ends or the varint is too long
+     */
+    private static int getVarint(ByteBuffer buffer, FileChannel channel) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 7 * MAX_VARINT_LENGTH; shift += 7) {
+            if (!buffer.hasRemaining()) {
+                fill(buffer, channel, 1);
+            }
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Composition file is damaged");
+    }
+
+    /**
+     * Reads more of the file into the buffer until at least the given number
+     * of bytes are left to get from it.
+     *
+     * @param buffer buffer being read
+     * @param channel file to read from
+     * @param needed number of bytes needed
+     * @throws IOException if the file ends first
+     */
+    private static void fill(ByteBuffer buffer, FileChannel channel, int needed)
+            throws IOException {
+        buffer.compact();
+        while (buffer.position() < needed) {
+            if (channel.read(buffer) == -1) {
+                throw new EOFException("Composition file ends too soon");
+            }
+        }
+        buffer.flip();
+    }
+
+    /**
+     * Writes out the buffer if it has less than the given number of bytes of
+     * room left, so that it can be put into without checking.
+     *
+     * @param buffer buffer being put into
+     * @param channel file to write to
+     * @param needed number of bytes of room needed
+     * @throws IOException if the file cannot be written
+     */
+    private static void makeRoom(ByteBuffer buffer, FileChannel channel, int needed)
+            throws IOException {
+        if (buffer.remaining() < needed) {
+            buffer.flip();
+            drain(buffer, channel);
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Writes everything left in the buffer to the file.
+     *
+     * @param buffer buffer to write, ready to be read from
+     * @param channel file to write to
+     * @throws IOException if the file cannot be written
+     */
+    private static void drain(ByteBuffer buffer, FileChannel channel) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
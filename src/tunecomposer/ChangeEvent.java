@@ -0,0 +1,32 @@
+package tunecomposer;
+
+/**
+ * The kinds of change posted on the ChangeEventBus.
+ */
+public enum ChangeEvent {
+    
+    /**
+     * The selected SoundObjects have changed.
+     */
+    SELECTION_CHANGED,
+    
+    /**
+     * SoundObjects have been added to or removed from the composition.
+     */
+    MODEL_CHANGED,
+    
+    /**
+     * The undo or redo stack has changed, or the composition has been saved.
+     */
+    UNDO_STACK_CHANGED,
+    
+    /**
+     * Playback has started or stopped.
+     */
+    TRANSPORT_CHANGED,
+    
+    /**
+     * The contents of the clipboard may have changed.
+     */
+    CLIPBOARD_CHANGED
+}
@@ -0,0 +1,111 @@
+package tunecomposer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+import javafx.application.Platform;
+
+/**
+ * Carries ChangeEvents from the parts of the program that change things to
+ * the parts that need to react, such as the menus.
+ *
+ * Events are not delivered as they are posted. Every event posted within one
+ * pulse is folded into a single delivery on the next pulse, and each listener
+ * is told which of the kinds it subscribed to have happened. Posting an event
+ * that is already waiting costs nothing, so the sources of events can post
+ * them as often as they change.
+ */
+public class ChangeEventBus {
+    
+    /**
+     * Receives the ChangeEvents that happened since the last delivery.
+     */
+    public interface Listener {
+        
+        /**
+         * Called once per pulse in which events the listener subscribed to
+         * were posted.
+         * 
+         * @param events the kinds of change that happened, never empty
+         */
+        void changed(Set<ChangeEvent> events);
+    }
+    
+    /**
+     * Listeners and the kinds of events each subscribed to, in the order
+     * they subscribed.
+     */
+    private static final ArrayList<Listener> listeners = new ArrayList<>();
+    private static final ArrayList<EnumSet<ChangeEvent>> subscriptions = new ArrayList<>();
+    
+    /**
+     * Events posted since the last delivery.
+     */
+    private static final EnumSet<ChangeEvent> pending = EnumSet.noneOf(ChangeEvent.class);
+    
+    /**
+     * Delivers the pending events at most once per pulse. Created on the
+     * first post, once the FX toolkit is running.
+     */
+    private static PulseCoalescer deliveryCoalescer;
+    
+    /**
+     * Subscribes the given listener to the given kinds of events.
+     * 
+     * @param events kinds of events the listener is told about
+     * @param listener the listener
+     */
+    public static void subscribe(Set<ChangeEvent> events, Listener listener) {
+        EnumSet<ChangeEvent> kinds = EnumSet.noneOf(ChangeEvent.class);
+        kinds.addAll(events);
+        listeners.add(listener);
+        subscriptions.add(kinds);
+    }
+    
+    /**
+     * Posts the given event, to be delivered on the next pulse along with
+     * every other event posted before then. May be called from any thread.
+     * 
+     * @param event the kind of change that happened
+     */
+    public static void post(ChangeEvent event) {
+        if (!Platform.isFxApplicationThread()) {
+            Platform.runLater(() -> {
+                post(event);
+            });
+            return;
+        }
+        pending.add(event);
+        if (deliveryCoalescer == null) {
+            deliveryCoalescer = new PulseCoalescer(ChangeEventBus::deliver);
+        }
+        deliveryCoalescer.request();
+    }
+    
+    /**
+     * Delivers the pending events now instead of on the next pulse, for when
+     * listeners must be up to date right away, such as before a menu shows.
+     */
+    public static void flush() {
+        if (deliveryCoalescer != null) {
+            deliveryCoalescer.flush();
+        }
+    }
+    
+    /**
+     * Tells each listener which of its kinds of events are pending.
+     * Events posted by the listeners themselves wait for the next pulse.
+     */
+    private static void deliver() {
+        EnumSet<ChangeEvent> delivered = EnumSet.copyOf(pending);
+        pending.clear();
+        for (int i = 0; i < listeners.size(); i++) {
+            EnumSet<ChangeEvent> events = EnumSet.copyOf(subscriptions.get(i));
+            events.retainAll(delivered);
+            if (!events.isEmpty()) {
+                listeners.get(i).changed(Collections.unmodifiableSet(events));
+            }
+        }
+    }
+}
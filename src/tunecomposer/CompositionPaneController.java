@@ -1,13 +1,18 @@
 package tunecomposer;
 
 import java.util.ArrayList;
+import java.util.List;
 import javafx.fxml.FXML;
 import javafx.fxml.Initializable;
+import javafx.geometry.BoundingBox;
+import javafx.geometry.Bounds;
 import javafx.scene.Node;
 import javafx.scene.control.ScrollPane;
 import javafx.scene.input.MouseEvent;
 import javafx.scene.layout.Pane;
+import javafx.scene.layout.StackPane;
 import javafx.scene.shape.Rectangle;
+import javafx.scene.transform.Scale;
 import tunecomposer.actionclasses.Action;
 import tunecomposer.actionclasses.AddNoteAction;
 import tunecomposer.actionclasses.SelectAction;
@@ -28,6 +33,29 @@ public class CompositionPaneController implements Initializable {
      */
     public static final int PANE_Y_MAX = 1280;
     
+    /**
+     * Limits of the horizontal and vertical zoom, in screen pixels per 
+     * composition pixel, and the factor each zoom step changes it by.
+     */
+    public static final double MIN_ZOOM_X = 1.0 / 32;
+    public static final double MAX_ZOOM_X = 4;
+    public static final double MIN_ZOOM_Y = 0.25;
+    public static final double MAX_ZOOM_Y = 4;
+    private static final double ZOOM_STEP = 2;
+    
+    /**
+     * Distance in screen pixels the red bar is kept from the left edge of 
+     * the view when the view turns the page to follow it.
+     */
+    private static final double FOLLOW_MARGIN = 40;
+    
+    /**
+     * Current horizontal and vertical zoom. Only the view is scaled, 
+     * SoundObjects keep their positions in composition pixels.
+     */
+    private static double zoomX = 1;
+    private static double zoomY = 1;
+    
     /**
      * Used by play and playSelected to determine where to begin play.
      */
@@ -51,6 +79,17 @@ public class CompositionPaneController implements Initializable {
     @FXML
     public ScrollPane scrollPane;
     
+    /**
+     * StackPane holding all the layers of the composition. Scaled to zoom.
+     */
+    @FXML
+    public StackPane compositionPane;
+    
+    /**
+     * Scale applied to compositionPane, kept equal to zoomX and zoomY.
+     */
+    private final Scale zoomScale = new Scale(1, 1, 0, 0);
+    
     /**
      * Controller for pane that holds all SoundObject visuals.
      */
@@ -69,11 +108,30 @@ public class CompositionPaneController implements Initializable {
     @FXML
     public RedBarPaneController redBarPaneController;
     
+    /**
+     * Controller for pane that holds the staff lines, measure lines and 
+     * pitch labels.
+     */
+    @FXML
+    public NoteLinesPaneController noteLinesPaneController;
+    
+    /**
+     * Gets the part of the composition ahead of the red bar ready while 
+     * playing.
+     */
+    public PlaybackPrefetcher playbackPrefetcher;
+    
     /**
      * Object that contains the undo and redo stack for the program. 
      */
     public ActionManager actionManager;
     
+    /**
+     * Runs operations on many SoundObjects a slice at a time, so the window
+     * keeps responding while they run.
+     */
+    public TimeSlicedScheduler scheduler;
+    
     /**
      * Selection Actions used in tandem to record which notes states have been
      * changed during the current click.
@@ -95,6 +153,19 @@ public class CompositionPaneController implements Initializable {
      */
     private ArrayList<SoundObject> wasSelected;
     
+    /**
+     * Latest mouse location given to handlePaneDragged.
+     * Applied to the selection window at most once per pulse.
+     */
+    private double paneDragX;
+    private double paneDragY;
+    
+    /**
+     * Folds all pane drag events received within one pulse into a single
+     * selection window update.
+     */
+    private PulseCoalescer paneDragCoalescer;
+    
     /**
      * Creates TunePlayer and ActionManger objects, then sets 
      * SoundObjectPaneController to reference the same ActionManager object.
@@ -107,17 +178,201 @@ public class CompositionPaneController implements Initializable {
     public void initialize(java.net.URL location, java.util.ResourceBundle resources) {
         tunePlayerObj = new TunePlayer();
         actionManager = new ActionManager();
+        scheduler = new TimeSlicedScheduler();
+        compositionPane.disableProperty().bind(scheduler.runningProperty());
         soundObjectPaneController.setActionManager(actionManager);
         soundObjectPaneController.setCompositionPaneController(this);
+        paneDragCoalescer = new PulseCoalescer(this::applyPaneDrag);
+        SoundObjectViewport.of(soundObjectPane).setScrollPane(scrollPane);
+        noteLinesPaneController.setScrollPane(scrollPane);
+        compositionPane.getTransforms().add(zoomScale);
+        
+        playbackPrefetcher = new PlaybackPrefetcher(scrollPane, 
+                SoundObjectViewport.of(soundObjectPane), noteLinesPaneController,
+                redBarPaneController.redBarXProperty());
+        redBarPaneController.redBarXProperty().addListener((observable) -> {
+            followRedBar();
+        });
+        redBarPaneController.redBarVisibleProperty().addListener((observable) -> {
+            if (redBarPaneController.redBarVisibleProperty().get()) {
+                followRedBar();
+                playbackPrefetcher.begin();
+            }
+            else {
+                playbackPrefetcher.end();
+            }
+        });
     }   
     
+    /**
+     * Returns the part of the composition that is visible in the given 
+     * ScrollPane at the current zoom. If the ScrollPane is null, then returns
+     * the whole composition.
+     * 
+     * @param scrollPane the ScrollPane the composition is viewed through
+     * @return bounds of the visible area in composition coordinates
+     */
+    public static Bounds getVisibleBounds(ScrollPane scrollPane) {
+        if (scrollPane == null) {
+            return new BoundingBox(0, 0, PANE_X_MAX, PANE_Y_MAX);
+        }
+        double paneWidth = PANE_X_MAX * zoomX;
+        double paneHeight = PANE_Y_MAX * zoomY;
+
+        Bounds viewportBounds = scrollPane.getViewportBounds();
+        double viewportWidth = viewportBounds.getWidth();
+        double viewportHeight = viewportBounds.getHeight();
+
+        double hRange = scrollPane.getHmax() - scrollPane.getHmin();
+        double vRange = scrollPane.getVmax() - scrollPane.getVmin();
+        double hFraction = (hRange == 0) ? 0
+                : (scrollPane.getHvalue() - scrollPane.getHmin()) / hRange;
+        double vFraction = (vRange == 0) ? 0
+                : (scrollPane.getVvalue() - scrollPane.getVmin()) / vRange;
+
+        double minX = Math.max(0, paneWidth - viewportWidth) * hFraction;
+        double minY = Math.max(0, paneHeight - viewportHeight) * vFraction;
+        return new BoundingBox(minX / zoomX, minY / zoomY, 
+                viewportWidth / zoomX, viewportHeight / zoomY);
+    }
+    
+    /**
+     * Returns the current horizontal zoom.
+     * 
+     * @return screen pixels per composition pixel, horizontally
+     */
+    public static double getZoomX() {
+        return zoomX;
+    }
+    
+    /**
+     * Returns the current vertical zoom.
+     * 
+     * @return screen pixels per composition pixel, vertically
+     */
+    public static double getZoomY() {
+        return zoomY;
+    }
+    
+    /**
+     * Sets the zoom of the composition view, limited to the MIN and MAX zoom
+     * constants, keeping the center of the view in place. 
+     * 
+     * @param newZoomX screen pixels per composition pixel, horizontally
+     * @param newZoomY screen pixels per composition pixel, vertically
+     */
+    public void setZoom(double newZoomX, double newZoomY) {
+        Bounds visible = getVisibleBounds(scrollPane);
+        
+        zoomX = Math.max(MIN_ZOOM_X, Math.min(MAX_ZOOM_X, newZoomX));
+        zoomY = Math.max(MIN_ZOOM_Y, Math.min(MAX_ZOOM_Y, newZoomY));
+        zoomScale.setX(zoomX);
+        zoomScale.setY(zoomY);
+        scrollPane.layout();
+        scrollTo(visible.getMinX() + visible.getWidth() / 2, 
+                visible.getMinY() + visible.getHeight() / 2);
+        
+        SoundObjectViewport.of(soundObjectPane).requestRefresh();
+        noteLinesPaneController.repaint();
+    }
+    
+    /**
+     * Zooms the composition view in horizontally by one step.
+     */
+    public void zoomIn() {
+        setZoom(zoomX * ZOOM_STEP, zoomY);
+    }
+    
+    /**
+     * Zooms the composition view out horizontally by one step.
+     */
+    public void zoomOut() {
+        setZoom(zoomX / ZOOM_STEP, zoomY);
+    }
+    
+    /**
+     * Zooms the composition view in vertically by one step.
+     */
+    public void zoomInVertically() {
+        setZoom(zoomX, zoomY * ZOOM_STEP);
+    }
+    
+    /**
+     * Zooms the composition view out vertically by one step.
+     */
+    public void zoomOutVertically() {
+        setZoom(zoomX, zoomY / ZOOM_STEP);
+    }
+    
+    /**
+     * Sets the zoom of the composition view back to one screen pixel per
+     * composition pixel.
+     */
+    public void resetZoom() {
+        setZoom(1, 1);
+    }
+    
+    /**
+     * Scrolls the view so the given point of the composition is at its 
+     * center, or as close to it as the edges of the composition allow.
+     * 
+     * @param x x coordinate in composition pixels
+     * @param y y coordinate in composition pixels
+     */
+    public void scrollTo(double x, double y) {
+        Bounds viewportBounds = scrollPane.getViewportBounds();
+        double hScrollable = PANE_X_MAX * zoomX - viewportBounds.getWidth();
+        double vScrollable = PANE_Y_MAX * zoomY - viewportBounds.getHeight();
+        
+        double hFraction = (hScrollable <= 0) ? 0 
+                : (x * zoomX - viewportBounds.getWidth() / 2) / hScrollable;
+        double vFraction = (vScrollable <= 0) ? 0 
+                : (y * zoomY - viewportBounds.getHeight() / 2) / vScrollable;
+        hFraction = Math.max(0, Math.min(1, hFraction));
+        vFraction = Math.max(0, Math.min(1, vFraction));
+        
+        scrollPane.setHvalue(scrollPane.getHmin() 
+                + hFraction * (scrollPane.getHmax() - scrollPane.getHmin()));
+        scrollPane.setVvalue(scrollPane.getVmin() 
+                + vFraction * (scrollPane.getVmax() - scrollPane.getVmin()));
+    }
+    
+    /**
+     * Turns the page when the red bar leaves the view while playing, so the
+     * red bar is FOLLOW_MARGIN from the left edge of the new page.
+     */
+    private void followRedBar() {
+        if (!redBarPaneController.redBarVisibleProperty().get()) {
+            return;
+        }
+        double tick = redBarPaneController.redBarXProperty().get();
+        Bounds visible = getVisibleBounds(scrollPane);
+        if ((tick >= visible.getMinX()) && (tick <= visible.getMaxX())) {
+            return;
+        }
+        scrollTo(tick - FOLLOW_MARGIN / zoomX + visible.getWidth() / 2,
+                visible.getMinY() + visible.getHeight() / 2);
+    }
+    
+    /**
+     * Turns canvas rendering of the SoundObjects on or off.
+     * With it on, notes and gestures are drawn onto a Canvas rather than
+     * shown as nodes, for very large compositions.
+     * 
+     * @param on true to draw the SoundObjects onto a Canvas
+     */
+    public void setCanvasRendering(boolean on) {
+        SoundObjectViewport.of(soundObjectPane).setCanvasMode(on);
+    }
+    
     /**
      * Plays the current composition on the CompositionPane.
      */
     public void play() {
         startTick = 0;
-        tunePlayerObj.play(soundObjectPane.getChildren(), startTick);
-        redBarPaneController.playAnimation(soundObjectPane.getChildren(), startTick);
+        List<Node> sObjNodes = SoundObjectViewport.getSoundObjectNodes(soundObjectPane);
+        tunePlayerObj.play(sObjNodes, startTick);
+        redBarPaneController.playAnimation(sObjNodes, startTick);
     }
     
     /**
@@ -126,7 +381,7 @@ public class CompositionPaneController implements Initializable {
     public void playSelected() {
         ArrayList<Node> selectedNotes = new ArrayList();
         startTick = PANE_X_MAX;
-        soundObjectPane.getChildren().forEach((n) -> {
+        SoundObjectViewport.getSoundObjectNodes(soundObjectPane).forEach((n) -> {
             Rectangle r = (Rectangle) n;
             SoundObject sObj = (SoundObject) r.getUserData();
             if (sObj.isSelected()) {
@@ -227,13 +482,15 @@ public class CompositionPaneController implements Initializable {
        
     /**
      * Overwrites selectedObjs and unselectedObjs into their respective actions
-     * and executes both actions.
+     * and executes both actions, rescanning the selected array once.
      */
     private void updateDragActions() {
         selectAction.changeAffectedObjs(selectObjs);
         unselectAction.changeAffectedObjs(unselectObjs);
+        SoundObjectPaneController.deferSelectionUpdates();
         unselectAction.execute();
         selectAction.execute();
+        SoundObjectPaneController.resumeSelectionUpdates();
     }
     
     /**
@@ -287,7 +544,7 @@ public class CompositionPaneController implements Initializable {
         
         
         if (!event.isControlDown()) {
-            for (Node n : soundObjectPane.getChildren()) {
+            for (Node n : SoundObjectViewport.getSoundObjectNodes(soundObjectPane)) {
                 Rectangle r = (Rectangle) n;
                 SoundObject s = (SoundObject) r.getUserData();
                 if (s.isSelected()) {
@@ -316,6 +573,7 @@ public class CompositionPaneController implements Initializable {
      */
     @FXML
     protected void handlePanePressed(MouseEvent event) {
+        paneDragCoalescer.cancel();
         resetClickHandlerFields();
         
         tunePlayerObj.stop();
@@ -349,18 +607,29 @@ public class CompositionPaneController implements Initializable {
 
     /**
      * Handles mouse dragged on the SoundObjectPane. 
-     * Drags selection window, highlights notes intersecting the window and 
-     * updates selected notes based on control button.
+     * Records the mouse location, and requests that the selection window is
+     * updated to it on the next pulse by applyPaneDrag().
      * 
      * @param event the mouse click event
      */
     @FXML
     protected void handlePaneDragged(MouseEvent event) {        
+        paneDragX = event.getX();
+        paneDragY = event.getY();
+        paneDragCoalescer.request();
+    };
+    
+    /**
+     * Drags selection window to the latest recorded mouse location, highlights
+     * notes intersecting the window and updates selected notes based on 
+     * control button. Run by paneDragCoalescer at most once per pulse.
+     */
+    private void applyPaneDrag() {
         selectionWindowPaneController.SELECTION_WINDOW.setVisible(true);
         
-        selectionWindowPaneController.translateWindow(event.getX(), event.getY());
+        selectionWindowPaneController.translateWindow(paneDragX, paneDragY);
         
-        for (Node n: soundObjectPane.getChildren()) {
+        for (Node n: SoundObjectViewport.getSoundObjectNodes(soundObjectPane)) {
             Rectangle r = (Rectangle) n;
             SoundObject sObj = (SoundObject) r.getUserData();
             if (!SoundObjectPaneController.TEMP_SELECTED_SOUNDOBJ_ARRAY.contains(sObj)) {
@@ -370,18 +639,21 @@ public class CompositionPaneController implements Initializable {
         
         updateDragActions();
         SoundObjectPaneController.staticUpdateSelectedArray(soundObjectPane);
-    };
+    }
     
     /**
      * Handles mouse released event. 
      * Removes the selection window from the pane, then creates a new note and 
      * adds note to pane. If control is clicked notes remain selected, otherwise 
-     * selected notes are cleared. Also updates selected notes.
+     * selected notes are cleared. Also updates selected notes. The actions are
+     * run in one transaction, so the selected array is rescanned once.
      * 
      * @param event the mouse click event
      */
     @FXML
     protected void handlePaneReleased(MouseEvent event) {
+        paneDragCoalescer.flush();
+        paneDragCoalescer.reportCounts("Selection window");
         ArrayList<Action> arrayOfMouseActions = new ArrayList<>();
         selectionWindowPaneController.SELECTION_WINDOW.setVisible(false);
         SoundObjectPaneController.TEMP_SELECTED_SOUNDOBJ_ARRAY.clear();
@@ -407,10 +679,10 @@ public class CompositionPaneController implements Initializable {
         arrayOfMouseActions.add(selectAction);
         }
         
+        actionManager.beginTransaction();
         actionManager.execute(arrayOfMouseActions);
-        actionManager.putInUndoStack(arrayOfMouseActions);
-        
         SoundObjectPaneController.staticUpdateSelectedArray(soundObjectPane);
+        actionManager.commit();
     };
 
         
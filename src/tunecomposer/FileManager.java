@@ -9,9 +9,12 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.Writer;
 import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.Observable;
+import java.util.HashSet;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import javafx.collections.ObservableList;
 import javafx.scene.control.ButtonBar.ButtonData;
 import javafx.scene.control.ButtonType;
 import javafx.scene.Node;
@@ -21,13 +24,18 @@ import javafx.scene.layout.Pane;
 import javafx.scene.shape.Rectangle;
 import javafx.stage.FileChooser;
 import javafx.stage.Stage;
-import static tunecomposer.SoundObjectParser.soundObjsToXML;
 import tunecomposer.actionclasses.Action;
 
 /**
  * Handles the creation, saving and opening of files.
  */
-public class FileManager extends Observable {
+public class FileManager {
+    
+    /**
+     * Size of the buffer a file is written through when it is saved, in
+     * characters. The file is written a buffer at a time whatever its size.
+     */
+    private static final int SAVE_BUFFER_SIZE = 64 * 1024;
     
     /**
      * Path to the file that is currently loaded in the composition pane.
@@ -56,16 +64,31 @@ public class FileManager extends Observable {
      */
     private Pane soundObjPane;
     
+    /**
+     * Scheduler that adds the SoundObjects of an opened file to the pane a
+     * slice at a time.
+     */
+    private TimeSlicedScheduler scheduler;
+    
+    /**
+     * Journal of the changes made since the composition was last saved.
+     */
+    private final ActionJournal journal;
+    
     /**
      * Initializes all the fields, used to prepare for saving and loading. Not 
      * for building FileManager object before saving or loading.
      * @param aManager ActionManager for the compositionPane wish to save/load
      * @param sObjPane pane to save and load soundObjects from/to
+     * @param scheduler scheduler to load SoundObjects onto the pane with
      */
-    public FileManager(Pane sObjPane, ActionManager aManager) {
+    public FileManager(Pane sObjPane, ActionManager aManager, 
+            TimeSlicedScheduler scheduler) {
         actionManager = aManager;
         soundObjPane = sObjPane;
-        
+        this.scheduler = scheduler;
+        journal = new ActionJournal(sObjPane, aManager);
+        actionManager.setJournal(journal);
     }
     
     /**
@@ -78,11 +101,13 @@ public class FileManager extends Observable {
             if (promptToSave()){
                 clearSession();
                 filePath = null;
+                journal.start(filePath);
             }
         }
         else{
             clearSession();
             filePath = null;
+            journal.start(filePath);
         }
     }
     
@@ -90,6 +115,11 @@ public class FileManager extends Observable {
      * Saves the current state of the composition pane to the file in filePath.
      * Does not check to see if filePath is null. Will create a new file if file
      * in filePath does not exist. Will overwrite data stored in filePath.
+     * If filePath ends in .tcb, then the composition is written in the 
+     * binary format of BinaryCompositionFormat. Otherwise the SoundObjects
+     * are written straight to the file as text one at a time, so the whole
+     * composition is never held as one string.
+     * The journal then starts over, empty, next to the saved file.
      */
     public void save(){
         if (!hasSavedAs()){
@@ -102,11 +132,17 @@ public class FileManager extends Observable {
         else{
             try{
                 File file = new File(filePath);
-                Writer out = new BufferedWriter(new FileWriter(file));
-                String parseStr = getPaneObjectsAsString();
-                out.write(parseStr);
+                if (BinaryCompositionFormat.isBinaryPath(filePath)) {
+                    BinaryCompositionFormat.write(
+                            SoundObjectSnapshot.of(getTopLevelObjects()), file.toPath());
+                }
+                else {
+                    try (Writer out = new BufferedWriter(new FileWriter(file), SAVE_BUFFER_SIZE)) {
+                        writePaneObjects(out);
+                    }
+                }
                 updateLastSaveAction();
-                out.close();
+                journal.start(filePath);
             }
             catch (Exception e){
                 System.err.println("Error: " + e.getMessage());
@@ -141,6 +177,15 @@ public class FileManager extends Observable {
      * Prompts user to chose a file to open, and loads it into the compositionPane.
      * If file has not been saved before open() is called, then will prompt user
      * to save the current pane before opening another file.
+     * Files ending in .tcb are read in the binary format of 
+     * BinaryCompositionFormat, and other files as text.
+     * The SoundObjects are parsed on worker threads by a SoundObjectLoader,
+     * then added to the pane a batch at a time. Once loaded, any changes left
+     * in the file's journal by a run that stopped without saving are replayed.
+     * If loading is cancelled or fails, then the pane is left empty and not 
+     * associated to a file. A binary file whose header cannot be read is 
+     * reported before anything is cleared, and the current composition is
+     * kept.
      */
     public void open(){
         if (hasUnsavedChanges()){
@@ -149,29 +194,106 @@ public class FileManager extends Observable {
             }
         }
 
+        String previousPath = filePath;
         if (promptOpenFilePath()){
-            try{
-                FileReader fileRead = new FileReader(filePath);
-                BufferedReader buffRead = new BufferedReader(fileRead);
-                try{
+            CompletableFuture<ArrayList<SoundObject>> loading;
+            if (BinaryCompositionFormat.isBinaryPath(filePath)) {
+                try {
+                    BinaryCompositionFormat.checkHeader(Paths.get(filePath));
+                }
+                catch (IOException ex) {
+                    showOpenFailure(ex.getMessage());
+                    filePath = previousPath;
+                    return;
+                }
+                loading = SoundObjectLoader.readBinary(filePath, soundObjPane, actionManager);
+            }
+            else {
+                try (BufferedReader buffRead = new BufferedReader(new FileReader(filePath))) {
                     String fileText = buffRead.readLine();
-                    SoundObjectParser parser = 
-                            new SoundObjectParser(fileText,soundObjPane, actionManager);
-                    clearSession();
-                    parser.parseString().forEach((sObj) -> {
-                        sObj.addToPane(soundObjPane);
-                    });
-                    setChanged();
-                    notifyObservers();
+                    loading = SoundObjectLoader.parse(fileText, soundObjPane, actionManager);
+                }
+                catch(FileNotFoundException ex){
+                    System.err.println("Unable to open file '" + filePath + "'");
+                    return;
                 }
                 catch(IOException ex){
                     System.err.println("An error occured while reading the file");
+                    return;
                 }
             }
-            catch(FileNotFoundException ex){
-                System.err.println("Unable to open file '" + filePath + "'");
-            } 
+            journal.discard(false);
+            clearSession();
+            ObservableList<Node> sObjNodes = 
+                    SoundObjectViewport.getSoundObjectNodes(soundObjPane);
+            SlicedJob job = new SlicedJob("Opening " + new File(filePath).getName());
+            job.addPhase(loading.thenApply(SoundObjectLoader::batchVisualRectangles), 
+                    (batch) -> {
+                sObjNodes.addAll(batch);
+            }, (batch) -> {
+                sObjNodes.removeAll(new HashSet<>(batch));
+            });
+            job.setOnFinished(this::recoverUnsavedChanges);
+            job.setOnCancelled(() -> {
+                filePath = null;
+                journal.start(filePath);
+            });
+            scheduler.schedule(job);
+        }
+    }
+    
+    /**
+     * Tells the user that the chosen file could not be opened, and why.
+     * 
+     * @param reason why the file could not be read
+     */
+    private void showOpenFailure(String reason) {
+        Alert alert = new Alert(NONE);
+        alert.setTitle("Open");
+        alert.setContentText("Unable to open " + new File(filePath).getName() 
+                + ": " + reason);
+        alert.getButtonTypes().setAll(ButtonType.OK);
+        alert.showAndWait();
+    }
+    
+    /**
+     * Replays the changes left in the journal of the current file, or of the
+     * unsaved composition if there is no file, by a run of the program that
+     * stopped without saving them. The recovered changes are unsaved.
+     * Journaling then carries on for the current file.
+     * 
+     * Tells the user what was recovered, and if some of the changes could
+     * not be, that the composition is as it was before the first of those.
+     * The alert is not waited on, since this may run during a pulse.
+     */
+    public void recoverUnsavedChanges() {
+        int recovered = journal.resume(filePath);
+        int dropped = journal.getDroppedCount();
+        if (recovered > 0) {
+            lastSaveAction = new ArrayList<>();
+            ChangeEventBus.post(ChangeEvent.UNDO_STACK_CHANGED);
+        }
+        if ((recovered == 0) && (dropped == 0)) {
+            return;
+        }
+        
+        Alert alert = new Alert(NONE);
+        alert.setTitle("Recover Unsaved Changes");
+        if (dropped == 0) {
+            alert.setContentText("Recovered " + recovered 
+                    + ((recovered == 1) ? " change" : " changes")
+                    + " that were not saved when Tune Composer last closed.");
         }
+        else {
+            alert.setContentText("Only " + recovered + " of " 
+                    + (recovered + dropped) 
+                    + " changes that were not saved when Tune Composer last "
+                    + "closed could be recovered. The composition is as it was "
+                    + "before the first change that could not be, and the rest "
+                    + "have been discarded.");
+        }
+        alert.getButtonTypes().setAll(ButtonType.OK);
+        alert.show();
     }
     
     /**
@@ -180,38 +302,51 @@ public class FileManager extends Observable {
      * Also returns true if the file has never been saved or if filePath is null.
      * @return 
      */
-    @Override
     public boolean hasChanged() {
         return false;
     }
     
     /**
-     * Update lastSaveAction from top of undoStack in actionManger.
+     * Update lastSaveAction from top of undoStack in actionManger, and stop
+     * later edits from being merged into it.
      * If the stack is empty, then sets lastSaveAction to null.
      */
     private void updateLastSaveAction() {
-        setChanged();
         lastSaveAction = actionManager.peekUndoStack();
-        notifyObservers();
+        actionManager.stopCoalescing();
+        ChangeEventBus.post(ChangeEvent.UNDO_STACK_CHANGED);
+    }
+    
+    /**
+     * Returns every top-level SoundObject on soundObjPane, in the order they
+     * are on the pane.
+     * @return the top-level SoundObjects
+     */
+    private ArrayList<SoundObject> getTopLevelObjects() {
+        ArrayList<SoundObject> itemsArray = new ArrayList<>();
+        for (Node n: SoundObjectViewport.getSoundObjectNodes(soundObjPane)) {
+            SoundObject sObj = (SoundObject) n.getUserData();
+            if (sObj.getTopGesture() == null) {
+                itemsArray.add(sObj);
+            }
+        }
+        return itemsArray;
     }
     
     /**
-     * Get the string representation of the entire soundObjectPane.
-     * Returns the found string. If pane empty, then returns empty String. 
-     * String must be in the format that soundObjectParser expects for loading. 
-     * Does not perform any error checking on the string. 
-     * @return string representing all soundObjects in this.soundObjectPane
+     * Writes every top-level SoundObject on soundObjPane to the given writer,
+     * in the order they are on the pane.
+     * @param out writer to write the SoundObjects to
+     * @throws IOException if the writer fails
      */
-    private String getPaneObjectsAsString() {
-        ArrayList<SoundObject> itemsArray = new ArrayList();
-        for (Node n: soundObjPane.getChildren()) {
+    private void writePaneObjects(Writer out) throws IOException {
+        for (Node n: SoundObjectViewport.getSoundObjectNodes(soundObjPane)) {
             Rectangle r = (Rectangle) n;
             SoundObject sObj = (SoundObject) (r).getUserData();
             if (sObj.getTopGesture() == null) {
-                itemsArray.add(sObj);
+                sObj.writeXML(out);
             }
         }
-        return soundObjsToXML(itemsArray);
     }
     
     /**
@@ -220,12 +355,9 @@ public class FileManager extends Observable {
      * Used for "new".
      */
     private void clearSession(){
-        setChanged();
-        soundObjPane.getChildren().clear();
-        actionManager.undoStack.clear();
-        actionManager.redoStack.clear();
+        SoundObjectViewport.getSoundObjectNodes(soundObjPane).clear();
+        actionManager.clearHistory();
         lastSaveAction = null;
-        notifyObservers();
     }
     
     /**
@@ -304,7 +436,11 @@ public class FileManager extends Observable {
         FileChooser fileChooser = new FileChooser();
         fileChooser.setTitle("Open Resource File");
         fileChooser.getExtensionFilters().addAll(
-             new FileChooser.ExtensionFilter("Text Files", "*.txt"));
+             new FileChooser.ExtensionFilter("Tune Composer Files", 
+                     "*.txt", "*" + BinaryCompositionFormat.EXTENSION),
+             new FileChooser.ExtensionFilter("Text Files", "*.txt"),
+             new FileChooser.ExtensionFilter("Binary Files", 
+                     "*" + BinaryCompositionFormat.EXTENSION));
         File selectedFile = fileChooser.showOpenDialog(choosingStage);
         if (selectedFile != null) {
             filePath = selectedFile.getPath();
@@ -316,7 +452,8 @@ public class FileManager extends Observable {
     /**
      * Prompt the user to choose where to save the file, and what to name it,
      * returns the selected path.
-     * The name of the file always ends in .txt. If the user pressed 'cancel', 
+     * The name of the file always ends in .txt or .tcb, whichever type of
+     * file the user chose. If the user pressed 'cancel', 
      * then null is returned.
      * @return
      *      String of chosen path, null if save was canceled 
@@ -325,11 +462,20 @@ public class FileManager extends Observable {
             Stage stage = new Stage();
             FileChooser fileChooser = new FileChooser();
             fileChooser.setTitle("Save As");
+            FileChooser.ExtensionFilter binaryFilter = new FileChooser.ExtensionFilter(
+                    "Binary Files", "*" + BinaryCompositionFormat.EXTENSION);
+            fileChooser.getExtensionFilters().addAll(
+                    new FileChooser.ExtensionFilter("Text Files", "*.txt"), binaryFilter);
             File file = fileChooser.showSaveDialog(stage);
             if (file != null) {
                 String path = file.getPath();
-                if (!path.endsWith(".txt")) {
-                    path += ".txt";
+                if (!path.endsWith(".txt") && !BinaryCompositionFormat.isBinaryPath(path)) {
+                    if (fileChooser.getSelectedExtensionFilter() == binaryFilter) {
+                        path += BinaryCompositionFormat.EXTENSION;
+                    }
+                    else {
+                        path += ".txt";
+                    }
                 }
                 return path;
             }
@@ -347,15 +493,21 @@ public class FileManager extends Observable {
     
     /**
      * Prompts user to exit.
+     * If the user goes on, the changes are saved or thrown away, so the
+     * journal is deleted.
      * 
      * @return boolean
      *             returns true if we want to exit
      */
     public boolean promptToExit(){
+        boolean exit = true;
         if (hasUnsavedChanges()){
-            return promptToSave();
+            exit = promptToSave();
+        }
+        if (exit) {
+            journal.discard(true);
         }
-        return true;
+        return exit;
     }
     
 }
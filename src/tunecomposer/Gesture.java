@@ -1,6 +1,10 @@
 package tunecomposer;
+import java.io.IOException;
+import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Collection;
 import javafx.event.EventHandler;
+import javafx.scene.Node;
 import javafx.scene.input.MouseEvent;
 import javafx.scene.layout.Pane;
 import javafx.scene.shape.Rectangle;
@@ -78,7 +82,7 @@ public final class Gesture extends SoundObject{
         refreshVisualRectangle();
         startTick = (int) visualRectangle.getX();
         
-        select();
+        markSelected();
     }
     
     /**
@@ -127,14 +131,23 @@ public final class Gesture extends SoundObject{
      */
     @Override
     public void select(){
+        markSelected();
+        SoundObjectPaneController.staticUpdateSelectedArray(soundObjectPane); 
+    }
+    
+    /**
+     * Sets this gesture and everything within it as selected, without
+     * updating the selected array.
+     */
+    @Override
+    void markSelected(){
         this.containedSoundObjects.forEach((note) -> {
-            note.select();
+            note.markSelected();
         });
         
         selected = true;
         visualRectangle.getStyleClass().removeAll("unselectedGesture");
         visualRectangle.getStyleClass().add("selectedGesture");
-        SoundObjectPaneController.staticUpdateSelectedArray(soundObjectPane); 
     }
     
     /**
@@ -172,26 +185,6 @@ public final class Gesture extends SoundObject{
         });
     }
     
-    /**
-     * Sets previous instrument.
-     */
-    @Override
-    public void changeToPreviousInstrument() {
-        this.containedSoundObjects.forEach((note) -> {
-            note.changeToPreviousInstrument();
-        });
-    }
-    
-    /**
-     * Sets previous instrument.
-     */
-    @Override
-    public void setPreviousName() {
-        this.containedSoundObjects.forEach((note) -> {
-            note.setPreviousName();
-        });
-    }
-    
     /**
      * Returns true if the SoundObject is selected.
      * 
@@ -313,7 +306,8 @@ public final class Gesture extends SoundObject{
     }
     
     /**
-     * Adds the gesture to the given pane. 
+     * Adds the gesture to the given pane, with its contained SoundObjects,
+     * in one addAll(). 
      * Does not manage selection. Does not handle if given pane is null. 
      * Precondition: the gesture is not on the pane and the pane is not null.
      * 
@@ -321,32 +315,43 @@ public final class Gesture extends SoundObject{
      */
     @Override
     public void addToPane(Pane soundObjectPane) {
-        if (!soundObjectPane.getChildren().contains(visualRectangle)) {
-            soundObjectPane.getChildren().add(visualRectangle);
-
-        }
-        for (SoundObject sObj : containedSoundObjects) {
-            sObj.addToPane(soundObjectPane);
-        }
+        ArrayList<SoundObject> thisGesture = new ArrayList<>();
+        thisGesture.add(this);
+        SoundObject.addAllToPane(thisGesture, soundObjectPane);
     }
     
     /**
-     * Removes the gestureBox and all contained SoundObjects from given pane. 
-     * Does not change selection state. Does not handle if given pane is null.
+     * Removes the gestureBox and all contained SoundObjects from given pane
+     * in one pass. 
+     * Does not change selection state or rescan the selected array, like
+     * removeAllFromPane(); the caller rescans once it has removed everything.
+     * Does not handle if given pane is null.
      * Does not handle exceptions if Object can not be removed from given pane.
      * Precondition: the gesture is not on the pane.
      * @param soundObjectPane the pane to remove the gestureBox from
      */
     @Override
     public void removeFromPane(Pane soundObjectPane){    
-        containedSoundObjects.forEach((sObj) -> {
-            sObj.removeFromPane(soundObjectPane);
-        });
-        soundObjectPane.getChildren().remove(visualRectangle);
-        SoundObjectPaneController.staticUpdateSelectedArray(soundObjectPane);
+        ArrayList<SoundObject> thisGesture = new ArrayList<>();
+        thisGesture.add(this);
+        SoundObject.removeAllFromPane(thisGesture, soundObjectPane);
         //TODO need a method to reset handlers of children to what they would be without this group
     }
     
+    /**
+     * Adds the gestureBox and then the visualRectangles of all contained
+     * SoundObjects to the given list, in the order addToPane() adds them.
+     * 
+     * @param nodes list to add the visualRectangles to
+     */
+    @Override
+    public void collectVisualRectangles(Collection<Node> nodes) {
+        nodes.add(visualRectangle);
+        for (SoundObject sObj : containedSoundObjects) {
+            sObj.collectVisualRectangles(nodes);
+        }
+    }
+    
     /**
      * Method for recursively grabbing all children of this Gesture. 
      * Returns an ArrayList of all children below this object not including self.
@@ -394,7 +399,7 @@ public final class Gesture extends SoundObject{
      */
     public void group(Pane soundObjectPane) {
         refreshVisualRectangle();
-        soundObjectPane.getChildren().add(visualRectangle);
+        SoundObjectViewport.getSoundObjectNodes(soundObjectPane).add(visualRectangle);
         setTopGesture();
         SoundObjectPaneController.staticUpdateSelectedArray(soundObjectPane);
     }
@@ -408,7 +413,7 @@ public final class Gesture extends SoundObject{
      * @param soundObjectPane the value of soundObjectPane
      */
     public void ungroup(Pane soundObjectPane){    
-        soundObjectPane.getChildren().remove(visualRectangle);
+        SoundObjectViewport.getSoundObjectNodes(soundObjectPane).remove(visualRectangle);
         containedSoundObjects.forEach((sObj) -> {
             sObj.setHandlers();
             if (sObj.getTopGesture() == this) {
@@ -446,42 +451,30 @@ public final class Gesture extends SoundObject{
     
     /**
      * Handles gesture dragged event.
-     * Selects and drags to move the gesture or drags to change duration, 
-     * based on note click location conventions. Translates gesture and consumes 
-     * event. Also updates note lists.
+     * Records the mouse location to move the gesture or change its duration,
+     * based on note click location conventions, and consumes the event. The
+     * move or stretch is applied at most once per pulse by applyDrag().
      * 
      * @param event the mouse click event
      */
     EventHandler<MouseEvent> handleGestureDragged = (MouseEvent event) -> {
-        double x = event.getX();
-        double y = event.getY();
-
-        if (draggingLength) {
-            sObjStretch.stretch((int)(x - latestX));
-        }
-        else {
-            shiftNotePosition(x, y);
-        }
-        
-        if (draggingLength){
-            latestX = x;
-            latestY = y;
-        }
-        else if (!sObjMoveAction.isMoveFailed()){
-            latestX = x;
-            latestY = y;
-        }
+        requestDrag(event);
         event.consume();
     };
     
     /**
      * Handles mouse released.
-     * Snaps note into place on lines, handles click note selections
-     * based on the control button and consumes event.
+     * Applies and commits any drag in progress, snaps note into place on
+     * lines, handles click note selections based on the control button and
+     * consumes event.
      * 
      * @param event the mouse click event
      */
     EventHandler<MouseEvent> handleGestureReleased = (MouseEvent event) -> {        
+        flushDrag();
+        if (sObjMoveAction != null) {
+            sObjMoveAction.commitDrag();
+        }
         if (!event.isStillSincePress()) {
             if (draggingLength){
                 sObjStretch.setFinalX((int)latestX);
@@ -519,7 +512,7 @@ public final class Gesture extends SoundObject{
         else {
             sObjMoveAction = new MoveAction(
                 SoundObjectPaneController.SELECTED_SOUNDOBJECT_ARRAY,
-                latestX, latestY);
+                latestX, latestY, soundObjectPane);
         }
     }
     
@@ -548,23 +541,19 @@ public final class Gesture extends SoundObject{
     }
     
     /**
-     * Parser that converts a Gesture to a String to be used in the 
-     * Clipboard.
+     * Writes the Gesture and everything inside it in an XML-like format, to
+     * be saved or used in the Clipboard.
      * 
-     * @return String in an XML-like format
+     * @param out writer to write to
+     * @throws IOException if the writer fails
      */
     @Override
-    public String objectToXML(){
-        String result = "";
-	String startTag = "<gesture>";
-        String endTag = " </gesture>";
-        result = result + startTag;
-        
+    public void writeXML(Writer out) throws IOException {
+        out.write("<gesture>");
         for (SoundObject soundobject: containedSoundObjects) {
-            result = result + " " + soundobject.objectToXML();
+            out.write(' ');
+            soundobject.writeXML(out);
         }
-        
-        result = result + endTag;
-        return result;
+        out.write(" </gesture>");
     }
 }
@@ -0,0 +1,478 @@
+package tunecomposer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javafx.application.Platform;
+import javafx.beans.InvalidationListener;
+import javafx.collections.ListChangeListener;
+import javafx.collections.ObservableList;
+import javafx.fxml.FXML;
+import javafx.fxml.Initializable;
+import javafx.geometry.Bounds;
+import javafx.scene.Node;
+import javafx.scene.image.ImageView;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+import javafx.scene.input.MouseEvent;
+import javafx.scene.layout.Pane;
+import javafx.scene.paint.Color;
+import javafx.scene.shape.Rectangle;
+
+/**
+ * Controls the minimap strip that shows the whole composition: how densely
+ * each part is covered by notes of each instrument, the part currently in
+ * view, and the red bar while playing. Clicking or dragging on the minimap
+ * scrolls the composition there.
+ *
+ * The minimap image is split into chunks. When notes are added, removed or
+ * changed, only the chunks they cover are marked dirty. Once per pulse the
+ * notes of each dirty chunk are copied into a snapshot, and the snapshot is
+ * rasterized on a background thread. The finished pixels are written into the
+ * WritableImage back on the FX thread, so the FX thread never does more than
+ * bookkeeping, even while a large file is loading.
+ */
+public class MinimapPaneController implements Initializable {
+
+    /**
+     * Size of the minimap image in pixels. Each pixel covers TICKS_PER_PIXEL
+     * ticks and two pitch rows.
+     */
+    private static final int IMAGE_WIDTH = 1440;
+    private static final int IMAGE_HEIGHT = 64;
+    private static final double TICKS_PER_PIXEL =
+            (double) CompositionPaneController.PANE_X_MAX / IMAGE_WIDTH;
+    private static final double Y_PER_PIXEL =
+            (double) CompositionPaneController.PANE_Y_MAX / IMAGE_HEIGHT;
+
+    /**
+     * Width in pixels of each separately rasterized chunk of the image.
+     */
+    private static final int CHUNK_WIDTH = 64;
+    private static final int CHUNK_COUNT = (IMAGE_WIDTH + CHUNK_WIDTH - 1) / CHUNK_WIDTH;
+
+    /**
+     * Opacity of a pixel covered by part of a single note, and how much each
+     * further note covering it adds.
+     */
+    private static final double MIN_OPACITY = 0.4;
+    private static final double OPACITY_PER_NOTE = 0.3;
+
+    /**
+     * The pane the minimap is drawn on.
+     */
+    @FXML
+    public Pane minimapPane;
+
+    /**
+     * Shows the minimap image, stretched to the width of minimapPane.
+     */
+    @FXML
+    private ImageView minimapImage;
+
+    /**
+     * Outlines the part of the composition currently in view.
+     */
+    @FXML
+    private Rectangle MINIMAP_VIEWPORT;
+
+    /**
+     * Follows the red bar while the composition is playing.
+     */
+    @FXML
+    private Rectangle MINIMAP_PLAYHEAD;
+
+    /**
+     * Controller of the composition shown by the minimap.
+     */
+    private CompositionPaneController compositionPaneController;
+
+    /**
+     * Image the chunks are rasterized into.
+     */
+    private final WritableImage image = new WritableImage(IMAGE_WIDTH, IMAGE_HEIGHT);
+
+    /**
+     * Last recorded state of each note.
+     */
+    private final HashMap<Rectangle, MinimapNote> notes = new HashMap<>();
+
+    /**
+     * Notes overlapping each chunk of the image.
+     */
+    private final ArrayList<LinkedHashSet<MinimapNote>> chunkNotes = new ArrayList<>();
+
+    /**
+     * Chunks whose notes changed since they were last rasterized.
+     */
+    private final boolean[] dirtyChunks = new boolean[CHUNK_COUNT];
+
+    /**
+     * Snapshots dirty chunks and hands them to the renderer once per pulse.
+     */
+    private final PulseCoalescer renderCoalescer = new PulseCoalescer(this::renderDirtyChunks);
+
+    /**
+     * Background thread the chunks are rasterized on.
+     */
+    private final ExecutorService renderer = Executors.newSingleThreadExecutor((r) -> {
+        Thread thread = new Thread(r, "Minimap renderer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Sets up the image and overlays. The minimap stays empty until
+     * setCompositionPaneController() is called.
+     *
+     * @param location the source of the scene
+     * @param resources the resources of the utility of the scene
+     */
+    @FXML
+    @Override
+    public void initialize(java.net.URL location, java.util.ResourceBundle resources) {
+        for (int c = 0; c < CHUNK_COUNT; c++) {
+            chunkNotes.add(new LinkedHashSet<>());
+        }
+        minimapImage.setImage(image);
+        minimapImage.fitWidthProperty().bind(minimapPane.widthProperty());
+        minimapImage.fitHeightProperty().bind(minimapPane.heightProperty());
+
+        Rectangle clip = new Rectangle();
+        clip.widthProperty().bind(minimapPane.widthProperty());
+        clip.heightProperty().bind(minimapPane.heightProperty());
+        minimapPane.setClip(clip);
+
+        MINIMAP_PLAYHEAD.heightProperty().bind(minimapPane.heightProperty());
+        MINIMAP_PLAYHEAD.setVisible(false);
+    }
+
+    /**
+     * Sets the composition the minimap shows, draws all of its notes, and
+     * follows its notes, scrolling, zoom and red bar from then on.
+     * If given controller is null, then throws NullPointerException.
+     *
+     * @param controller controller of the composition to show
+     * @throws NullPointerException
+     */
+    public void setCompositionPaneController(CompositionPaneController controller)
+            throws NullPointerException {
+        if (controller == null) {
+            throw new NullPointerException();
+        }
+        compositionPaneController = controller;
+
+        SoundObjectViewport viewport = SoundObjectViewport.of(controller.soundObjectPane);
+        ObservableList<Node> sObjNodes = viewport.getSoundObjectNodes();
+        for (Node n : sObjNodes) {
+            addNote((Rectangle) n);
+        }
+        sObjNodes.addListener((ListChangeListener.Change<? extends Node> change) -> {
+            while (change.next()) {
+                for (Node n : change.getRemoved()) {
+                    removeNote((Rectangle) n);
+                }
+                for (Node n : change.getAddedSubList()) {
+                    addNote((Rectangle) n);
+                }
+            }
+        });
+        viewport.addRectangleListener((r) -> {
+            MinimapNote old = notes.get(r);
+            if ((old != null) && !old.isSameAs(r)) {
+                putNote(r, new MinimapNote(r));
+            }
+        });
+        for (int c = 0; c < CHUNK_COUNT; c++) {
+            markDirty(c);
+        }
+
+        InvalidationListener viewListener = (observable) -> {
+            updateViewportBox();
+        };
+        controller.scrollPane.hvalueProperty().addListener(viewListener);
+        controller.scrollPane.vvalueProperty().addListener(viewListener);
+        controller.scrollPane.viewportBoundsProperty().addListener(viewListener);
+        controller.compositionPane.boundsInParentProperty().addListener(viewListener);
+        minimapPane.widthProperty().addListener(viewListener);
+        minimapPane.heightProperty().addListener(viewListener);
+        updateViewportBox();
+
+        MINIMAP_PLAYHEAD.visibleProperty().bind(
+                controller.redBarPaneController.redBarVisibleProperty());
+        MINIMAP_PLAYHEAD.xProperty().bind(
+                controller.redBarPaneController.redBarXProperty()
+                        .multiply(minimapPane.widthProperty())
+                        .divide(CompositionPaneController.PANE_X_MAX));
+    }
+
+    /**
+     * Handles mouse press on the minimap by scrolling the composition so the
+     * clicked point is in the center of the view.
+     *
+     * @param event the mouse click event
+     */
+    @FXML
+    protected void handleMinimapPressed(MouseEvent event) {
+        scrollToMinimapPoint(event.getX(), event.getY());
+    }
+
+    /**
+     * Handles mouse drag on the minimap by keeping the point under the mouse
+     * in the center of the view.
+     *
+     * @param event the mouse drag event
+     */
+    @FXML
+    protected void handleMinimapDragged(MouseEvent event) {
+        scrollToMinimapPoint(event.getX(), event.getY());
+    }
+
+    /**
+     * Scrolls the composition to the point under the given minimap location.
+     *
+     * @param x x coordinate on minimapPane
+     * @param y y coordinate on minimapPane
+     */
+    private void scrollToMinimapPoint(double x, double y) {
+        if ((compositionPaneController == null) || (minimapPane.getWidth() <= 0)
+                || (minimapPane.getHeight() <= 0)) {
+            return;
+        }
+        compositionPaneController.scrollTo(
+                x * CompositionPaneController.PANE_X_MAX / minimapPane.getWidth(),
+                y * CompositionPaneController.PANE_Y_MAX / minimapPane.getHeight());
+    }
+
+    /**
+     * Moves the viewport box to outline the part of the composition in view.
+     */
+    private void updateViewportBox() {
+        Bounds visible = CompositionPaneController.getVisibleBounds(
+                compositionPaneController.scrollPane);
+        double scaleX = minimapPane.getWidth() / CompositionPaneController.PANE_X_MAX;
+        double scaleY = minimapPane.getHeight() / CompositionPaneController.PANE_Y_MAX;
+        MINIMAP_VIEWPORT.setX(visible.getMinX() * scaleX);
+        MINIMAP_VIEWPORT.setY(visible.getMinY() * scaleY);
+        MINIMAP_VIEWPORT.setWidth(Math.min(visible.getWidth(),
+                CompositionPaneController.PANE_X_MAX) * scaleX);
+        MINIMAP_VIEWPORT.setHeight(Math.min(visible.getHeight(),
+                CompositionPaneController.PANE_Y_MAX) * scaleY);
+    }
+
+    /**
+     * Records the given visualRectangle if it is a note. It is recorded again
+     * whenever the viewport reports a change to it.
+     *
+     * @param r visualRectangle added to the composition
+     */
+    private void addNote(Rectangle r) {
+        if (NoteDensityPyramid.isGesture(r) || notes.containsKey(r)) {
+            return;
+        }
+        putNote(r, new MinimapNote(r));
+    }
+
+    /**
+     * Forgets the given visualRectangle.
+     *
+     * @param r visualRectangle removed from the composition
+     */
+    private void removeNote(Rectangle r) {
+        if (!notes.containsKey(r)) {
+            return;
+        }
+        putNote(r, null);
+    }
+
+    /**
+     * Replaces the recorded state of a note, moving it between chunks and
+     * marking the chunks it left and entered as dirty.
+     *
+     * @param r the note's visualRectangle
+     * @param note new state of the note, or null to forget it
+     */
+    private void putNote(Rectangle r, MinimapNote note) {
+        MinimapNote old = (note == null) ? notes.remove(r) : notes.put(r, note);
+        if (old != null) {
+            for (int c = old.firstChunk(); c <= old.lastChunk(); c++) {
+                chunkNotes.get(c).remove(old);
+                markDirty(c);
+            }
+        }
+        if (note != null) {
+            for (int c = note.firstChunk(); c <= note.lastChunk(); c++) {
+                chunkNotes.get(c).add(note);
+                markDirty(c);
+            }
+        }
+    }
+
+    /**
+     * Marks a chunk as needing to be rasterized on the next pulse.
+     *
+     * @param chunk index of the chunk
+     */
+    private void markDirty(int chunk) {
+        dirtyChunks[chunk] = true;
+        renderCoalescer.request();
+    }
+
+    /**
+     * Copies the notes of every dirty chunk and hands the copies to the
+     * renderer thread. Run by renderCoalescer.
+     */
+    private void renderDirtyChunks() {
+        for (int c = 0; c < CHUNK_COUNT; c++) {
+            if (dirtyChunks[c]) {
+                dirtyChunks[c] = false;
+                int chunk = c;
+                MinimapNote[] snapshot = chunkNotes.get(c).toArray(new MinimapNote[0]);
+                renderer.execute(() -> {
+                    int[] pixels = rasterize(chunk, snapshot);
+                    Platform.runLater(() -> {
+                        int x = chunk * CHUNK_WIDTH;
+                        image.getPixelWriter().setPixels(x, 0, chunkWidth(chunk),
+                                IMAGE_HEIGHT, PixelFormat.getIntArgbInstance(), pixels, 0,
+                                chunkWidth(chunk));
+                    });
+                });
+            }
+        }
+    }
+
+    /**
+     * Rasterizes the given notes into the pixels of one chunk. Each pixel is
+     * the mix of the instrument colors covering it, weighted by how much of
+     * the pixel each note covers, and is more opaque the more notes cover it.
+     * Run on the renderer thread; only reads the given snapshot.
+     *
+     * @param chunk index of the chunk
+     * @param snapshot notes overlapping the chunk
+     * @return ARGB pixels of the chunk, row by row
+     */
+    private static int[] rasterize(int chunk, MinimapNote[] snapshot) {
+        int width = chunkWidth(chunk);
+        double chunkStart = chunk * CHUNK_WIDTH * TICKS_PER_PIXEL;
+        double[] red = new double[width * IMAGE_HEIGHT];
+        double[] green = new double[width * IMAGE_HEIGHT];
+        double[] blue = new double[width * IMAGE_HEIGHT];
+        double[] coverage = new double[width * IMAGE_HEIGHT];
+
+        for (MinimapNote note : snapshot) {
+            int row = Math.max(0, Math.min(IMAGE_HEIGHT - 1, (int) (note.y / Y_PER_PIXEL)));
+            double start = note.x - chunkStart;
+            double end = start + note.width;
+            int first = Math.max(0, (int) Math.floor(start / TICKS_PER_PIXEL));
+            int last = Math.min(width - 1, (int) Math.floor((end - 1) / TICKS_PER_PIXEL));
+            for (int px = first; px <= last; px++) {
+                double covered = Math.min(end, (px + 1) * TICKS_PER_PIXEL)
+                        - Math.max(start, px * TICKS_PER_PIXEL);
+                double amount = Math.max(0, covered) / TICKS_PER_PIXEL;
+                int i = row * width + px;
+                red[i] += note.color.getRed() * amount;
+                green[i] += note.color.getGreen() * amount;
+                blue[i] += note.color.getBlue() * amount;
+                coverage[i] += amount;
+            }
+        }
+
+        int[] pixels = new int[width * IMAGE_HEIGHT];
+        for (int i = 0; i < pixels.length; i++) {
+            if (coverage[i] > 0) {
+                double opacity = Math.min(1,
+                        MIN_OPACITY + OPACITY_PER_NOTE * Math.max(0, coverage[i] - 1));
+                pixels[i] = ((int) Math.round(opacity * 255) << 24)
+                        | ((int) Math.round(red[i] / coverage[i] * 255) << 16)
+                        | ((int) Math.round(green[i] / coverage[i] * 255) << 8)
+                        | (int) Math.round(blue[i] / coverage[i] * 255);
+            }
+        }
+        return pixels;
+    }
+
+    /**
+     * Returns the width in pixels of the given chunk. The last chunk may be
+     * narrower than CHUNK_WIDTH.
+     *
+     * @param chunk index of the chunk
+     * @return width of the chunk
+     */
+    private static int chunkWidth(int chunk) {
+        return Math.min(CHUNK_WIDTH, IMAGE_WIDTH - chunk * CHUNK_WIDTH);
+    }
+
+    /**
+     * Immutable copy of the parts of a note the minimap needs, so it can be
+     * read on the renderer thread.
+     */
+    private static final class MinimapNote {
+
+        /**
+         * Position and length of the note in composition pixels.
+         */
+        final double x;
+        final double y;
+        final double width;
+
+        /**
+         * Fill color of the note's instrument.
+         */
+        final Color color;
+
+        /**
+         * Copies the given note's visualRectangle.
+         *
+         * @param r the note's visualRectangle
+         */
+        MinimapNote(Rectangle r) {
+            x = r.getX();
+            y = r.getY();
+            width = Math.max(1, r.getWidth());
+            color = SoundObjectCanvasLayer.getInstrumentFill(r.getId());
+        }
+
+        /**
+         * Returns true if this is still a copy of the given note's
+         * visualRectangle, as when only its selection changed.
+         *
+         * @param r the note's visualRectangle
+         * @return true if the minimap would show r the same as this
+         */
+        boolean isSameAs(Rectangle r) {
+            return (x == r.getX()) && (y == r.getY())
+                    && (width == Math.max(1, r.getWidth()))
+                    && color.equals(SoundObjectCanvasLayer.getInstrumentFill(r.getId()));
+        }
+
+        /**
+         * Returns the first chunk this note overlaps.
+         *
+         * @return index of the chunk
+         */
+        int firstChunk() {
+            return clampChunk((int) Math.floor(x / TICKS_PER_PIXEL / CHUNK_WIDTH));
+        }
+
+        /**
+         * Returns the last chunk this note overlaps.
+         *
+         * @return index of the chunk
+         */
+        int lastChunk() {
+            return clampChunk((int) Math.floor((x + width - 1) / TICKS_PER_PIXEL / CHUNK_WIDTH));
+        }
+
+        /**
+         * Returns the given chunk index limited to the chunks of the image.
+         *
+         * @param chunk the chunk index
+         * @return the limited index
+         */
+        private static int clampChunk(int chunk) {
+            return Math.max(0, Math.min(CHUNK_COUNT - 1, chunk));
+        }
+    }
+}
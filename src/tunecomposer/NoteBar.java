@@ -1,14 +1,17 @@
 package tunecomposer;
 
+import java.io.IOException;
+import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Collection;
 import javafx.event.EventHandler;
+import javafx.scene.Node;
 import javafx.scene.input.MouseEvent;
 import javafx.scene.layout.Pane;
 import javafx.scene.shape.Rectangle;
 import javax.sound.midi.ShortMessage;
 import tunecomposer.actionclasses.MoveAction;
 import tunecomposer.actionclasses.LengthChangeAction;
-import java.util.Stack;
 
 /**
  * This class creates and edits NoteBar objects to display notes in the tune 
@@ -21,12 +24,22 @@ public final class NoteBar extends SoundObject {
      * pitch, starting value, and duration. 
      */
     public String name;
-    public Stack<String> previousNames = new Stack<>();
     private int instrument;
     public int channel;
     private int pitch;
     private int duration;
 
+    /**
+     * The note's x, y, width and instrument, and the top-level SoundObject
+     * holding it, as last written to the ActionJournal or to the file.
+     * journalTop is null if the note is not in the journaled composition.
+     */
+    int journalX;
+    int journalY;
+    int journalWidth;
+    int journalInstrument;
+    SoundObject journalTop;
+    
     /**
      * ActionManager instance that holds the undo and redo stacks.
      */
@@ -143,7 +156,7 @@ public final class NoteBar extends SoundObject {
         unsnappedX = visualRectangle.getX();
         
         setHandlers();
-        select();
+        markSelected();
     }
     
     /**
@@ -151,11 +164,20 @@ public final class NoteBar extends SoundObject {
      */
     @Override
     public final void select(){
+        markSelected();
+        SoundObjectPaneController.staticUpdateSelectedArray(soundObjectPane); 
+    } 
+    
+    /**
+     * Selects note and displays visualRectangle selection, without updating
+     * the selected array.
+     */
+    @Override
+    final void markSelected(){
         selected = true;
         visualRectangle.getStyleClass().removeAll("unselectedNote");
         visualRectangle.getStyleClass().add("selectedNote");
-        SoundObjectPaneController.staticUpdateSelectedArray(soundObjectPane); 
-    } 
+    }
     
     /**
      * Un-selects note and removes visualRectangle selection.
@@ -207,25 +229,6 @@ public final class NoteBar extends SoundObject {
         visualRectangle.setId(name);
     }
     
-    /**
-     * Sets previous instrument.
-     */
-    @Override
-    public void changeToPreviousInstrument() {
-        name = previousNames.pop();
-        this.instrument = instrumentInfo.getInstrumentValue(name);
-        channel = instrumentInfo.getInstrumentChannel(name);
-        visualRectangle.setId(name);
-    }
-    
-    /**
-     * Sets previous instrument.
-     */
-    @Override
-    public void setPreviousName() {
-        previousNames.push(name);
-    }
-    
     /**
      * Returns pitch.
      * @return the pitch
@@ -244,27 +247,23 @@ public final class NoteBar extends SoundObject {
     }
     
     /**
-     * Parser that converts a NoteBar to a String to be used in the  Clipboard.
+     * Writes the NoteBar in an XML-like format, to be saved or used in the
+     * Clipboard.
      * 
-     * @return String in an XML-like format
+     * @param out writer to write to
+     * @throws IOException if the writer fails
      */
     @Override
-    public String objectToXML(){
-	String startTag = "<notebar>";
-	String endTag = " </notebar>";
-	String xstr = " x:";
-	String ystr = " y:";
-	String widthstr = " width:";
-	String inststr = " instrument:";
-	
-	String x = String.valueOf((int) this.visualRectangle.getX());
-	String y = String.valueOf((int) this.visualRectangle.getY());
-	String instrument = String.valueOf(this.instrument);
-	String width = String.valueOf(this.duration);
-	
-	String result = startTag + xstr + x + ystr + y + widthstr + width + inststr + instrument + endTag;
-	        
-	return result;
+    public void writeXML(Writer out) throws IOException {
+        out.write("<notebar> x:");
+        out.write(Integer.toString((int) visualRectangle.getX()));
+        out.write(" y:");
+        out.write(Integer.toString((int) visualRectangle.getY()));
+        out.write(" width:");
+        out.write(Integer.toString(duration));
+        out.write(" instrument:");
+        out.write(Integer.toString(instrument));
+        out.write(" </notebar>");
     }
     
     
@@ -406,7 +405,7 @@ public final class NoteBar extends SoundObject {
      */
     @Override
     public void addToPane(Pane soundObjectPane) {
-        soundObjectPane.getChildren().add(visualRectangle);
+        SoundObjectViewport.getSoundObjectNodes(soundObjectPane).add(visualRectangle);
     }
     
     /**
@@ -418,7 +417,17 @@ public final class NoteBar extends SoundObject {
      */
     @Override
     public void removeFromPane(Pane soundObjectPane){
-        soundObjectPane.getChildren().remove(visualRectangle);
+        SoundObjectViewport.getSoundObjectNodes(soundObjectPane).remove(visualRectangle);
+    }
+    
+    /**
+     * Adds the note's visualRectangle to the given list.
+     * 
+     * @param nodes list to add the visualRectangle to
+     */
+    @Override
+    public void collectVisualRectangles(Collection<Node> nodes) {
+        nodes.add(visualRectangle);
     }
     
     /**
@@ -481,47 +490,35 @@ public final class NoteBar extends SoundObject {
 
     /**
      * Handles note dragged event.
-     * Continuously updates the execution of Move/Stretch Actions using their
-     * move/stretch methods.
+     * Only records the mouse location, the Move/Stretch Actions are updated
+     * with it at most once per pulse by applyDrag(). Moves only translate the
+     * drag group, the note positions are written back on release.
      * 
      * @param event the mouse click event
      */
     EventHandler<MouseEvent> handleNoteDragged = new EventHandler<MouseEvent>() {
         @Override
         public void handle(MouseEvent event) {
-            double x = event.getX();
-            double y = event.getY();
-            
-            if (draggingLength) {
-                sObjStretch.stretch((int)(x - latestX));
-                latestX = x;
-                latestY = y;
-            }
-            else { 
-                shiftNotePosition(x, y);
-            }
-            
-            if (draggingLength || !sObjMoveAction.isMoveFailed()){
-                latestX = x;
-                latestY = y;
-            }
-            
-            SoundObjectPaneController.staticUpdateSelectedArray(soundObjectPane);
-            
+            requestDrag(event);
             event.consume();
         }
     };
     
     /**
      * Handles mouse released.
-     * Prepares states of stretch and move for potential undoing (using the
-     * setFinalX and setLastCoords methods.  Pushes all actions onto undo stack.
+     * Applies and commits any drag in progress, then prepares states of stretch and move 
+     * for potential undoing (using the setFinalX and setLastCoords methods.
+     * Pushes all actions onto undo stack.
      * 
      * @param event the mouse click event
      */
     EventHandler<MouseEvent> handleNoteReleased = new EventHandler<MouseEvent>() {
         @Override
         public void handle(MouseEvent event) {
+            flushDrag();
+            if (sObjMoveAction != null) {
+                sObjMoveAction.commitDrag();
+            }
             if (!event.isStillSincePress()) {
                 if (draggingLength){
                     sObjStretch.setFinalX((int)latestX);
@@ -564,7 +561,7 @@ public final class NoteBar extends SoundObject {
         else {
             sObjMoveAction = new MoveAction(
             SoundObjectPaneController.SELECTED_SOUNDOBJECT_ARRAY,
-                    lastXShiftMouseLoc, lastYShiftMouseLoc);
+                    lastXShiftMouseLoc, lastYShiftMouseLoc, soundObjectPane);
         }
     }
 }
@@ -0,0 +1,255 @@
+package tunecomposer;
+
+import java.util.HashMap;
+import javafx.collections.ListChangeListener;
+import javafx.collections.ObservableList;
+import javafx.scene.Node;
+import javafx.scene.shape.Rectangle;
+
+/**
+ * Counts how many notes cover each cell of the composition, at several
+ * resolutions, so a zoomed out view can be drawn from the counts instead of
+ * from the notes themselves.
+ *
+ * Level 0 has one cell per pitch row and CELL_WIDTH ticks. Every level above
+ * it halves the number of columns, so the top level is a single column. The
+ * counts are kept up to date as notes are added, removed, moved and resized,
+ * at a cost proportional to the length of the changed note.
+ */
+public class NoteDensityPyramid {
+
+    /**
+     * Width in ticks of a level 0 cell.
+     */
+    public static final int CELL_WIDTH = 20;
+
+    /**
+     * Number of pitch rows in every level.
+     */
+    public static final int ROWS = CompositionPaneController.PANE_Y_MAX / SoundObject.HEIGHT;
+
+    /**
+     * Note counts of each level, row by row.
+     * counts[level][row * getColumns(level) + column]
+     */
+    private final int[][] counts;
+
+    /**
+     * Number of columns in each level.
+     */
+    private final int[] columns;
+
+    /**
+     * Level 0 cells each counted note was last added to, as
+     * {first column, last column, row}.
+     */
+    private final HashMap<Rectangle, int[]> countedCells = new HashMap<>();
+
+    /**
+     * Constructs an empty pyramid covering the whole composition.
+     */
+    public NoteDensityPyramid() {
+        int levelCount = 1;
+        int cols = (CompositionPaneController.PANE_X_MAX + CELL_WIDTH - 1) / CELL_WIDTH;
+        for (int c = cols; c > 1; c = (c + 1) / 2) {
+            levelCount++;
+        }
+
+        counts = new int[levelCount][];
+        columns = new int[levelCount];
+        for (int level = 0; level < levelCount; level++) {
+            columns[level] = cols;
+            counts[level] = new int[cols * ROWS];
+            cols = (cols + 1) / 2;
+        }
+    }
+
+    /**
+     * Counts every note in the given viewport, keeps counting notes as they
+     * are added to or removed from it, and recounts them as they move or
+     * change length.
+     *
+     * @param viewport the viewport of the composition
+     */
+    public void track(SoundObjectViewport viewport) {
+        ObservableList<Node> sObjNodes = viewport.getSoundObjectNodes();
+        for (Node n : sObjNodes) {
+            add((Rectangle) n);
+        }
+        sObjNodes.addListener((ListChangeListener.Change<? extends Node> change) -> {
+            while (change.next()) {
+                for (Node n : change.getRemoved()) {
+                    remove((Rectangle) n);
+                }
+                for (Node n : change.getAddedSubList()) {
+                    add((Rectangle) n);
+                }
+            }
+        });
+        viewport.addRectangleListener(this::recount);
+    }
+
+    /**
+     * Returns the number of levels.
+     *
+     * @return number of levels, at least 1
+     */
+    public int getLevelCount() {
+        return counts.length;
+    }
+
+    /**
+     * Returns the number of columns in the given level.
+     *
+     * @param level level of the pyramid
+     * @return number of columns
+     */
+    public int getColumns(int level) {
+        return columns[level];
+    }
+
+    /**
+     * Returns the width in ticks of a cell in the given level.
+     *
+     * @param level level of the pyramid
+     * @return width of one cell
+     */
+    public int getCellWidth(int level) {
+        return CELL_WIDTH << level;
+    }
+
+    /**
+     * Returns the lowest level whose cells are at least the given number of
+     * screen pixels wide at the given zoom.
+     *
+     * @param zoomX screen pixels per tick
+     * @param minPixels smallest cell width wanted, in screen pixels
+     * @return the level to draw from
+     */
+    public int getLevelFor(double zoomX, double minPixels) {
+        int level = 0;
+        while ((level < counts.length - 1) && (getCellWidth(level) * zoomX < minPixels)) {
+            level++;
+        }
+        return level;
+    }
+
+    /**
+     * Returns the number of notes that cover the given cell.
+     *
+     * @param level level of the pyramid
+     * @param column column of the cell
+     * @param row pitch row of the cell
+     * @return number of notes covering the cell
+     */
+    public int getCount(int level, int column, int row) {
+        return counts[level][row * columns[level] + column];
+    }
+
+    /**
+     * Counts the given visualRectangle if it is a note. Gestures are not
+     * counted.
+     *
+     * @param r visualRectangle added to the composition
+     */
+    private void add(Rectangle r) {
+        if (isGesture(r) || countedCells.containsKey(r)) {
+            return;
+        }
+        int[] cells = cellsOf(r);
+        apply(cells, 1);
+        countedCells.put(r, cells);
+    }
+
+    /**
+     * Stops counting the given visualRectangle.
+     *
+     * @param r visualRectangle removed from the composition
+     */
+    private void remove(Rectangle r) {
+        int[] cells = countedCells.remove(r);
+        if (cells == null) {
+            return;
+        }
+        apply(cells, -1);
+    }
+
+    /**
+     * Moves the count of the given note from the cells it covered to the
+     * cells it covers now. Does nothing if it is not counted.
+     *
+     * @param r visualRectangle that changed
+     */
+    private void recount(Rectangle r) {
+        int[] oldCells = countedCells.get(r);
+        if (oldCells == null) {
+            return;
+        }
+        int[] newCells = cellsOf(r);
+        if ((oldCells[0] == newCells[0]) && (oldCells[1] == newCells[1])
+                && (oldCells[2] == newCells[2])) {
+            return;
+        }
+        apply(oldCells, -1);
+        apply(newCells, 1);
+        countedCells.put(r, newCells);
+    }
+
+    /**
+     * Adds the given amount to the count of the given cells in every level.
+     * A note covering two level 0 cells that merge in a higher level is
+     * counted once in that level.
+     *
+     * @param cells {first column, last column, row} in level 0
+     * @param delta amount to add, 1 or -1
+     */
+    private void apply(int[] cells, int delta) {
+        int row = cells[2];
+        for (int level = 0; level < counts.length; level++) {
+            int[] levelCounts = counts[level];
+            int offset = row * columns[level];
+            for (int c = cells[0] >> level; c <= (cells[1] >> level); c++) {
+                levelCounts[offset + c] += delta;
+            }
+        }
+    }
+
+    /**
+     * Returns the level 0 cells the given note covers, clamped to the
+     * composition.
+     *
+     * @param r the note's visualRectangle
+     * @return {first column, last column, row}
+     */
+    private int[] cellsOf(Rectangle r) {
+        int maxColumn = columns[0] - 1;
+        int first = clamp((int) Math.floor(r.getX() / CELL_WIDTH), 0, maxColumn);
+        int last = clamp((int) Math.floor((r.getX() + Math.max(r.getWidth(), 1) - 1) / CELL_WIDTH),
+                first, maxColumn);
+        int row = clamp((int) Math.floor(r.getY() / SoundObject.HEIGHT), 0, ROWS - 1);
+        return new int[] {first, last, row};
+    }
+
+    /**
+     * Returns true if the given visualRectangle is a gesture outline.
+     *
+     * @param r the visualRectangle
+     * @return true if it is styled as a gesture
+     */
+    static boolean isGesture(Rectangle r) {
+        return r.getStyleClass().contains("selectedGesture")
+                || r.getStyleClass().contains("unselectedGesture");
+    }
+
+    /**
+     * Returns value limited to the range min to max.
+     *
+     * @param value the value to limit
+     * @param min lowest allowed value
+     * @param max highest allowed value
+     * @return the limited value
+     */
+    private static int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(max, value));
+    }
+}
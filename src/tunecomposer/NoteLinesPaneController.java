@@ -1,17 +1,32 @@
 package tunecomposer;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
 import javafx.fxml.FXML;
 import javafx.fxml.Initializable;
+import javafx.geometry.Bounds;
+import javafx.geometry.VPos;
+import javafx.scene.canvas.Canvas;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.control.ScrollPane;
 import javafx.scene.layout.Pane;
-import javafx.scene.shape.Line;
-import javafx.scene.text.Text;
-import javafx.scene.text.TextAlignment;
-import javafx.scene.text.TextFlow;
+import javafx.scene.paint.Color;
+import javafx.scene.text.Font;
+import javafx.scene.text.FontWeight;
+import javafx.scene.transform.Scale;
 
 /**
  * Controls the note lines and features of the noteLinesPane.
+ * The staff and measure lines are painted onto Canvas tiles, and only the
+ * tiles that are visible in the ScrollPane are painted. Tiles are a fixed
+ * number of screen pixels at any zoom, and lines too close together to tell
+ * apart at the current zoom are skipped. Pitch labels are painted onto one
+ * narrow Canvas that stays at the left edge of the view.
  */
 public class NoteLinesPaneController implements Initializable {
     
@@ -27,9 +42,34 @@ public class NoteLinesPaneController implements Initializable {
      */
     private static final int PITCH_RANGE = 128;
     private static final int BAR_RANGE = 180; 
-    private static final int LABEL_FREQ = 7;
-    private static final int LABEL_RANGE = BAR_RANGE / LABEL_FREQ;
     
+    /**
+     * Size of each Canvas tile in screen pixels.
+     * At no zoom, a tile holds ten measures and sixty four pitches.
+     */
+    private static final int TILE_WIDTH = INITIAL_NOTE_LENGTH * 10;
+    private static final int TILE_HEIGHT = NOTE_HEIGHT * 64;
+
+    /**
+     * Width of the pitch label column in pixels.
+     */
+    private static final int LABEL_WIDTH = 10;
+
+    /**
+     * Smallest gap in screen pixels between two painted lines.
+     * Lines closer together than this are thinned out.
+     */
+    private static final double MIN_LINE_SPACING = 4;
+
+    /**
+     * Colors and font of the lines and labels.
+     * Matches derive(black, 50%), derive(black, 45%) and derive(black, 90%).
+     */
+    private static final Color STAFF_LINE_COLOR = Color.gray(0.5);
+    private static final Color MEASURE_LINE_COLOR = Color.gray(0.45);
+    private static final Color LABEL_COLOR = Color.gray(0.9);
+    private static final Font LABEL_FONT =
+            Font.font("Trebuchet MS", FontWeight.BOLD, 8.615);
     
     /**
      * Create the array list of note pitch labels.      
@@ -50,7 +90,53 @@ public class NoteLinesPaneController implements Initializable {
     public Pane pitchLabels;
     
     /**
-     * Draws initial setup of note lines on the pane.
+     * ScrollPane that the noteLinesPane is viewed through.
+     * If null, then every tile is treated as visible.
+     */
+    private ScrollPane scrollPane;
+
+    /**
+     * Painted tiles on the noteLinesPane, keyed by their column and row.
+     */
+    private final HashMap<Long, Canvas> tiles = new HashMap<>();
+
+    /**
+     * Tiles that scrolled out of view and can be repainted for another spot.
+     */
+    private final ArrayDeque<Canvas> tilePool = new ArrayDeque<>();
+
+    /**
+     * Area ahead of the view whose tiles are painted early by prefetch().
+     * Null when nothing is being prefetched.
+     */
+    private Bounds prefetchRegion;
+
+    /**
+     * Keys of tiles painted by prefetch() that have not come into view yet.
+     */
+    private final HashSet<Long> prefetchedTiles = new HashSet<>();
+
+    /**
+     * Number of tiles that came into view already painted by prefetch(),
+     * and number that had to be painted as they came into view while a
+     * prefetch was going on.
+     */
+    private long prefetchHits = 0;
+    private long prefetchMisses = 0;
+
+    /**
+     * Canvas the pitch labels are painted on.
+     * Kept at the left edge of the visible area.
+     */
+    private Canvas labelColumn;
+
+    /**
+     * Updates the painted tiles and the label column at most once per pulse.
+     */
+    private PulseCoalescer refreshCoalescer;
+
+    /**
+     * Creates the pitch label column and paints the initially visible tiles.
      * 
      * @param location the source of the scene
      * @param resources the resources of the utility of the scene
@@ -58,31 +144,301 @@ public class NoteLinesPaneController implements Initializable {
     @FXML
     @Override
     public void initialize(java.net.URL location, java.util.ResourceBundle resources) {
-        for (int i = 0; i < PITCH_RANGE; i++) {
-            Line staffLine = new Line(0, i * NOTE_HEIGHT, 
-                    BAR_RANGE * INITIAL_NOTE_LENGTH, i * NOTE_HEIGHT);
-            staffLine.setId("staffLine");
-            noteLinesPane.getChildren().add(staffLine);
+        noteLinesPane.setPrefSize(BAR_RANGE * INITIAL_NOTE_LENGTH,
+                PITCH_RANGE * NOTE_HEIGHT);
+
+        labelColumn = new Canvas(LABEL_WIDTH, PITCH_RANGE * NOTE_HEIGHT);
+        paintLabels();
+        pitchLabels.getChildren().add(labelColumn);
+
+        refreshCoalescer = new PulseCoalescer(this::refresh);
+        refreshCoalescer.request();
+    }
+
+    /**
+     * Sets the ScrollPane that limits which tiles are painted, and updates
+     * the tiles and label column whenever it is scrolled or resized.
+     *
+     * @param scrollPane the ScrollPane the noteLinesPane is viewed through
+     */
+    public void setScrollPane(ScrollPane scrollPane) {
+        this.scrollPane = scrollPane;
+        scrollPane.hvalueProperty().addListener((observable) -> {
+            refreshCoalescer.request();
+        });
+        scrollPane.vvalueProperty().addListener((observable) -> {
+            refreshCoalescer.request();
+        });
+        scrollPane.viewportBoundsProperty().addListener((observable) -> {
+            refreshCoalescer.request();
+        });
+        refreshCoalescer.request();
+    }
+
+    /**
+     * Repaints every visible tile and the label column.
+     * Used when the zoom of the view changes.
+     */
+    public void repaint() {
+        tiles.values().forEach((tile) -> {
+            tilePool.push(tile);
+        });
+        noteLinesPane.getChildren().removeAll(tiles.values());
+        tiles.clear();
+        prefetchedTiles.clear();
+        paintLabels();
+        refreshCoalescer.request();
+    }
+
+    /**
+     * Paints the tiles in the given area ahead of the view, so they are ready
+     * when it scrolls there. Works until the given time. Tiles painted this
+     * way stay painted until they come into view or clearPrefetch() is called.
+     *
+     * @param region area to paint tiles in, in noteLinesPane coordinates
+     * @param deadline System.nanoTime() value to stop working at
+     * @return true if every tile in the area is painted
+     */
+    public boolean prefetch(Bounds region, long deadline) {
+        prefetchRegion = region;
+        int[] range = tileRange(region);
+        for (int col = range[0]; col <= range[1]; col++) {
+            for (int row = range[2]; row <= range[3]; row++) {
+                Long key = ((long) col << 32) | row;
+                if (!tiles.containsKey(key)) {
+                    if (System.nanoTime() > deadline) {
+                        return false;
+                    }
+                    addTile(col, row);
+                    prefetchedTiles.add(key);
+                }
+            }
         }
-        for (int i = 0; i < BAR_RANGE; i++) {
-            Line measureLine = new Line(i * INITIAL_NOTE_LENGTH, 0, 
-                    i * INITIAL_NOTE_LENGTH, PITCH_RANGE * NOTE_HEIGHT);
-            measureLine.setId("measureLine");
-            noteLinesPane.getChildren().add(measureLine);
+        return true;
+    }
+
+    /**
+     * Stops keeping prefetched tiles painted. Those that are not visible are
+     * given back to the pool on the next refresh.
+     */
+    public void clearPrefetch() {
+        prefetchRegion = null;
+        prefetchedTiles.clear();
+        refreshCoalescer.request();
+    }
+
+    /**
+     * Returns the number of tiles that were already painted by prefetch()
+     * when they came into view.
+     *
+     * @return number of prefetch hits since the counts were last reset
+     */
+    public long getPrefetchHits() {
+        return prefetchHits;
+    }
+
+    /**
+     * Returns the number of tiles that had to be painted as they came into
+     * view while a prefetch was going on.
+     *
+     * @return number of prefetch misses since the counts were last reset
+     */
+    public long getPrefetchMisses() {
+        return prefetchMisses;
+    }
+
+    /**
+     * Sets the prefetch hit and miss counts back to zero.
+     */
+    public void resetPrefetchCounts() {
+        prefetchHits = 0;
+        prefetchMisses = 0;
+    }
+
+    /**
+     * Paints any visible tile that is not painted yet, gives tiles that are
+     * no longer visible or prefetched back to the pool, and moves the label
+     * column to the left edge of the visible area.
+     */
+    private void refresh() {
+        Bounds visible = CompositionPaneController.getVisibleBounds(scrollPane);
+        int[] range = tileRange(visible);
+        int[] prefetchRange = (prefetchRegion == null) ? null : tileRange(prefetchRegion);
+
+        Iterator<Map.Entry<Long, Canvas>> painted = tiles.entrySet().iterator();
+        while (painted.hasNext()) {
+            Map.Entry<Long, Canvas> entry = painted.next();
+            int col = (int) (entry.getKey() >> 32);
+            int row = (int) (long) entry.getKey();
+            if (!inRange(range, col, row)
+                    && ((prefetchRange == null) || !inRange(prefetchRange, col, row))) {
+                noteLinesPane.getChildren().remove(entry.getValue());
+                tilePool.push(entry.getValue());
+                prefetchedTiles.remove(entry.getKey());
+                painted.remove();
+            }
         }
-        for (int i = 0; i <= LABEL_RANGE; i++) {
-            TextFlow tf = new TextFlow();
-            tf.setMaxWidth(NOTE_HEIGHT / 2);
-            tf.setTextAlignment(TextAlignment.RIGHT);
             
-            for (int k = 0; k < PITCH_RANGE; k++) {
-                Text pitch = new Text(pitchList.get(k % pitchList.size()));
-                pitch.setId("label");
-                tf.getChildren().add(pitch);
+        for (int col = range[0]; col <= range[1]; col++) {
+            for (int row = range[2]; row <= range[3]; row++) {
+                Long key = ((long) col << 32) | row;
+                if (prefetchedTiles.remove(key)) {
+                    prefetchHits++;
+                }
+                else if (!tiles.containsKey(key)) {
+                    addTile(col, row);
+                    if (prefetchRegion != null) {
+                        prefetchMisses++;
+                    }
+                }
             }
+        }
             
-            tf.relocate(i * INITIAL_NOTE_LENGTH * LABEL_FREQ, 0);
-            pitchLabels.getChildren().add(tf);
+        pitchLabels.setTranslateX(visible.getMinX());
+    }
+
+    /**
+     * Paints the tile at the given column and row at the current zoom, and
+     * puts it behind the other tiles on the noteLinesPane.
+     *
+     * @param col column of the tile
+     * @param row row of the tile
+     */
+    private void addTile(int col, int row) {
+        double zoomX = CompositionPaneController.getZoomX();
+        double zoomY = CompositionPaneController.getZoomY();
+        double tileWidth = TILE_WIDTH / zoomX;
+        double tileHeight = TILE_HEIGHT / zoomY;
+        Canvas tile = tilePool.isEmpty()
+                ? new Canvas(TILE_WIDTH, TILE_HEIGHT) : tilePool.pop();
+        tile.getTransforms().setAll(new Scale(1 / zoomX, 1 / zoomY, 0, 0));
+        tile.relocate(col * tileWidth, row * tileHeight);
+        paintTile(tile.getGraphicsContext2D(),
+                col * tileWidth, row * tileHeight, zoomX, zoomY);
+        tiles.put(((long) col << 32) | row, tile);
+        noteLinesPane.getChildren().add(0, tile);
+    }
+
+    /**
+     * Returns the columns and rows of the tiles that cover the given area at
+     * the current zoom, limited to the tiles that exist.
+     *
+     * @param area area in noteLinesPane coordinates
+     * @return {first column, last column, first row, last row}
+     */
+    private int[] tileRange(Bounds area) {
+        double tileWidth = TILE_WIDTH / CompositionPaneController.getZoomX();
+        double tileHeight = TILE_HEIGHT / CompositionPaneController.getZoomY();
+        int maxCol = (int) Math.ceil(BAR_RANGE * INITIAL_NOTE_LENGTH / tileWidth) - 1;
+        int maxRow = (int) Math.ceil(PITCH_RANGE * NOTE_HEIGHT / tileHeight) - 1;
+        return new int[] {
+            Math.max(0, (int) Math.floor(area.getMinX() / tileWidth)),
+            Math.min(maxCol, (int) Math.floor(area.getMaxX() / tileWidth)),
+            Math.max(0, (int) Math.floor(area.getMinY() / tileHeight)),
+            Math.min(maxRow, (int) Math.floor(area.getMaxY() / tileHeight))
+        };
+    }
+
+    /**
+     * Returns true if the given column and row are within the given range.
+     *
+     * @param range {first column, last column, first row, last row}
+     * @param col column of a tile
+     * @param row row of a tile
+     * @return true if the tile is in the range
+     */
+    private static boolean inRange(int[] range, int col, int row) {
+        return (col >= range[0]) && (col <= range[1])
+                && (row >= range[2]) && (row <= range[3]);
+    }
+
+    /**
+     * Paints the staff and measure lines that fall within a tile, skipping
+     * lines so that painted lines are at least MIN_LINE_SPACING apart.
+     *
+     * @param gc graphics context of the tile
+     * @param originX x coordinate of the tile's left edge on the noteLinesPane
+     * @param originY y coordinate of the tile's top edge on the noteLinesPane
+     * @param zoomX screen pixels per noteLinesPane pixel, horizontally
+     * @param zoomY screen pixels per noteLinesPane pixel, vertically
+     */
+    private void paintTile(GraphicsContext gc, double originX, double originY,
+            double zoomX, double zoomY) {
+        gc.clearRect(0, 0, TILE_WIDTH, TILE_HEIGHT);
+        gc.save();
+        gc.scale(zoomX, zoomY);
+        gc.translate(-originX, -originY);
+        double tileRight = originX + TILE_WIDTH / zoomX;
+        double tileBottom = originY + TILE_HEIGHT / zoomY;
+        double lineEnd = Math.min(tileRight, BAR_RANGE * INITIAL_NOTE_LENGTH);
+        double lineBottom = Math.min(tileBottom, PITCH_RANGE * NOTE_HEIGHT);
+
+        int staffStep = lineStep(NOTE_HEIGHT * zoomY);
+        gc.setStroke(STAFF_LINE_COLOR);
+        gc.setLineWidth(1 / zoomY);
+        for (int i = firstLine(originY, NOTE_HEIGHT, staffStep); i < PITCH_RANGE;
+                i += staffStep) {
+            double y = i * NOTE_HEIGHT;
+            if (y > tileBottom) {
+                break;
+            }
+            gc.strokeLine(originX, y, lineEnd, y);
+        }
+
+        int measureStep = lineStep(INITIAL_NOTE_LENGTH * zoomX);
+        gc.setStroke(MEASURE_LINE_COLOR);
+        gc.setLineWidth(1 / zoomX);
+        for (int i = firstLine(originX, INITIAL_NOTE_LENGTH, measureStep); i < BAR_RANGE;
+                i += measureStep) {
+            double x = i * INITIAL_NOTE_LENGTH;
+            if (x > tileRight) {
+                break;
+            }
+            gc.strokeLine(x, originY, x, lineBottom);
+        }
+        gc.restore();
+    }
+
+    /**
+     * Returns how many lines to step over between painted lines, as a power
+     * of two, so painted lines are at least MIN_LINE_SPACING apart.
+     *
+     * @param spacing gap between neighbouring lines in screen pixels
+     * @return 1 to paint every line, 2 to paint every other line, and so on
+     */
+    private static int lineStep(double spacing) {
+        int step = 1;
+        while (step * spacing < MIN_LINE_SPACING) {
+            step *= 2;
+        }
+        return step;
+    }
+
+    /**
+     * Returns the index of the first painted line at or before the given
+     * coordinate.
+     *
+     * @param origin coordinate of the tile's edge
+     * @param lineGap gap between neighbouring lines in noteLinesPane pixels
+     * @param step number of lines between painted lines
+     * @return index of the first line to paint
+     */
+    private static int firstLine(double origin, int lineGap, int step) {
+        int first = (int) Math.floor(origin / lineGap);
+        return Math.max(0, first - (first % step));
+    }
+
+    /**
+     * Paints one pitch label for every pitch onto the label column.
+     */
+    private void paintLabels() {
+        GraphicsContext gc = labelColumn.getGraphicsContext2D();
+        gc.clearRect(0, 0, labelColumn.getWidth(), labelColumn.getHeight());
+        gc.setFill(LABEL_COLOR);
+        gc.setFont(LABEL_FONT);
+        gc.setTextBaseline(VPos.TOP);
+        for (int k = 0; k < PITCH_RANGE; k++) {
+            gc.fillText(pitchList.get(k % pitchList.size()), 1, k * NOTE_HEIGHT);
         }
     }
-}    
\ No newline at end of file
+}    
@@ -0,0 +1,164 @@
+package tunecomposer;
+
+import javafx.animation.AnimationTimer;
+import javafx.beans.value.ObservableDoubleValue;
+import javafx.geometry.BoundingBox;
+import javafx.geometry.Bounds;
+import javafx.scene.control.ScrollPane;
+
+/**
+ * Gets the part of the composition ahead of the red bar ready while the
+ * composition plays, so that when the view turns the page to follow the red
+ * bar, the SoundObject views and grid tiles of the new page already exist.
+ *
+ * Once per pulse, the red bar's tick and the tempo decide how far ahead to
+ * look: one viewport, or two if the red bar will get past the next viewport
+ * within LOOKAHEAD_SECONDS. Each pulse spends at most PREFETCH_BUDGET on it,
+ * leaving the rest of the pulse for input and rendering, and carries on with
+ * what is left on the next pulse. Hit and miss counts show whether it keeps up;
+ * they are shown on the StatusLine when playback ends.
+ */
+public class PlaybackPrefetcher extends AnimationTimer {
+
+    /**
+     * Longest time in nanoseconds spent prefetching in one pulse.
+     */
+    private static final long PREFETCH_BUDGET = 4000000;
+
+    /**
+     * Number of seconds of playback to have ready ahead of the view.
+     */
+    private static final double LOOKAHEAD_SECONDS = 2;
+
+    /**
+     * Largest number of viewports ahead of the view to prefetch.
+     */
+    private static final int MAX_VIEWPORTS_AHEAD = 2;
+
+    /**
+     * ScrollPane the composition is viewed through.
+     */
+    private final ScrollPane scrollPane;
+
+    /**
+     * Viewport whose SoundObject views are prefetched.
+     */
+    private final SoundObjectViewport viewport;
+
+    /**
+     * Controller whose grid tiles are prefetched.
+     */
+    private final NoteLinesPaneController noteLinesPaneController;
+
+    /**
+     * Tick the red bar is at.
+     */
+    private final ObservableDoubleValue playheadTick;
+
+    /**
+     * Constructs a prefetcher for the given view. Does not start it.
+     *
+     * @param scrollPane ScrollPane the composition is viewed through
+     * @param viewport viewport of the soundObjectPane
+     * @param noteLinesPaneController controller of the grid
+     * @param playheadTick tick the red bar is at
+     */
+    public PlaybackPrefetcher(ScrollPane scrollPane, SoundObjectViewport viewport,
+            NoteLinesPaneController noteLinesPaneController,
+            ObservableDoubleValue playheadTick) {
+        this.scrollPane = scrollPane;
+        this.viewport = viewport;
+        this.noteLinesPaneController = noteLinesPaneController;
+        this.playheadTick = playheadTick;
+    }
+
+    /**
+     * Starts prefetching on every pulse, and resets the hit and miss counts.
+     */
+    public void begin() {
+        viewport.resetPrefetchCounts();
+        noteLinesPaneController.resetPrefetchCounts();
+        start();
+    }
+
+    /**
+     * Stops prefetching, lets go of everything prefetched, and shows on the
+     * StatusLine how much of what came into view was ready in time.
+     */
+    public void end() {
+        stop();
+        long hits = getHitCount();
+        long total = hits + getMissCount();
+        if (total > 0) {
+            long noteHits = viewport.getPrefetchHits();
+            long tileHits = noteLinesPaneController.getPrefetchHits();
+            StatusLine.show("Playback: " + hits + " of " + total
+                    + " notes and grid tiles were ready when they came into view (notes "
+                    + noteHits + " of " + (noteHits + viewport.getPrefetchMisses())
+                    + ", tiles " + tileHits + " of "
+                    + (tileHits + noteLinesPaneController.getPrefetchMisses()) + ")");
+        }
+        viewport.clearPrefetch();
+        noteLinesPaneController.clearPrefetch();
+    }
+
+    /**
+     * Returns the number of SoundObjects and tiles that were ready when
+     * they came into view.
+     *
+     * @return number of prefetch hits since begin()
+     */
+    public long getHitCount() {
+        return viewport.getPrefetchHits() + noteLinesPaneController.getPrefetchHits();
+    }
+
+    /**
+     * Returns the number of SoundObjects and tiles that were not ready when
+     * they came into view.
+     *
+     * @return number of prefetch misses since begin()
+     */
+    public long getMissCount() {
+        return viewport.getPrefetchMisses() + noteLinesPaneController.getPrefetchMisses();
+    }
+
+    /**
+     * Prefetches the area ahead of the view until PREFETCH_BUDGET is spent.
+     * Grid tiles come first, as they are few and cover the whole area.
+     *
+     * @param now timestamp of the current pulse in nanoseconds
+     */
+    @Override
+    public void handle(long now) {
+        Bounds region = getPrefetchRegion();
+        if (region == null) {
+            return;
+        }
+        long deadline = System.nanoTime() + PREFETCH_BUDGET;
+        if (noteLinesPaneController.prefetch(region, deadline)) {
+            viewport.prefetch(region, deadline);
+        }
+    }
+
+    /**
+     * Returns the area right of the view that the red bar will play through
+     * next, one or two viewports wide depending on the tempo.
+     *
+     * @return area to prefetch, or null if the view is at the end
+     */
+    private Bounds getPrefetchRegion() {
+        Bounds visible = CompositionPaneController.getVisibleBounds(scrollPane);
+        double start = visible.getMaxX();
+        if ((start >= CompositionPaneController.PANE_X_MAX) || (visible.getWidth() <= 0)) {
+            return null;
+        }
+        double ticksPerSecond = TunePlayer.RESOLUTION * TunePlayer.beatsPerMinute
+                / (RedBarPaneController.milliPerMin / 1000);
+        double lookaheadEnd = playheadTick.get() + ticksPerSecond * LOOKAHEAD_SECONDS;
+        int viewports = (int) Math.ceil((lookaheadEnd - start) / visible.getWidth());
+        viewports = Math.max(1, Math.min(MAX_VIEWPORTS_AHEAD, viewports));
+        double width = Math.min(viewports * visible.getWidth(),
+                CompositionPaneController.PANE_X_MAX - start);
+        return new BoundingBox(start, visible.getMinY(), width, visible.getHeight());
+    }
+}
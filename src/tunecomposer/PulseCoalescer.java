@@ -0,0 +1,141 @@
+package tunecomposer;
+
+import javafx.animation.AnimationTimer;
+
+/**
+ * Runs a given task at most once per JavaFX pulse.
+ * Every request made between two pulses is folded into a single run of the
+ * task, so work triggered by high-rate input, such as mouse drag events, is
+ * capped at the display refresh rate.
+ */
+public class PulseCoalescer extends AnimationTimer {
+
+    /**
+     * The work to run on the next pulse after a request.
+     */
+    private final Runnable task;
+
+    /**
+     * True if a request has been made that the task has not run for yet.
+     */
+    private boolean pending = false;
+
+    /**
+     * Number of requests made since the task last ran.
+     */
+    private int pendingRequests = 0;
+
+    /**
+     * Number of requests that were folded into another request instead of
+     * running the task themselves, and number of times the task ran.
+     * Reset by resetCounts().
+     */
+    private long coalescedCount = 0;
+    private long runCount = 0;
+
+    /**
+     * Constructs a coalescer for the given task. Does not run the task.
+     *
+     * @param task work to run at most once per pulse
+     */
+    public PulseCoalescer(Runnable task) {
+        this.task = task;
+    }
+
+    /**
+     * Requests that the task is run on the next pulse.
+     * If a request is already waiting, then this request is folded into it.
+     */
+    public void request() {
+        pendingRequests++;
+        if (!pending) {
+            pending = true;
+            start();
+        }
+    }
+
+    /**
+     * Runs the task now if a request is waiting, instead of on the next pulse.
+     * Used when the final state is needed right away, such as on mouse release.
+     */
+    public void flush() {
+        if (pending) {
+            run();
+        }
+    }
+
+    /**
+     * Drops any waiting request without running the task.
+     */
+    public void cancel() {
+        stop();
+        pending = false;
+        pendingRequests = 0;
+    }
+
+    /**
+     * Runs the task once, for all the requests made since the last pulse.
+     *
+     * @param now timestamp of the current pulse in nanoseconds
+     */
+    @Override
+    public void handle(long now) {
+        run();
+    }
+
+    /**
+     * Returns the number of requests that were folded together since the
+     * count was last reset.
+     *
+     * @return number of requests that did not run the task themselves
+     */
+    public long getCoalescedCount() {
+        return coalescedCount;
+    }
+
+    /**
+     * Returns the number of times the task ran since the counts were last
+     * reset.
+     *
+     * @return number of runs of the task
+     */
+    public long getRunCount() {
+        return runCount;
+    }
+
+    /**
+     * Sets the number of folded requests and of runs back to zero.
+     */
+    public void resetCounts() {
+        coalescedCount = 0;
+        runCount = 0;
+    }
+
+    /**
+     * Shows on the StatusLine how many requests were made and how many of
+     * them were folded together since the counts were last reset, such as
+     * at the end of a drag, then resets the counts. Shows nothing if the
+     * task did not run.
+     *
+     * @param name what the requests were, such as "Drag"
+     */
+    public void reportCounts(String name) {
+        if (runCount > 0) {
+            StatusLine.show(name + ": " + (runCount + coalescedCount) + " mouse events, "
+                    + runCount + " updates, " + coalescedCount + " folded together");
+        }
+        resetCounts();
+    }
+
+    /**
+     * Stops waiting for a pulse, updates the counts, and runs the task.
+     */
+    private void run() {
+        stop();
+        pending = false;
+        runCount++;
+        coalescedCount += pendingRequests - 1;
+        pendingRequests = 0;
+        task.run();
+    }
+}
@@ -1,10 +1,11 @@
 package tunecomposer;
 
 import java.util.List;
-import java.util.Observable;
 import javafx.animation.KeyFrame;
 import javafx.animation.KeyValue;
 import javafx.animation.Timeline;
+import javafx.beans.property.ReadOnlyBooleanProperty;
+import javafx.beans.property.ReadOnlyDoubleProperty;
 import javafx.event.ActionEvent;
 import javafx.event.EventHandler;
 import javafx.fxml.FXML;
@@ -17,7 +18,7 @@ import javafx.util.Duration;
  * Controls and animates the red bar which visualizes the moment at which
  * the MidiPlayer is playing.
  */
-public class RedBarPaneController extends Observable implements Initializable{
+public class RedBarPaneController implements Initializable{
     
     /**
      * Creates timeline for animation and RED_BAR object.
@@ -55,10 +56,28 @@ public class RedBarPaneController extends Observable implements Initializable{
         RED_BAR.setVisible(false);
     }
         
+    /**
+     * Returns the property holding the x coordinate of the red bar.
+     * 
+     * @return x property of RED_BAR
+     */
+    public ReadOnlyDoubleProperty redBarXProperty() {
+        return RED_BAR.xProperty();
+    }
+    
+    /**
+     * Returns the property holding whether the red bar is shown.
+     * 
+     * @return visible property of RED_BAR
+     */
+    public ReadOnlyBooleanProperty redBarVisibleProperty() {
+        return RED_BAR.visibleProperty();
+    }
+        
     /**
      * Moves the line across the screen at the speed set by movementSpeed, 
      * disappears at end of last note displayed.
-     * Notify Observer (Application Controller) that change has been made.
+     * Posts TRANSPORT_CHANGED on the ChangeEventBus once the line disappears.
      * 
      * @param playNotes notes that redBar should play over.
      * @param startTick start tick of first note play should begin on.
@@ -78,12 +97,11 @@ public class RedBarPaneController extends Observable implements Initializable{
 
                 
         EventHandler onFinished = (EventHandler<ActionEvent>) (ActionEvent event) -> {
-            setChanged();
             timeline.stop();
             RED_BAR.setVisible(false);
             RED_BAR.setX(0);
 
-            notifyObservers();
+            ChangeEventBus.post(ChangeEvent.TRANSPORT_CHANGED);
         };
         
         KeyFrame kf = new KeyFrame(duration, onFinished, kv);
@@ -0,0 +1,374 @@
+package tunecomposer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * A long operation split into small steps, so a TimeSlicedScheduler can run
+ * it a few steps at a time between pulses instead of all at once.
+ *
+ * A job is made of phases that run one after another. Each phase applies a
+ * step to every item of a list, in order. If every phase can also roll its
+ * steps back, then the job can be cancelled: the steps already taken are
+ * rolled back in reverse order, again a few at a time, and the job ends as
+ * if it had never run.
+ *
+ * The items of a phase may still be being prepared on another thread when the
+ * job is scheduled. The job then waits at that phase, without taking any
+ * steps, until the items are ready. If they cannot be prepared, then the job
+ * fails: it is rolled back as if cancelled, if it can be, and getFailure()
+ * tells why.
+ */
+public class SlicedJob {
+
+    /**
+     * Short description of the job, shown while it runs.
+     */
+    private final String description;
+
+    /**
+     * The phases of the job, in the order they run.
+     */
+    private final ArrayList<Phase<?>> phases = new ArrayList<>();
+
+    /**
+     * Index of the phase currently running or rolling back.
+     */
+    private int currentPhase = 0;
+
+    /**
+     * True once cancel() has been called on a cancellable job.
+     */
+    private boolean cancelling = false;
+
+    /**
+     * Why the items of a phase could not be prepared, or null if the job has
+     * not failed.
+     */
+    private Throwable failure;
+
+    /**
+     * Run once every phase has finished, or once every step has been rolled
+     * back after a cancel. Null if nothing needs to run.
+     */
+    private Runnable onFinished;
+    private Runnable onCancelled;
+
+    /**
+     * Constructs a job with no phases.
+     *
+     * @param description short description of the job, shown while it runs
+     */
+    public SlicedJob(String description) {
+        this.description = description;
+    }
+
+    /**
+     * Adds a phase that applies the given step to every item, after the
+     * phases already added. If rollback is null, then the job can no longer
+     * be cancelled.
+     *
+     * @param <T> type of the items
+     * @param items items to apply the step to, in order
+     * @param step work to do for one item
+     * @param rollback undoes the step for one item, or null
+     */
+    public <T> void addPhase(List<T> items, Consumer<T> step, Consumer<T> rollback) {
+        addPhase(CompletableFuture.completedFuture(items), step, rollback);
+    }
+    
+    /**
+     * Adds a phase that applies the given step to every item once the items
+     * are ready, after the phases already added. If the items cannot be
+     * prepared, then the phase has no items. If rollback is null, then the
+     * job can no longer be cancelled.
+     *
+     * @param <T> type of the items
+     * @param items future holding the items to apply the step to, in order
+     * @param step work to do for one item
+     * @param rollback undoes the step for one item, or null
+     */
+    public <T> void addPhase(CompletableFuture<? extends List<T>> items, 
+            Consumer<T> step, Consumer<T> rollback) {
+        phases.add(new Phase<>(items, step, rollback));
+    }
+
+    /**
+     * Splits the given items into consecutive batches of at most the given
+     * size, for a phase whose step handles a whole batch at once.
+     *
+     * @param <T> type of the items
+     * @param items items to split, in order
+     * @param batchSize largest number of items in a batch
+     * @return views of items, batchSize at a time
+     */
+    public static <T> ArrayList<List<T>> split(List<T> items, int batchSize) {
+        ArrayList<List<T>> batches = new ArrayList<>();
+        for (int start = 0; start < items.size(); start += batchSize) {
+            batches.add(items.subList(start, Math.min(items.size(), start + batchSize)));
+        }
+        return batches;
+    }
+
+    /**
+     * Sets what to run once every phase has finished, such as putting the
+     * operation onto the undo stack.
+     *
+     * @param onFinished run when the job has finished
+     */
+    public void setOnFinished(Runnable onFinished) {
+        this.onFinished = onFinished;
+    }
+
+    /**
+     * Sets what to run once a cancelled job has been rolled back.
+     *
+     * @param onCancelled run when the job has been rolled back
+     */
+    public void setOnCancelled(Runnable onCancelled) {
+        this.onCancelled = onCancelled;
+    }
+
+    /**
+     * Returns why the job failed, if the items of one of its phases could not
+     * be prepared. A failed job ends through onCancelled.
+     *
+     * @return cause of the failure, or null if the job has not failed
+     */
+    public Throwable getFailure() {
+        return failure;
+    }
+
+    /**
+     * Returns the description of the job.
+     *
+     * @return short description of the job
+     */
+    public String getDescription() {
+        return description;
+    }
+
+    /**
+     * Returns true if every phase can be rolled back and the job has not
+     * already been cancelled.
+     *
+     * @return true if cancel() would have an effect
+     */
+    public boolean isCancellable() {
+        if (cancelling) {
+            return false;
+        }
+        for (Phase<?> phase : phases) {
+            if (phase.rollback == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Starts rolling back the steps taken so far, if the job is cancellable.
+     * The job ends once runUntil() has rolled every step back.
+     */
+    public void cancel() {
+        if (isCancellable()) {
+            cancelling = true;
+        }
+    }
+
+    /**
+     * Returns true if the job cannot take a step until the items of the
+     * current phase are ready.
+     *
+     * @return true if the job is waiting for its items
+     */
+    public boolean isWaiting() {
+        return !cancelling && (currentPhase < phases.size()) 
+                && !phases.get(currentPhase).isReady();
+    }
+
+    /**
+     * Returns how far the job has got, counting a cancelled job back down
+     * as it rolls back.
+     *
+     * @return fraction of the steps taken, from 0 to 1
+     */
+    public double getProgress() {
+        int total = 0;
+        int done = 0;
+        for (Phase<?> phase : phases) {
+            total += phase.size();
+            done += phase.index;
+        }
+        return (total == 0) ? 1 : (double) done / total;
+    }
+
+    /**
+     * Runs or rolls back steps until the job ends or the given time passes.
+     * Takes at least one step if any are left, so every call makes progress.
+     * If the items of a phase could not be prepared, then starts rolling back
+     * the steps taken, or ends the job straight away if it cannot be rolled
+     * back.
+     *
+     * @param deadline System.nanoTime() value to stop at
+     * @return true if the job has ended
+     */
+    public boolean runUntil(long deadline) {
+        if (cancelling) {
+            while (currentPhase >= 0) {
+                if (!phases.isEmpty() && !phases.get(currentPhase).rollBackUntil(deadline)) {
+                    return false;
+                }
+                currentPhase--;
+            }
+            if (onCancelled != null) {
+                onCancelled.run();
+            }
+            return true;
+        }
+        while (currentPhase < phases.size()) {
+            Phase<?> phase = phases.get(currentPhase);
+            if (!phase.runUntil(deadline)) {
+                return false;
+            }
+            if (phase.failure != null) {
+                failure = phase.failure;
+                if (isCancellable()) {
+                    cancelling = true;
+                    return runUntil(deadline);
+                }
+                if (onCancelled != null) {
+                    onCancelled.run();
+                }
+                return true;
+            }
+            currentPhase++;
+        }
+        currentPhase = phases.size() - 1;
+        if (onFinished != null) {
+            onFinished.run();
+        }
+        return true;
+    }
+
+    /**
+     * One phase of a job: a step applied to every item of a list.
+     *
+     * @param <T> type of the items
+     */
+    private static class Phase<T> {
+
+        /**
+         * Items the step is applied to, in order, once they are ready.
+         */
+        private final CompletableFuture<? extends List<T>> pendingItems;
+
+        /**
+         * Items the step is applied to, or null until they are ready.
+         */
+        private List<T> items;
+
+        /**
+         * Why the items could not be prepared, or null if they were.
+         */
+        private Throwable failure;
+
+        /**
+         * Work done for one item, and how to undo it. Rollback may be null.
+         */
+        private final Consumer<T> step;
+        private final Consumer<T> rollback;
+
+        /**
+         * Number of items the step has been applied to.
+         */
+        private int index = 0;
+
+        /**
+         * Constructs a phase that has not taken any steps.
+         *
+         * @param items future holding the items to apply the step to
+         * @param step work to do for one item
+         * @param rollback undoes the step for one item, or null
+         */
+        private Phase(CompletableFuture<? extends List<T>> items, Consumer<T> step,
+                Consumer<T> rollback) {
+            this.pendingItems = items;
+            this.step = step;
+            this.rollback = rollback;
+        }
+
+        /**
+         * Returns true once the items are ready, taking them from the future
+         * the first time. If the future failed, then the phase has no items
+         * and records the failure.
+         *
+         * @return true if the items are ready
+         */
+        private boolean isReady() {
+            if (items != null) {
+                return true;
+            }
+            if (!pendingItems.isDone()) {
+                return false;
+            }
+            try {
+                items = pendingItems.join();
+            }
+            catch (RuntimeException ex) {
+                failure = (ex.getCause() == null) ? ex : ex.getCause();
+                items = new ArrayList<>();
+            }
+            return true;
+        }
+
+        /**
+         * Returns the number of items, or 0 if they are not ready.
+         *
+         * @return number of items
+         */
+        private int size() {
+            return isReady() ? items.size() : 0;
+        }
+
+        /**
+         * Applies the step to the next items until all are done or the given
+         * time passes.
+         *
+         * @param deadline System.nanoTime() value to stop at
+         * @return true if the step has been applied to every item, or the
+         *          items could not be prepared
+         */
+        private boolean runUntil(long deadline) {
+            if (!isReady()) {
+                return false;
+            }
+            while (index < items.size()) {
+                step.accept(items.get(index++));
+                if (System.nanoTime() > deadline) {
+                    break;
+                }
+            }
+            return index >= items.size();
+        }
+
+        /**
+         * Rolls back the last steps taken until none are left or the given
+         * time passes.
+         *
+         * @param deadline System.nanoTime() value to stop at
+         * @return true if every step has been rolled back
+         */
+        private boolean rollBackUntil(long deadline) {
+            while (index > 0) {
+                rollback.accept(items.get(--index));
+                if (System.nanoTime() > deadline) {
+                    break;
+                }
+            }
+            return index <= 0;
+        }
+    }
+}
@@ -1,8 +1,16 @@
 package tunecomposer;
 
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
 import javafx.event.EventHandler;
+import javafx.collections.ObservableList;
+import javafx.geometry.Point2D;
 import javafx.scene.Node;
+import javafx.scene.input.MouseEvent;
 import javafx.scene.layout.Pane;
 import javafx.scene.shape.Rectangle;
 import tunecomposer.actionclasses.Action;
@@ -106,11 +114,32 @@ public abstract class SoundObject {
      */
     double lastYShiftMouseLoc;    
     
+    /**
+     * Latest mouse location given to the drag handler, in pane coordinates.
+     * Applied at most once per pulse by dragCoalescer.
+     */
+    double pendingDragX;
+    double pendingDragY;
+    
+    /**
+     * Folds all drag events received within one pulse into a single move or
+     * stretch. Created on the first drag of this object.
+     */
+    PulseCoalescer dragCoalescer;
+    
     /**
     * Creates abstract set of SoundObject selection methods.
     */
     public abstract void select();
     
+    /**
+     * Sets the object's state to selected and reflects it in the rectangle
+     * styling, without rescanning the pane for the selected SoundObjects.
+     * Touches nothing but this object, so it may be called on a worker thread
+     * while the object is not on a pane.
+     */
+    abstract void markSelected();
+    
     /**
     * Sets objects state to unselect and reflects unselection by changing 
     * rectangle styling.
@@ -148,16 +177,6 @@ public abstract class SoundObject {
     */    
     public abstract void changeInstrument(String instrument);
     
-    /**
-     * Sets the previous instrument name.
-     */
-    public abstract void setPreviousName();
-    
-    /**
-     * Changes instrument to previous instrument.
-     */
-    public abstract void changeToPreviousInstrument();
-    
     /**
     * Snap object to y-coordinate of nearest note.
     */
@@ -194,6 +213,15 @@ public abstract class SoundObject {
     * @param soundObjectPane pane visualRectangle is on
     */
     public abstract void removeFromPane(Pane soundObjectPane);
+    
+    /**
+     * Adds the visualRectangles that addToPane() would add to the pane to the
+     * given collection, in the same order. Lets many SoundObjects be added to the
+     * pane with one addAll().
+     * 
+     * @param nodes collection to add the visualRectangles to
+     */
+    public abstract void collectVisualRectangles(Collection<Node> nodes);
 
     /**
      * Checks if moving the soundObject will push it past the pane's borders.
@@ -232,9 +260,64 @@ public abstract class SoundObject {
      * the clipboard.
      * @return XML-like styled String
      */
-    public abstract String objectToXML();
+    public String objectToXML() {
+        StringWriter out = new StringWriter();
+        try {
+            writeXML(out);
+        }
+        catch (IOException ex) {
+            // a StringWriter does not throw
+        }
+        return out.toString();
+    }
+    
+    /**
+     * Writes the NoteBar or Gesture in the XML styled format of 
+     * objectToXML() to the given writer, without building the string first.
+     * @param out writer to write to
+     * @throws IOException if the writer fails
+     */
+    public abstract void writeXML(Writer out) throws IOException;
     
 
+    /**
+     * Adds the visual representation of all the given SoundObjects to the
+     * pane with one addAll(), in the order addToPane() would add them.
+     * visualRectangles already on the pane are not added again.
+     * Does not manage selection.
+     * 
+     * @param sObjs SoundObjects to add
+     * @param soundObjectPane pane to add them to
+     */
+    public static void addAllToPane(Collection<? extends SoundObject> sObjs, 
+            Pane soundObjectPane) {
+        ObservableList<Node> sObjNodes = 
+                SoundObjectViewport.getSoundObjectNodes(soundObjectPane);
+        ArrayList<Node> nodes = new ArrayList<>();
+        for (SoundObject sObj : sObjs) {
+            sObj.collectVisualRectangles(nodes);
+        }
+        nodes.removeIf(sObjNodes::contains);
+        sObjNodes.addAll(nodes);
+    }
+    
+    /**
+     * Removes the visual representation of all the given SoundObjects from
+     * the pane in one pass, with one removeAll().
+     * Does not change selection state.
+     * 
+     * @param sObjs SoundObjects to remove
+     * @param soundObjectPane pane to remove them from
+     */
+    public static void removeAllFromPane(Collection<? extends SoundObject> sObjs, 
+            Pane soundObjectPane) {
+        HashSet<Node> nodes = new HashSet<>();
+        for (SoundObject sObj : sObjs) {
+            sObj.collectVisualRectangles(nodes);
+        }
+        SoundObjectViewport.getSoundObjectNodes(soundObjectPane).removeAll(nodes);
+    }
+
     /**
      * Returns startTick.
      * 
@@ -314,7 +397,7 @@ public abstract class SoundObject {
         double shiftXBy = getNumOfMouseShift(x, snapXDistance, lastXShiftMouseLoc);
         double shiftYBy = getNumOfMouseShift(y, HEIGHT, lastYShiftMouseLoc);
         
-        sObjMoveAction.move(shiftXBy, shiftYBy);
+        sObjMoveAction.drag(shiftXBy, shiftYBy);
         //if move didn't fail then increment lastXShiftMouseLoc
         if (!sObjMoveAction.isMoveFailed()) {
             lastXShiftMouseLoc += shiftXBy;
@@ -323,6 +406,66 @@ public abstract class SoundObject {
     }    
     
     
+    /**
+     * Records the location of the given drag event, and requests that the
+     * move or stretch is applied on the next pulse.
+     * 
+     * @param event the mouse drag event
+     */
+    void requestDrag(MouseEvent event) {
+        Point2D location = getPaneLocation(event);
+        pendingDragX = location.getX();
+        pendingDragY = location.getY();
+        if (dragCoalescer == null) {
+            dragCoalescer = new PulseCoalescer(this::applyDrag);
+        }
+        dragCoalescer.request();
+    }
+    
+    /**
+     * Applies the recorded drag location now if it is still waiting for a 
+     * pulse. Called on mouse release, before the drag is committed.
+     */
+    void flushDrag() {
+        if (dragCoalescer != null) {
+            dragCoalescer.flush();
+            dragCoalescer.reportCounts("Drag");
+        }
+    }
+    
+    /**
+     * Moves or stretches the selection to the latest recorded drag location.
+     * Run by dragCoalescer at most once per pulse.
+     */
+    void applyDrag() {
+        double x = pendingDragX;
+        double y = pendingDragY;
+        
+        if (draggingLength) {
+            sObjStretch.stretch((int)(x - latestX));
+        }
+        else {
+            shiftNotePosition(x, y);
+        }
+        
+        if (draggingLength || !sObjMoveAction.isMoveFailed()) {
+            latestX = x;
+            latestY = y;
+        }
+    }
+    
+    /**
+     * Returns the location of the given mouse event in soundObjectPane's
+     * coordinates. The visualRectangle may be inside a translated drag group
+     * while dragging, so the event's local coordinates cannot be used.
+     * 
+     * @param event the mouse event to locate
+     * @return location of the event on soundObjectPane
+     */
+    Point2D getPaneLocation(MouseEvent event) {
+        return soundObjectPane.sceneToLocal(event.getSceneX(), event.getSceneY());
+    }
+    
     /**
      * Will find if the mouse is more than one snapDistance from the given
      * lastShiftLoc, and return the number of pixels that the objects should 
@@ -356,7 +499,7 @@ public abstract class SoundObject {
      */
     private ArrayList<SoundObject> getOtherSelectedItems(){
         ArrayList<SoundObject> allSelected = new ArrayList();
-            for (Node n : soundObjectPane.getChildren()) {
+            for (Node n : SoundObjectViewport.getSoundObjectNodes(soundObjectPane)) {
                 Rectangle r = (Rectangle) n;
                 SoundObject sObj = (SoundObject) r.getUserData();
                 if (sObj.isSelected()) {
@@ -369,7 +512,8 @@ public abstract class SoundObject {
     
     /**
      * Creates a Selection and Unselection Action and adds it the actionList
-     * which will later be pushed onto the undo stack.
+     * which will later be pushed onto the undo stack. The selected array is
+     * rescanned once, after both actions have run.
      * Helper method to the handleNotePressed and handleGesturePressed event handlers.
      *
      * @param isCtrlDown boolean -> reads "Is Control Down?"
@@ -377,6 +521,7 @@ public abstract class SoundObject {
     void prepareSelectionAction(boolean isCtrlDown){
         ArrayList<SoundObject> thisSoundObject = new ArrayList();
         thisSoundObject.add((SoundObject) visualRectangle.getUserData());
+        SoundObjectPaneController.deferSelectionUpdates();
         if (!selected) {
             if(!isCtrlDown){
                 ArrayList<SoundObject> allSelected;
@@ -394,5 +539,6 @@ public abstract class SoundObject {
             unselectAction.execute();
             actionList.add(unselectAction);
         }
+        SoundObjectPaneController.resumeSelectionUpdates();
     }
 }
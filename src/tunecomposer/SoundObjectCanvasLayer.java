@@ -0,0 +1,637 @@
+package tunecomposer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import javafx.collections.ListChangeListener;
+import javafx.collections.ObservableList;
+import javafx.event.EventHandler;
+import javafx.geometry.BoundingBox;
+import javafx.geometry.Bounds;
+import javafx.geometry.Point2D;
+import javafx.scene.Node;
+import javafx.scene.canvas.Canvas;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.input.MouseEvent;
+import javafx.scene.layout.Pane;
+import javafx.scene.paint.Color;
+import javafx.scene.shape.Rectangle;
+import javafx.scene.transform.Scale;
+
+/**
+ * Draws the SoundObjects of a SoundObjectViewport onto a single Canvas
+ * instead of giving each one a node, for compositions too large for the
+ * scene graph. The Canvas covers only the visible part of the ScrollPane.
+ *
+ * The visualRectangles in an area are found through the viewport's
+ * SoundObjectColumnIndex, and changes to them are reported by the viewport.
+ * When a visualRectangle changes, only the area it covered before and the
+ * area it covers now are repainted, so edits and selection changes cost time
+ * proportional to the changed area rather than the whole composition.
+ * Mouse presses on the Canvas are hit-tested against the index in pane
+ * coordinates and handed to the handlers of the visualRectangle under the
+ * mouse, as if it had been clicked in the scene graph.
+ */
+public class SoundObjectCanvasLayer {
+
+    /**
+     * Number of pixels around a changed visualRectangle that are repainted,
+     * to cover the part of its outline that falls outside its bounds.
+     */
+    private static final double STROKE_PADDING = 3;
+
+    /**
+     * Number of dirty regions above which they are painted as one region.
+     */
+    private static final int MAX_DIRTY_REGIONS = 32;
+
+    /**
+     * Fill colors of notes, matching the instrument ids in TuneComposer.css.
+     * Notes with an id not found here are filled with DEFAULT_FILL.
+     */
+    private static final HashMap<String, Color> INSTRUMENT_FILLS = new HashMap<>();
+    private static final Color DEFAULT_FILL = Color.BLACK;
+    static {
+        INSTRUMENT_FILLS.put("Piano", Color.GOLD);
+        INSTRUMENT_FILLS.put("Harpsichord", Color.LIGHTGREEN);
+        INSTRUMENT_FILLS.put("Marimba", Color.LIGHTSEAGREEN);
+        INSTRUMENT_FILLS.put("Organ", Color.LIMEGREEN);
+        INSTRUMENT_FILLS.put("Accordion", Color.SKYBLUE);
+        INSTRUMENT_FILLS.put("Guitar", Color.NAVY.interpolate(Color.WHITE, 0.5));
+        INSTRUMENT_FILLS.put("Violin",
+                Color.MEDIUMSLATEBLUE.interpolate(Color.WHITE, 0.5));
+        INSTRUMENT_FILLS.put("FrenchHorn", Color.MEDIUMVIOLETRED);
+    }
+
+    /**
+     * Outline colors, widths and corner sizes, matching the selectedNote,
+     * unselectedNote, selectedGesture and unselectedGesture styles.
+     */
+    private static final Color SELECTED_STROKE = Color.CORAL;
+    private static final Color UNSELECTED_STROKE = Color.DARKGRAY;
+    private static final double SELECTED_NOTE_WIDTH = 3;
+    private static final double OUTLINE_WIDTH = 2;
+    private static final double NOTE_ARC = 7;
+    private static final double GESTURE_DASH = 5;
+    private static final double GESTURE_GAP = 8;
+
+    /**
+     * The viewport whose SoundObjects are drawn.
+     */
+    private final SoundObjectViewport viewport;
+
+    /**
+     * Pane that the Canvas is shown on.
+     */
+    private final Pane soundObjectPane;
+
+    /**
+     * Canvas covering the visible part of the soundObjectPane, one canvas
+     * pixel per screen pixel.
+     */
+    private final Canvas canvas = new Canvas();
+
+    /**
+     * Undoes the zoom of the composition for the Canvas, so the Canvas is not
+     * larger than the screen area it covers.
+     */
+    private final Scale unzoom = new Scale(1, 1, 0, 0);
+
+    /**
+     * Bounds in pane coordinates that the Canvas covered when last painted,
+     * and the zoom it was painted at. Null if nothing has been painted yet.
+     */
+    private Bounds paintedBounds;
+    private double paintedZoomX;
+    private double paintedZoomY;
+
+    /**
+     * The spatial index of the viewport.
+     */
+    private final SoundObjectColumnIndex columnIndex;
+
+    /**
+     * Bounds each visualRectangle was last painted with.
+     */
+    private final HashMap<Rectangle, Bounds> rectBounds = new HashMap<>();
+
+    /**
+     * Order each visualRectangle was added in, so overlapping ones are
+     * painted and hit-tested in the same order the scene graph would use.
+     */
+    private final HashMap<Rectangle, Long> paintOrder = new HashMap<>();
+    private long nextPaintOrder = 0;
+
+    /**
+     * visualRectangles that changed since their bounds were last updated.
+     */
+    private final LinkedHashSet<Rectangle> changedRects = new LinkedHashSet<>();
+
+    /**
+     * Areas in pane coordinates that need to be repainted.
+     */
+    private final ArrayList<Bounds> dirtyRegions = new ArrayList<>();
+
+    /**
+     * Updates the bounds of changed visualRectangles and repaints the dirty
+     * regions at most once per pulse.
+     */
+    private final PulseCoalescer repaintCoalescer = new PulseCoalescer(this::repaint);
+
+    /**
+     * visualRectangles being dragged, drawn offset by dragX and dragY.
+     * Empty if no drag is in progress.
+     */
+    private final HashSet<Rectangle> draggedRects = new HashSet<>();
+    private Bounds draggedBounds;
+    private double dragX;
+    private double dragY;
+
+    /**
+     * The visualRectangle the current mouse press was handed to.
+     * Null if the press did not hit any.
+     */
+    private Rectangle pressedRect;
+
+    /**
+     * Records visualRectangles as changed when the viewport reports a change
+     * to them.
+     */
+    private final SoundObjectViewport.RectangleListener rectangleListener = (r) -> {
+        if (rectBounds.containsKey(r)) {
+            changedRects.add(r);
+            repaintCoalescer.request();
+        }
+    };
+
+    /**
+     * Tracks visualRectangles as they are added to and removed from the
+     * viewport.
+     */
+    private final ListChangeListener<Node> registryListener =
+            (ListChangeListener.Change<? extends Node> change) -> {
+        while (change.next()) {
+            for (Node n : change.getRemoved()) {
+                forgetRectangle((Rectangle) n);
+            }
+            for (Node n : change.getAddedSubList()) {
+                trackRectangle((Rectangle) n);
+            }
+        }
+        repaintCoalescer.request();
+    };
+
+    /**
+     * Constructs a layer for the given viewport, tracks all of its
+     * visualRectangles and shows the Canvas on the pane.
+     *
+     * @param viewport the viewport whose SoundObjects are drawn
+     * @param soundObjectPane the pane to show the Canvas on
+     */
+    public SoundObjectCanvasLayer(SoundObjectViewport viewport, Pane soundObjectPane) {
+        this.viewport = viewport;
+        this.soundObjectPane = soundObjectPane;
+        columnIndex = viewport.getColumnIndex();
+
+        ObservableList<Node> sObjNodes = viewport.getSoundObjectNodes();
+        for (Node n : sObjNodes) {
+            trackRectangle((Rectangle) n);
+        }
+        sObjNodes.addListener(registryListener);
+        viewport.addRectangleListener(rectangleListener);
+
+        canvas.addEventFilter(MouseEvent.MOUSE_PRESSED, this::handleCanvasPressed);
+        canvas.addEventFilter(MouseEvent.MOUSE_DRAGGED, this::handleCanvasDragged);
+        canvas.addEventFilter(MouseEvent.MOUSE_RELEASED, this::handleCanvasReleased);
+        canvas.getTransforms().add(unzoom);
+        soundObjectPane.getChildren().add(canvas);
+        repaintCoalescer.request();
+    }
+
+    /**
+     * Removes the Canvas from the pane and stops listening to the viewport
+     * and its visualRectangles.
+     */
+    public void dispose() {
+        repaintCoalescer.cancel();
+        viewport.getSoundObjectNodes().removeListener(registryListener);
+        viewport.removeRectangleListener(rectangleListener);
+        for (Rectangle r : new ArrayList<>(rectBounds.keySet())) {
+            forgetRectangle(r);
+        }
+        soundObjectPane.getChildren().remove(canvas);
+    }
+
+    /**
+     * Shows or hides the Canvas. A hidden Canvas is not repainted and does
+     * not receive mouse events, but changes are still tracked.
+     *
+     * @param visible true to show the Canvas
+     */
+    public void setVisible(boolean visible) {
+        canvas.setVisible(visible);
+        paintedBounds = null;
+        repaintCoalescer.request();
+    }
+
+    /**
+     * Requests that the Canvas is brought up to date on the next pulse.
+     * If the visible area has changed, then the whole Canvas is repainted,
+     * otherwise only the dirty regions are.
+     */
+    public void requestRepaint() {
+        repaintCoalescer.request();
+    }
+
+    /**
+     * Draws the given visualRectangles offset by setDragOffset() until
+     * endDrag() is called.
+     *
+     * @param rects visualRectangles of the SoundObjects being dragged
+     */
+    public void beginDrag(Collection<Rectangle> rects) {
+        draggedRects.addAll(rects);
+        draggedBounds = null;
+        for (Rectangle r : draggedRects) {
+            draggedBounds = union(draggedBounds, paddedBounds(r));
+        }
+        dragX = 0;
+        dragY = 0;
+    }
+
+    /**
+     * Moves the dragged visualRectangles to the given offset, repainting only
+     * the area they covered before and the area they cover now.
+     *
+     * @param x total x offset since beginDrag()
+     * @param y total y offset since beginDrag()
+     */
+    public void setDragOffset(double x, double y) {
+        if (draggedBounds == null) {
+            return;
+        }
+        markDirty(offset(draggedBounds, dragX, dragY));
+        dragX = x;
+        dragY = y;
+        markDirty(offset(draggedBounds, dragX, dragY));
+    }
+
+    /**
+     * Draws the dragged visualRectangles at their own positions again.
+     * The SoundObjects must be moved afterwards to keep them in place.
+     */
+    public void endDrag() {
+        if (draggedBounds != null) {
+            markDirty(offset(draggedBounds, dragX, dragY));
+            markDirty(draggedBounds);
+        }
+        draggedRects.clear();
+        draggedBounds = null;
+        dragX = 0;
+        dragY = 0;
+    }
+
+    /**
+     * Returns the topmost visualRectangle that is not mouse transparent and
+     * contains the given point in pane coordinates.
+     *
+     * @param x x coordinate on the soundObjectPane
+     * @param y y coordinate on the soundObjectPane
+     * @return the visualRectangle under the point, or null if there is none
+     */
+    public Rectangle hitTest(double x, double y) {
+        Rectangle hit = null;
+        for (Rectangle r : columnIndex.getColumn(SoundObjectColumnIndex.columnOf(x))) {
+            if (paintOrder.containsKey(r) && !r.isMouseTransparent() && r.contains(x, y)
+                    && (hit == null || paintOrder.get(r) > paintOrder.get(hit))) {
+                hit = r;
+            }
+        }
+        return hit;
+    }
+
+    /**
+     * Hands a mouse press on the Canvas to the visualRectangle under it.
+     * If nothing is hit, or the handler does not consume the press, then it
+     * continues on to the soundObjectPane's handlers.
+     *
+     * @param event the mouse press on the Canvas
+     */
+    private void handleCanvasPressed(MouseEvent event) {
+        Point2D location = soundObjectPane.sceneToLocal(event.getSceneX(), event.getSceneY());
+        pressedRect = hitTest(location.getX(), location.getY());
+        if (pressedRect != null) {
+            forward(event, pressedRect.getOnMousePressed());
+        }
+    }
+
+    /**
+     * Hands a mouse drag on the Canvas to the visualRectangle that was pressed.
+     *
+     * @param event the mouse drag on the Canvas
+     */
+    private void handleCanvasDragged(MouseEvent event) {
+        if (pressedRect != null) {
+            forward(event, pressedRect.getOnMouseDragged());
+        }
+    }
+
+    /**
+     * Hands a mouse release on the Canvas to the visualRectangle that was
+     * pressed, and forgets it.
+     *
+     * @param event the mouse release on the Canvas
+     */
+    private void handleCanvasReleased(MouseEvent event) {
+        if (pressedRect != null) {
+            Rectangle released = pressedRect;
+            pressedRect = null;
+            forward(event, released.getOnMouseReleased());
+        }
+    }
+
+    /**
+     * Runs the given handler with a copy of the event whose coordinates are
+     * in soundObjectPane's space, the same space visualRectangles use.
+     * Consumes the original event if the handler consumed the copy.
+     *
+     * @param event the mouse event on the Canvas
+     * @param handler the visualRectangle's handler, may be null
+     */
+    private void forward(MouseEvent event, EventHandler<? super MouseEvent> handler) {
+        if (handler == null) {
+            return;
+        }
+        MouseEvent copy = event.copyFor(soundObjectPane, soundObjectPane);
+        handler.handle(copy);
+        if (copy.isConsumed()) {
+            event.consume();
+        }
+    }
+
+    /**
+     * Starts painting the given visualRectangle.
+     *
+     * @param r visualRectangle added to the viewport
+     */
+    private void trackRectangle(Rectangle r) {
+        if (rectBounds.containsKey(r)) {
+            return;
+        }
+        paintOrder.put(r, nextPaintOrder++);
+        Bounds b = paddedBounds(r);
+        rectBounds.put(r, b);
+        markDirty(b);
+    }
+
+    /**
+     * Stops painting the given visualRectangle.
+     *
+     * @param r visualRectangle removed from the viewport
+     */
+    private void forgetRectangle(Rectangle r) {
+        Bounds b = rectBounds.remove(r);
+        if (b == null) {
+            return;
+        }
+        paintOrder.remove(r);
+        changedRects.remove(r);
+        markDirty(b);
+    }
+
+    /**
+     * Records the new bounds of every changed visualRectangle, and marks both
+     * the area it covered and the area it covers now as dirty.
+     */
+    private void updateBounds() {
+        for (Rectangle r : changedRects) {
+            Bounds oldBounds = rectBounds.get(r);
+            Bounds newBounds = paddedBounds(r);
+            rectBounds.put(r, newBounds);
+            markDirty(oldBounds);
+            markDirty(newBounds);
+        }
+        changedRects.clear();
+    }
+
+    /**
+     * Records that the given area must be repainted on the next pulse.
+     *
+     * @param b area in pane coordinates
+     */
+    private void markDirty(Bounds b) {
+        dirtyRegions.add(b);
+        repaintCoalescer.request();
+    }
+
+    /**
+     * Brings the Canvas up to date. Moves and resizes it to the visible area
+     * and repaints all of it if that area or the zoom changed, otherwise
+     * repaints only the dirty regions that are visible. Run by
+     * repaintCoalescer.
+     */
+    private void repaint() {
+        updateBounds();
+        if (!canvas.isVisible()) {
+            dirtyRegions.clear();
+            return;
+        }
+        Bounds visible = viewport.getVisibleBounds();
+        double zoomX = CompositionPaneController.getZoomX();
+        double zoomY = CompositionPaneController.getZoomY();
+
+        if (!visible.equals(paintedBounds) || (zoomX != paintedZoomX)
+                || (zoomY != paintedZoomY)) {
+            unzoom.setX(1 / zoomX);
+            unzoom.setY(1 / zoomY);
+            canvas.setWidth(Math.ceil(visible.getWidth() * zoomX));
+            canvas.setHeight(Math.ceil(visible.getHeight() * zoomY));
+            canvas.relocate(visible.getMinX(), visible.getMinY());
+            paintedBounds = visible;
+            paintedZoomX = zoomX;
+            paintedZoomY = zoomY;
+            dirtyRegions.clear();
+            paintRegion(visible);
+            return;
+        }
+
+        if (dirtyRegions.size() > MAX_DIRTY_REGIONS) {
+            Bounds all = null;
+            for (Bounds b : dirtyRegions) {
+                all = union(all, b);
+            }
+            dirtyRegions.clear();
+            dirtyRegions.add(all);
+        }
+        for (Bounds b : dirtyRegions) {
+            if (b.intersects(paintedBounds)) {
+                paintRegion(b);
+            }
+        }
+        dirtyRegions.clear();
+    }
+
+    /**
+     * Clears the given area of the Canvas and redraws every visualRectangle
+     * that overlaps it, clipped to the area. Dragged visualRectangles are
+     * drawn only if they overlap the area at their dragged position.
+     *
+     * @param region area in pane coordinates
+     */
+    private void paintRegion(Bounds region) {
+        GraphicsContext gc = canvas.getGraphicsContext2D();
+        gc.save();
+        gc.scale(paintedZoomX, paintedZoomY);
+        gc.translate(-paintedBounds.getMinX(), -paintedBounds.getMinY());
+        gc.beginPath();
+        gc.rect(region.getMinX(), region.getMinY(), region.getWidth(), region.getHeight());
+        gc.clip();
+        gc.clearRect(region.getMinX(), region.getMinY(), region.getWidth(), region.getHeight());
+
+        HashSet<Rectangle> found = new HashSet<>();
+        ArrayList<Rectangle> toPaint = new ArrayList<>();
+        int firstColumn = SoundObjectColumnIndex.columnOf(region.getMinX() - STROKE_PADDING);
+        int lastColumn = SoundObjectColumnIndex.columnOf(region.getMaxX() + STROKE_PADDING);
+        for (int c = firstColumn; c <= lastColumn; c++) {
+            for (Rectangle r : columnIndex.getColumn(c)) {
+                Bounds b = rectBounds.get(r);
+                if ((b != null) && !draggedRects.contains(r) && found.add(r)
+                        && b.intersects(region)) {
+                    toPaint.add(r);
+                }
+            }
+        }
+        toPaint.sort((a, b) -> Long.compare(paintOrder.get(a), paintOrder.get(b)));
+        for (Rectangle r : toPaint) {
+            paintRectangle(gc, r, 0, 0);
+        }
+
+        if (draggedBounds != null
+                && offset(draggedBounds, dragX, dragY).intersects(region)) {
+            for (Rectangle r : draggedRects) {
+                if (offset(paddedBounds(r), dragX, dragY).intersects(region)) {
+                    paintRectangle(gc, r, dragX, dragY);
+                }
+            }
+        }
+        gc.restore();
+    }
+
+    /**
+     * Draws one visualRectangle the way TuneComposer.css would style it.
+     *
+     * @param gc graphics context already transformed to pane coordinates
+     * @param r the visualRectangle to draw
+     * @param offsetX x offset to draw it at
+     * @param offsetY y offset to draw it at
+     */
+    private void paintRectangle(GraphicsContext gc, Rectangle r, double offsetX,
+            double offsetY) {
+        double x = r.getX() + offsetX;
+        double y = r.getY() + offsetY;
+        double w = r.getWidth();
+        double h = r.getHeight();
+        ObservableList<String> styles = r.getStyleClass();
+
+        if (styles.contains("selectedGesture") || styles.contains("unselectedGesture")) {
+            gc.setStroke(styles.contains("selectedGesture")
+                    ? SELECTED_STROKE : UNSELECTED_STROKE);
+            gc.setLineWidth(OUTLINE_WIDTH);
+            strokeDashedRect(gc, x, y, w, h);
+            return;
+        }
+
+        gc.setFill(getInstrumentFill(r.getId()));
+        gc.fillRoundRect(x, y, w, h, NOTE_ARC, NOTE_ARC);
+        if (styles.contains("selectedNote")) {
+            gc.setStroke(SELECTED_STROKE);
+            gc.setLineWidth(SELECTED_NOTE_WIDTH);
+            gc.strokeRoundRect(x, y, w, h, NOTE_ARC, NOTE_ARC);
+        }
+        else if (styles.contains("unselectedNote")) {
+            gc.setStroke(UNSELECTED_STROKE);
+            gc.setLineWidth(OUTLINE_WIDTH);
+            gc.strokeRoundRect(x, y, w, h, NOTE_ARC, NOTE_ARC);
+        }
+    }
+
+    /**
+     * Returns the fill color TuneComposer.css gives notes with the given id.
+     *
+     * @param id instrument name used as the note's id
+     * @return fill color of the instrument, or DEFAULT_FILL if unknown
+     */
+    static Color getInstrumentFill(String id) {
+        Color fill = INSTRUMENT_FILLS.get(id);
+        return (fill == null) ? DEFAULT_FILL : fill;
+    }
+
+    /**
+     * Strokes the outline of a rectangle as a dashed line, like the gesture
+     * styles' dash array.
+     *
+     * @param gc graphics context to draw on
+     * @param x left edge
+     * @param y top edge
+     * @param w width
+     * @param h height
+     */
+    private void strokeDashedRect(GraphicsContext gc, double x, double y, double w,
+            double h) {
+        for (double d = 0; d < w; d += GESTURE_DASH + GESTURE_GAP) {
+            double end = Math.min(d + GESTURE_DASH, w);
+            gc.strokeLine(x + d, y, x + end, y);
+            gc.strokeLine(x + d, y + h, x + end, y + h);
+        }
+        for (double d = 0; d < h; d += GESTURE_DASH + GESTURE_GAP) {
+            double end = Math.min(d + GESTURE_DASH, h);
+            gc.strokeLine(x, y + d, x, y + end);
+            gc.strokeLine(x + w, y + d, x + w, y + end);
+        }
+    }
+
+    /**
+     * Returns the bounds of the given visualRectangle, grown by STROKE_PADDING
+     * to include its outline.
+     *
+     * @param r the visualRectangle
+     * @return area the visualRectangle is drawn on
+     */
+    private static Bounds paddedBounds(Rectangle r) {
+        return new BoundingBox(r.getX() - STROKE_PADDING, r.getY() - STROKE_PADDING,
+                r.getWidth() + 2 * STROKE_PADDING, r.getHeight() + 2 * STROKE_PADDING);
+    }
+
+    /**
+     * Returns the given bounds moved by the given offset.
+     *
+     * @param b the bounds to move
+     * @param x x offset
+     * @param y y offset
+     * @return the moved bounds
+     */
+    private static Bounds offset(Bounds b, double x, double y) {
+        return new BoundingBox(b.getMinX() + x, b.getMinY() + y,
+                b.getWidth(), b.getHeight());
+    }
+
+    /**
+     * Returns the smallest bounds containing both given bounds.
+     *
+     * @param a the first bounds, or null
+     * @param b the second bounds
+     * @return bounds containing both, or b if a is null
+     */
+    private static Bounds union(Bounds a, Bounds b) {
+        if (a == null) {
+            return b;
+        }
+        double minX = Math.min(a.getMinX(), b.getMinX());
+        double minY = Math.min(a.getMinY(), b.getMinY());
+        double maxX = Math.max(a.getMaxX(), b.getMaxX());
+        double maxY = Math.max(a.getMaxY(), b.getMaxY());
+        return new BoundingBox(minX, minY, maxX - minX, maxY - minY);
+    }
+}
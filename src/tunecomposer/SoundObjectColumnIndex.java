@@ -0,0 +1,164 @@
+package tunecomposer;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import javafx.scene.shape.Rectangle;
+
+/**
+ * Spatial index of visualRectangles in columns one measure wide.
+ * A visualRectangle is in every column its bounds overlap, so the
+ * visualRectangles in an area are found by looking only at the columns the
+ * area overlaps, rather than at the whole composition.
+ *
+ * The index does not listen to the visualRectangles itself; update() must be
+ * called after one moves or changes width.
+ */
+public class SoundObjectColumnIndex {
+
+    /**
+     * Width in pixels of each column. One measure.
+     */
+    public static final int COLUMN_WIDTH = 80;
+
+    /**
+     * The visualRectangles in each column, keyed by column number.
+     * Empty columns are not kept.
+     */
+    private final HashMap<Integer, LinkedHashSet<Rectangle>> columns = new HashMap<>();
+
+    /**
+     * First and last column each visualRectangle was indexed in.
+     */
+    private final HashMap<Rectangle, int[]> indexedColumns = new HashMap<>();
+
+    /**
+     * Returns the column the given x coordinate is in.
+     *
+     * @param x x coordinate on the soundObjectPane
+     * @return column number
+     */
+    public static int columnOf(double x) {
+        return (int) Math.floor(x / COLUMN_WIDTH);
+    }
+
+    /**
+     * Adds the given visualRectangle to every column it overlaps.
+     * Same as update() if it is already indexed.
+     *
+     * @param r the visualRectangle
+     */
+    public void add(Rectangle r) {
+        int[] range = indexedColumns.get(r);
+        if (range != null) {
+            update(r);
+            return;
+        }
+        range = columnsOf(r);
+        insert(r, range);
+        indexedColumns.put(r, range);
+    }
+
+    /**
+     * Removes the given visualRectangle from the index.
+     * Does nothing if it is not indexed.
+     *
+     * @param r the visualRectangle
+     */
+    public void remove(Rectangle r) {
+        int[] range = indexedColumns.remove(r);
+        if (range != null) {
+            delete(r, range);
+        }
+    }
+
+    /**
+     * Moves the given visualRectangle to the columns it overlaps now.
+     * Does nothing if it is not indexed.
+     *
+     * @param r the visualRectangle
+     */
+    public void update(Rectangle r) {
+        int[] oldRange = indexedColumns.get(r);
+        if (oldRange == null) {
+            return;
+        }
+        int[] newRange = columnsOf(r);
+        if ((newRange[0] != oldRange[0]) || (newRange[1] != oldRange[1])) {
+            delete(r, oldRange);
+            insert(r, newRange);
+            indexedColumns.put(r, newRange);
+        }
+    }
+
+    /**
+     * Returns true if the given visualRectangle is indexed.
+     *
+     * @param r the visualRectangle
+     * @return true if it was added and not removed since
+     */
+    public boolean contains(Rectangle r) {
+        return indexedColumns.containsKey(r);
+    }
+
+    /**
+     * Returns the visualRectangles in the given column, in the order they
+     * were added to it.
+     *
+     * @param column column number
+     * @return unmodifiable view of the column, empty if nothing is in it
+     */
+    public Collection<Rectangle> getColumn(int column) {
+        LinkedHashSet<Rectangle> rects = columns.get(column);
+        if (rects == null) {
+            return Collections.emptySet();
+        }
+        return Collections.unmodifiableSet(rects);
+    }
+
+    /**
+     * Returns the first and last column the given visualRectangle overlaps.
+     *
+     * @param r the visualRectangle
+     * @return array of the first and the last column number
+     */
+    private static int[] columnsOf(Rectangle r) {
+        return new int[] {columnOf(r.getX()), columnOf(r.getX() + r.getWidth())};
+    }
+
+    /**
+     * Adds the given visualRectangle to the given columns.
+     *
+     * @param r the visualRectangle
+     * @param range first and last column
+     */
+    private void insert(Rectangle r, int[] range) {
+        for (int c = range[0]; c <= range[1]; c++) {
+            LinkedHashSet<Rectangle> column = columns.get(c);
+            if (column == null) {
+                column = new LinkedHashSet<>();
+                columns.put(c, column);
+            }
+            column.add(r);
+        }
+    }
+
+    /**
+     * Removes the given visualRectangle from the given columns.
+     *
+     * @param r the visualRectangle
+     * @param range first and last column
+     */
+    private void delete(Rectangle r, int[] range) {
+        for (int c = range[0]; c <= range[1]; c++) {
+            LinkedHashSet<Rectangle> column = columns.get(c);
+            if (column != null) {
+                column.remove(r);
+                if (column.isEmpty()) {
+                    columns.remove(c);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package tunecomposer;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveTask;
+import javafx.scene.Node;
+import javafx.scene.layout.Pane;
+
+/**
+ * Parses SoundObjects from their string representation on worker threads,
+ * so that opening a file or pasting does not build every NoteBar, Gesture and
+ * Rectangle on the FX thread.
+ *
+ * A quick pass over the string splits it into parts holding whole top-level
+ * notebars and gestures. The parts are read in parallel on a fork-join pool
+ * into SoundObjectSnapshots, which hold only the values of the notes, by
+ * tasks that halve the range of parts until one part is left. The snapshots
+ * are joined in the order of the string, and the SoundObjects are then built
+ * from the joined snapshot. They are not on any pane and are already marked
+ * selected, so building them does not touch the scene or the selected array.
+ * Once they are ready, the FX thread adds their visualRectangles to the pane
+ * in batches of BATCH_SIZE, with one addAll() per batch.
+ */
+public final class SoundObjectLoader {
+
+    /**
+     * Number of visualRectangles added to the pane with one addAll().
+     */
+    public static final int BATCH_SIZE = 1000;
+
+    /**
+     * Length of the parts the string is split into, in characters. Strings
+     * shorter than this are parsed in one part. Parts are much smaller than
+     * a whole file, so that idle threads can steal them.
+     */
+    private static final int PART_LENGTH = 64 * 1024;
+
+    /**
+     * Fork-join pool the parts are parsed and the SoundObjects built on,
+     * with one thread per core. Its threads are daemon threads.
+     */
+    private static final ForkJoinPool WORKERS = new ForkJoinPool(
+            Runtime.getRuntime().availableProcessors(), (pool) -> {
+        ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+        thread.setName("SoundObject loader " + thread.getPoolIndex());
+        return thread;
+    }, null, false);
+
+    /**
+     * Parses a range of the parts of a string into snapshots, by splitting
+     * the range in half and parsing the halves in parallel until one part is
+     * left.
+     */
+    private static class ParseTask extends RecursiveTask<ArrayList<SoundObjectSnapshot>> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String str;
+        private final ArrayList<int[]> parts;
+        private final int from;
+        private final int to;
+
+        /**
+         * Constructs a task to parse parts from through to - 1.
+         *
+         * @param str the string being parsed
+         * @param parts {start, end} indices of every part of the string
+         * @param from index of the first part to parse
+         * @param to index after the last part to parse
+         */
+        private ParseTask(String str, ArrayList<int[]> parts, int from, int to) {
+            this.str = str;
+            this.parts = parts;
+            this.from = from;
+            this.to = to;
+        }
+
+        /**
+         * Parses the range of parts.
+         *
+         * @return snapshot of each part in order, or null if any part cannot
+         *          be parsed. A part without notes gives an empty snapshot.
+         */
+        @Override
+        protected ArrayList<SoundObjectSnapshot> compute() {
+            if (to - from == 1) {
+                int[] part = parts.get(from);
+                SoundObjectSnapshot snapshot = 
+                        new SoundObjectParser(str, part[0], part[1], null, null).parsePartSnapshot();
+                if (snapshot == null) {
+                    return null;
+                }
+                ArrayList<SoundObjectSnapshot> snapshots = new ArrayList<>();
+                snapshots.add(snapshot);
+                return snapshots;
+            }
+            int middle = (from + to) / 2;
+            ParseTask second = new ParseTask(str, parts, middle, to);
+            second.fork();
+            ArrayList<SoundObjectSnapshot> snapshots = 
+                    new ParseTask(str, parts, from, middle).compute();
+            ArrayList<SoundObjectSnapshot> secondSnapshots = second.join();
+            if ((snapshots == null) || (secondSnapshots == null)) {
+                return null;
+            }
+            snapshots.addAll(secondSnapshots);
+            return snapshots;
+        }
+    }
+
+    /**
+     * Not constructed; all methods are static.
+     */
+    private SoundObjectLoader() {
+    }
+
+    /**
+     * Starts parsing the given string on the worker threads.
+     * The string is first read into a SoundObjectSnapshot, and the
+     * SoundObjects are then built from it. They are given in the order they
+     * appear in the string. If any part of the string cannot be parsed, then
+     * the result is an empty list, as from SoundObjectParser.parseString().
+     *
+     * @param str string in XML format to parse, or null
+     * @param soundObjPane pane the SoundObjects will be put in
+     * @param actionManager actionManager used for undo/redo
+     * @return future holding the parsed SoundObjects
+     */
+    public static CompletableFuture<ArrayList<SoundObject>> parse(String str,
+            Pane soundObjPane, ActionManager actionManager) {
+        return parseSnapshot(str).thenApplyAsync((snapshot) -> {
+            if (snapshot == null) {
+                return new ArrayList<>();
+            }
+            return snapshot.toSoundObjects(soundObjPane, actionManager);
+        }, WORKERS);
+    }
+
+    /**
+     * Starts reading the given string into a SoundObjectSnapshot on the
+     * worker threads, without building any SoundObjects. The string is split
+     * into parts, the parts are read in parallel and their snapshots joined
+     * in order.
+     *
+     * @param str string in XML format to parse, or null
+     * @return future holding the snapshot, or null if any part of the string
+     *          cannot be parsed
+     */
+    public static CompletableFuture<SoundObjectSnapshot> parseSnapshot(String str) {
+        if (str == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return CompletableFuture.supplyAsync(() -> {
+            ArrayList<int[]> parts = SoundObjectParser.splitTopLevel(str, 
+                    Math.max(1, str.length() / PART_LENGTH));
+            if (parts.isEmpty()) {
+                return null;
+            }
+            ArrayList<SoundObjectSnapshot> snapshots = 
+                    new ParseTask(str, parts, 0, parts.size()).invoke();
+            if (snapshots == null) {
+                return null;
+            }
+            // like the single-pass parser, valid only if some part held a note
+            SoundObjectSnapshot snapshot = SoundObjectSnapshot.concat(snapshots);
+            return (snapshot.xs.length == 0) ? null : snapshot;
+        }, WORKERS);
+    }
+
+    /**
+     * Starts reading the composition in the given file, in the binary format
+     * of BinaryCompositionFormat, and building its SoundObjects on a worker
+     * thread. If the file cannot be read, then the future fails with an
+     * UncheckedIOException giving the reason.
+     *
+     * @param filePath path of the file to read
+     * @param soundObjPane pane the SoundObjects will be put in
+     * @param actionManager actionManager used for undo/redo
+     * @return future holding the SoundObjects read
+     */
+    public static CompletableFuture<ArrayList<SoundObject>> readBinary(String filePath,
+            Pane soundObjPane, ActionManager actionManager) {
+        return CompletableFuture.supplyAsync(() -> {
+            SoundObjectSnapshot snapshot;
+            try {
+                snapshot = BinaryCompositionFormat.read(Paths.get(filePath));
+            }
+            catch (IOException ex) {
+                throw new UncheckedIOException(ex.getMessage(), ex);
+            }
+            return snapshot.toSoundObjects(soundObjPane, actionManager);
+        }, WORKERS);
+    }
+
+    /**
+     * Starts building the SoundObjects held in the given snapshot on a
+     * worker thread. No text is parsed.
+     *
+     * @param snapshot snapshot of the SoundObjects to build
+     * @param soundObjPane pane the SoundObjects will be put in
+     * @param actionManager actionManager used for undo/redo
+     * @return future holding the built SoundObjects
+     */
+    public static CompletableFuture<ArrayList<SoundObject>> build(SoundObjectSnapshot snapshot,
+            Pane soundObjPane, ActionManager actionManager) {
+        return CompletableFuture.supplyAsync(() -> {
+            return snapshot.toSoundObjects(soundObjPane, actionManager);
+        }, WORKERS);
+    }
+
+    /**
+     * Splits the visualRectangles of the given SoundObjects into batches of
+     * at most BATCH_SIZE, in the order addToPane() would add them. A gesture
+     * may be split across two batches.
+     *
+     * @param sObjs SoundObjects that are not on a pane
+     * @return batches of visualRectangles to add to the pane in order
+     */
+    public static ArrayList<List<Node>> batchVisualRectangles(List<SoundObject> sObjs) {
+        ArrayList<Node> nodes = new ArrayList<>();
+        for (SoundObject sObj : sObjs) {
+            sObj.collectVisualRectangles(nodes);
+        }
+        return SlicedJob.split(nodes, BATCH_SIZE);
+    }
+}
@@ -0,0 +1,169 @@
+package tunecomposer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+import javafx.collections.ModifiableObservableListBase;
+import javafx.scene.Node;
+
+/**
+ * The observable list holding the visualRectangles of all SoundObjects on a
+ * composition, built to stay fast with many thousands of SoundObjects.
+ *
+ * Every node is counted in a hash map, so contains() takes constant time.
+ * removeAll() and clear() take out any number of nodes in one pass over the
+ * list and fire a single change, where a plain observable list removes them
+ * one at a time and shifts the rest of the list down after each one.
+ */
+public class SoundObjectNodeList extends ModifiableObservableListBase<Node> {
+
+    /**
+     * The nodes, in order.
+     */
+    private final ArrayList<Node> nodes = new ArrayList<>();
+
+    /**
+     * Number of times each node is in the list.
+     */
+    private final HashMap<Node, Integer> counts = new HashMap<>();
+
+    /**
+     * Returns the node at the given index.
+     *
+     * @param index index of the node
+     * @return the node
+     */
+    @Override
+    public Node get(int index) {
+        return nodes.get(index);
+    }
+
+    /**
+     * Returns the number of nodes in the list.
+     *
+     * @return number of nodes
+     */
+    @Override
+    public int size() {
+        return nodes.size();
+    }
+
+    /**
+     * Returns true if the given node is in the list, in constant time.
+     *
+     * @param o the node to look for
+     * @return true if the list holds it
+     */
+    @Override
+    public boolean contains(Object o) {
+        return counts.containsKey(o);
+    }
+
+    /**
+     * Removes every node in the given collection in one pass, firing a single
+     * change for all of them.
+     *
+     * @param c nodes to remove; a Set is looked up directly, anything else is
+     *          copied into one first
+     * @return true if any node was removed
+     */
+    @Override
+    public boolean removeAll(Collection<?> c) {
+        Set<?> toRemove = (c instanceof Set) ? (Set<?>) c : new HashSet<>(c);
+        beginChange();
+        int kept = 0;
+        for (int i = 0; i < nodes.size(); i++) {
+            Node n = nodes.get(i);
+            if (toRemove.contains(n)) {
+                uncount(n);
+                nextRemove(kept, n);
+            }
+            else {
+                nodes.set(kept++, n);
+            }
+        }
+        boolean removed = kept < nodes.size();
+        if (removed) {
+            nodes.subList(kept, nodes.size()).clear();
+            modCount++;
+        }
+        endChange();
+        return removed;
+    }
+
+    /**
+     * Removes every node, firing a single change.
+     */
+    @Override
+    public void clear() {
+        if (nodes.isEmpty()) {
+            return;
+        }
+        beginChange();
+        nextRemove(0, new ArrayList<>(nodes));
+        nodes.clear();
+        counts.clear();
+        modCount++;
+        endChange();
+    }
+
+    /**
+     * Inserts the given node at the given index.
+     *
+     * @param index where to insert the node
+     * @param element the node
+     */
+    @Override
+    protected void doAdd(int index, Node element) {
+        nodes.add(index, element);
+        count(element);
+    }
+
+    /**
+     * Replaces the node at the given index.
+     *
+     * @param index index of the node to replace
+     * @param element the new node
+     * @return the node replaced
+     */
+    @Override
+    protected Node doSet(int index, Node element) {
+        Node old = nodes.set(index, element);
+        uncount(old);
+        count(element);
+        return old;
+    }
+
+    /**
+     * Removes the node at the given index.
+     *
+     * @param index index of the node to remove
+     * @return the node removed
+     */
+    @Override
+    protected Node doRemove(int index) {
+        Node old = nodes.remove(index);
+        uncount(old);
+        return old;
+    }
+
+    /**
+     * Counts one more of the given node.
+     *
+     * @param n node added to the list
+     */
+    private void count(Node n) {
+        counts.merge(n, 1, Integer::sum);
+    }
+
+    /**
+     * Counts one fewer of the given node, forgetting it at zero.
+     *
+     * @param n node removed from the list
+     */
+    private void uncount(Node n) {
+        counts.computeIfPresent(n, (node, count) -> (count > 1) ? count - 1 : null);
+    }
+}
@@ -0,0 +1,177 @@
+package tunecomposer;
+
+import javafx.geometry.Bounds;
+import javafx.scene.canvas.Canvas;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.image.PixelWriter;
+import javafx.scene.image.WritableImage;
+import javafx.scene.layout.Pane;
+import javafx.scene.paint.Color;
+import javafx.scene.transform.Scale;
+
+/**
+ * Draws the composition from a NoteDensityPyramid when it is zoomed out too
+ * far for single notes to be worth drawing. Each visible cell of the chosen
+ * pyramid level becomes one pixel of an image, shaded by how many notes cover
+ * it, and the image is stretched over the visible area. The cost depends on
+ * the size of the view, not the number of notes.
+ */
+public class SoundObjectOverviewLayer {
+
+    /**
+     * Smallest width in screen pixels a drawn cell may have. Sets which
+     * level of the pyramid is drawn from.
+     */
+    private static final double MIN_CELL_PIXELS = 2;
+
+    /**
+     * Color of cells covered by notes. Cells covered by fewer notes than
+     * the busiest visible cell are drawn more transparent.
+     */
+    private static final Color DENSITY_COLOR = Color.GOLD;
+
+    /**
+     * Opacity of a cell covered by a single note.
+     */
+    private static final double MIN_OPACITY = 0.35;
+
+    /**
+     * The viewport whose SoundObjects are drawn.
+     */
+    private final SoundObjectViewport viewport;
+
+    /**
+     * Pane that the Canvas is shown on.
+     */
+    private final Pane soundObjectPane;
+
+    /**
+     * Note counts to draw from.
+     */
+    private final NoteDensityPyramid pyramid;
+
+    /**
+     * Canvas covering the visible part of the soundObjectPane, one canvas
+     * pixel per screen pixel.
+     */
+    private final Canvas canvas = new Canvas();
+
+    /**
+     * Undoes the zoom of the composition for the Canvas, so the Canvas is not
+     * larger than the screen area it covers.
+     */
+    private final Scale unzoom = new Scale(1, 1, 0, 0);
+
+    /**
+     * Image holding one pixel per visible cell. Replaced when too small.
+     */
+    private WritableImage cellImage;
+
+    /**
+     * Repaints the Canvas at most once per pulse.
+     */
+    private final PulseCoalescer repaintCoalescer = new PulseCoalescer(this::repaint);
+
+    /**
+     * Constructs a layer drawing from the given pyramid, and shows its Canvas
+     * on the pane. The Canvas ignores the mouse so clicks reach the pane.
+     *
+     * @param viewport the viewport whose SoundObjects are drawn
+     * @param soundObjectPane the pane to show the Canvas on
+     * @param pyramid note counts to draw from
+     */
+    public SoundObjectOverviewLayer(SoundObjectViewport viewport, Pane soundObjectPane,
+            NoteDensityPyramid pyramid) {
+        this.viewport = viewport;
+        this.soundObjectPane = soundObjectPane;
+        this.pyramid = pyramid;
+        canvas.setMouseTransparent(true);
+        canvas.getTransforms().add(unzoom);
+        soundObjectPane.getChildren().add(canvas);
+        repaintCoalescer.request();
+    }
+
+    /**
+     * Removes the Canvas from the pane.
+     */
+    public void dispose() {
+        repaintCoalescer.cancel();
+        soundObjectPane.getChildren().remove(canvas);
+    }
+
+    /**
+     * Requests that the Canvas is repainted on the next pulse.
+     */
+    public void requestRepaint() {
+        repaintCoalescer.request();
+    }
+
+    /**
+     * Repaints the visible area from the pyramid level whose cells are just
+     * wider than MIN_CELL_PIXELS. Run by repaintCoalescer.
+     */
+    private void repaint() {
+        Bounds visible = viewport.getVisibleBounds();
+        double zoomX = CompositionPaneController.getZoomX();
+        double zoomY = CompositionPaneController.getZoomY();
+
+        unzoom.setX(1 / zoomX);
+        unzoom.setY(1 / zoomY);
+        canvas.setWidth(Math.ceil(visible.getWidth() * zoomX));
+        canvas.setHeight(Math.ceil(visible.getHeight() * zoomY));
+        canvas.relocate(visible.getMinX(), visible.getMinY());
+        GraphicsContext gc = canvas.getGraphicsContext2D();
+        gc.clearRect(0, 0, canvas.getWidth(), canvas.getHeight());
+
+        int level = pyramid.getLevelFor(zoomX, MIN_CELL_PIXELS);
+        int cellWidth = pyramid.getCellWidth(level);
+        int cellHeight = SoundObject.HEIGHT;
+        int firstColumn = Math.max(0, (int) Math.floor(visible.getMinX() / cellWidth));
+        int lastColumn = Math.min(pyramid.getColumns(level) - 1,
+                (int) Math.floor(visible.getMaxX() / cellWidth));
+        int firstRow = Math.max(0, (int) Math.floor(visible.getMinY() / cellHeight));
+        int lastRow = Math.min(NoteDensityPyramid.ROWS - 1,
+                (int) Math.floor(visible.getMaxY() / cellHeight));
+        if ((lastColumn < firstColumn) || (lastRow < firstRow)) {
+            return;
+        }
+
+        int maxCount = 0;
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int c = firstColumn; c <= lastColumn; c++) {
+                maxCount = Math.max(maxCount, pyramid.getCount(level, c, row));
+            }
+        }
+        if (maxCount == 0) {
+            return;
+        }
+
+        int imageWidth = lastColumn - firstColumn + 1;
+        int imageHeight = lastRow - firstRow + 1;
+        if ((cellImage == null) || (cellImage.getWidth() < imageWidth)
+                || (cellImage.getHeight() < imageHeight)) {
+            cellImage = new WritableImage(imageWidth, imageHeight);
+        }
+        PixelWriter writer = cellImage.getPixelWriter();
+        int rgb = ((int) Math.round(DENSITY_COLOR.getRed() * 255) << 16)
+                | ((int) Math.round(DENSITY_COLOR.getGreen() * 255) << 8)
+                | (int) Math.round(DENSITY_COLOR.getBlue() * 255);
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int c = firstColumn; c <= lastColumn; c++) {
+                int count = pyramid.getCount(level, c, row);
+                int alpha = 0;
+                if (count > 0) {
+                    double opacity = MIN_OPACITY
+                            + (1 - MIN_OPACITY) * (count - 1) / Math.max(1, maxCount - 1);
+                    alpha = (int) Math.round(opacity * 255);
+                }
+                writer.setArgb(c - firstColumn, row - firstRow, (alpha << 24) | rgb);
+            }
+        }
+
+        gc.drawImage(cellImage, 0, 0, imageWidth, imageHeight,
+                (firstColumn * cellWidth - visible.getMinX()) * zoomX,
+                (firstRow * cellHeight - visible.getMinY()) * zoomY,
+                imageWidth * cellWidth * zoomX, imageHeight * cellHeight * zoomY);
+    }
+}
@@ -2,8 +2,10 @@ package tunecomposer;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.EmptyStackException;
+import java.util.concurrent.CompletableFuture;
 import javafx.fxml.FXML;
+import javafx.geometry.Bounds;
+import javafx.scene.input.Clipboard;
 import javafx.scene.layout.Pane;
 import javafx.scene.Node;
 import javafx.scene.shape.Rectangle;
@@ -51,14 +53,50 @@ public class SoundObjectPaneController {
      */
     public static ArrayList<SoundObject> TEMP_SELECTED_SOUNDOBJ_ARRAY = new ArrayList();
     
+    /**
+     * Number of Gestures in SELECTED_SOUNDOBJECT_ARRAY.
+     */
+    private static int selectedGestureCount = 0;
+         
     /**
      * Fills the SELECTED_SOUNDOBJECT_ARRAY with the currently selected notes.
      */
     public void updateSelectedSoundObjectArray(){
+        staticUpdateSelectedArray(soundObjectPane);
+    }
+    
+    /**
+     * Copy of SELECTED_SOUNDOBJECT_ARRAY that actions hold on to instead of
+     * cloning it, shared by every action made until the selection changes.
+     * Null until one is asked for. Must not be modified.
+     */
+    private static ArrayList<SoundObject> sharedSelection;
+    
+    /**
+     * Number of deferSelectionUpdates() calls not yet resumed.
+     */
+    private static int selectionUpdateDeferrals = 0;
+    
+    /**
+     * Pane whose rescan was put off while updates were deferred, or null.
+     */
+    private static Pane deferredUpdatePane;
+    
+    /**
+     * Fills the SELECTED_SOUNDOBJECT_ARRAY with the currently selected notes.
+     * Posts SELECTION_CHANGED on the ChangeEventBus.
+     * While updates are deferred, only remembers that a rescan is needed.
+     * @param pane the current pane
+     */
+    public static void staticUpdateSelectedArray(Pane pane){
+        if (selectionUpdateDeferrals > 0) {
+            deferredUpdatePane = pane;
+            return;
+        }
         SELECTED_SOUNDOBJECT_ARRAY.clear();
-        for (Node n: soundObjectPane.getChildren()) {
+        selectedGestureCount = 0;
+        for (Node n: SoundObjectViewport.getSoundObjectNodes(pane)) {
             Rectangle r = (Rectangle) n;
-
             SoundObject sObj = (SoundObject) (r).getUserData();
             if(sObj == null){
                 System.out.println("NULL");
@@ -66,26 +104,81 @@ public class SoundObjectPaneController {
             if (sObj.isSelected()) {
                 if (sObj.getTopGesture() == null) {
                     SELECTED_SOUNDOBJECT_ARRAY.add(sObj);
+                    if (sObj instanceof Gesture) {
+                        selectedGestureCount++;
+                    }
                 }
             }
         }
+        if ((sharedSelection != null) && !isSelection(sharedSelection)) {
+            sharedSelection = null;
+        }
+        ChangeEventBus.post(ChangeEvent.SELECTION_CHANGED);
     }
     
     /**
-     * Fills the SELECTED_SOUNDOBJECT_ARRAY with the currently selected notes.
-     * @param pane the current pane
+     * Returns true if the given list holds the same SoundObjects as the
+     * SELECTED_SOUNDOBJECT_ARRAY, in the same order.
+     * @param sObjs list to compare
+     * @return true if they are the same
      */
-    public static void staticUpdateSelectedArray(Pane pane){
-        SELECTED_SOUNDOBJECT_ARRAY.clear();
-        for (Node n: pane.getChildren()) {
-            Rectangle r = (Rectangle) n;
-            SoundObject sObj = (SoundObject) (r).getUserData();
-            if (sObj.isSelected()) {
-                if (sObj.getTopGesture() == null) {
-                    SELECTED_SOUNDOBJECT_ARRAY.add(sObj);
-                }
+    private static boolean isSelection(ArrayList<SoundObject> sObjs) {
+        if (sObjs.size() != SELECTED_SOUNDOBJECT_ARRAY.size()) {
+            return false;
+        }
+        for (int i = 0; i < sObjs.size(); i++) {
+            if (sObjs.get(i) != SELECTED_SOUNDOBJECT_ARRAY.get(i)) {
+                return false;
             }
         }
+        return true;
+    }
+    
+    /**
+     * Returns a copy of the SELECTED_SOUNDOBJECT_ARRAY that is shared by every
+     * caller until the selection changes, so that repeated edits of the same
+     * selection do not each copy it. The copy must not be modified.
+     * @return the shared copy of the selection
+     */
+    public static ArrayList<SoundObject> getSharedSelection() {
+        if (sharedSelection == null) {
+            sharedSelection = new ArrayList<>(SELECTED_SOUNDOBJECT_ARRAY);
+        }
+        return sharedSelection;
+    }
+    
+    /**
+     * Puts off rescans of the SELECTED_SOUNDOBJECT_ARRAY until the matching
+     * resumeSelectionUpdates(), so that selecting or unselecting many
+     * SoundObjects rescans once instead of once per SoundObject. The array
+     * is out of date until then. Calls may be nested.
+     */
+    public static void deferSelectionUpdates() {
+        selectionUpdateDeferrals++;
+    }
+    
+    /**
+     * Ends the innermost deferSelectionUpdates(). Ending the outermost one
+     * rescans the SELECTED_SOUNDOBJECT_ARRAY if any rescan was put off.
+     */
+    public static void resumeSelectionUpdates() {
+        if ((selectionUpdateDeferrals == 0) || (--selectionUpdateDeferrals > 0)) {
+            return;
+        }
+        if (deferredUpdatePane != null) {
+            Pane pane = deferredUpdatePane;
+            deferredUpdatePane = null;
+            staticUpdateSelectedArray(pane);
+        }
+    }
+    
+    /**
+     * Returns the number of Gestures in SELECTED_SOUNDOBJECT_ARRAY, without
+     * looking through it.
+     * @return number of selected Gestures
+     */
+    public static int getSelectedGestureCount() {
+        return selectedGestureCount;
     }
     
   
@@ -97,10 +190,10 @@ public class SoundObjectPaneController {
         CutAction cutAction;
 
         cutAction = new CutAction(SELECTED_SOUNDOBJECT_ARRAY, soundObjectPane);
+        actionManager.beginTransaction();
         actionManager.execute(cutAction);
-        actionManager.putInUndoStack(cutAction);
-        
         updateSelectedSoundObjectArray();
+        actionManager.commit();
     }
     
     /**
@@ -118,53 +211,85 @@ public class SoundObjectPaneController {
     
     /**
      * Adds most recently copied or cut SoundObjects onto the CompositionPane
-     * ten pixels to the right and down.
+     * ten pixels to the right and down. The SoundObjects are rebuilt from the
+     * clipboard's SoundObjectSnapshot if it has one, or else parsed from its
+     * text, on worker threads by a SoundObjectLoader. Then the SoundObjects
+     * are pasted and the previous selection unselected a slice at a time by
+     * the scheduler, and
+     * the paste is put onto the undo stack once it has finished.
      */
     public void paste() {
+        Clipboard clipboard = Clipboard.getSystemClipboard();
+        SoundObjectSnapshot snapshot = SoundObjectSnapshot.fromClipboard(clipboard);
+        String clipboardStr = (snapshot == null) ? clipboard.getString() : null;
+        
         UnselectAction unselectAction;
         unselectAction = new UnselectAction(SELECTED_SOUNDOBJECT_ARRAY);
         
-        PasteAction pasteAction;
-        
-        pasteAction = new PasteAction(soundObjectPane, actionManager);
-        ArrayList<Action> lastActions;
-        try {
-            lastActions = actionManager.peekUndoStack();
-        } catch (EmptyStackException ex) {
-            actionManager.execute(pasteAction);
-            actionManager.putInUndoStack(pasteAction);
-            return;
+        ArrayList<Action> lastActions = actionManager.peekUndoStack();
+        int yOffset = 0;
+        if (lastActions != null) {
+            Action a = lastActions.get(0);
+            if (a instanceof PasteAction) {
+                PasteAction oldPaste = (PasteAction) a;
+                yOffset = oldPaste.getOffset() + 10;
+            }
+            else if (a instanceof CopyAction) {
+                yOffset = 10;
+            }
         }
-        Action a = lastActions.get(0);
-        if (a instanceof PasteAction) {
-            PasteAction oldPaste = (PasteAction) a;
-            int lastYOffset = oldPaste.getOffset();
-            lastYOffset += 10;
-            pasteAction.setOffset(lastYOffset);
+        int pasteOffset = yOffset;
+        
+        CompletableFuture<ArrayList<SoundObject>> built;
+        if (snapshot != null) {
+            built = SoundObjectLoader.build(snapshot, soundObjectPane, actionManager);
         }
-        else if (a instanceof CopyAction) {
-            int yOffset = 10;
-            pasteAction.setOffset(yOffset);
+        else {
+            built = SoundObjectLoader.parse(clipboardStr, soundObjectPane, actionManager);
         }
+        CompletableFuture<PasteAction> pasted = built.thenApply((sObjs) -> {
+            PasteAction pasteAction;
+            pasteAction = new PasteAction(soundObjectPane, clipboardStr, sObjs);
+            pasteAction.setOffset(pasteOffset);
+            pasteAction.moveToOffset();
+            return pasteAction;
+        });
         
-        ArrayList<Action> actions = new ArrayList();
-        actions.add(pasteAction);
-        actions.add(unselectAction);
-        
-        actionManager.execute(actions); 
-        
-        actionManager.putInUndoStack(actions);
-
-        updateSelectedSoundObjectArray();
+        SlicedJob job = new SlicedJob("Pasting");
+        job.addPhase(pasted.thenApply((pasteAction) -> pasteAction.affectedObjs), 
+                (sObj) -> {
+            pasted.join().execute(sObj);
+        }, (sObj) -> {
+            pasted.join().undo(Arrays.asList(sObj));
+        });
+        if (lastActions == null) {
+            job.setOnFinished(() -> {
+                ArrayList<Action> actions = new ArrayList<>();
+                actions.add(pasted.join());
+                commitJob(actions);
+            });
+        }
+        else {
+            job.addPhase(unselectAction.affectedObjs, unselectAction::execute, 
+                    unselectAction::undo);
+            job.setOnFinished(() -> {
+                ArrayList<Action> actions = new ArrayList<>();
+                actions.add(pasted.join());
+                actions.add(unselectAction);
+                commitJob(actions);
+            });
+        }
+        job.setOnCancelled(this::updateSelectedSoundObjectArray);
+        compositionPaneController.scheduler.schedule(job);
     }
     
     /**
-     * Selects all the SoundObjects on the CompositionPane.
+     * Selects all the SoundObjects on the CompositionPane, a slice at a time.
      */
     public void selectAll() {
         ArrayList<SoundObject> allSObjs = new ArrayList();
         
-        for (Node n: soundObjectPane.getChildren()) {
+        for (Node n: SoundObjectViewport.getSoundObjectNodes(soundObjectPane)) {
             Rectangle r = (Rectangle) n;
             SoundObject sObj = (SoundObject) (r).getUserData();
             if (!sObj.isSelected()) {
@@ -175,41 +300,74 @@ public class SoundObjectPaneController {
         SelectAction selectAction;
         selectAction = new SelectAction(allSObjs);
         
-        actionManager.execute(selectAction);
-        updateSelectedSoundObjectArray();
-        
-        actionManager.putInUndoStack(selectAction);
+        SlicedJob job = new SlicedJob("Selecting");
+        job.addPhase(selectAction.affectedObjs, selectAction::execute, selectAction::undo);
+        job.setOnFinished(() -> {
+            ArrayList<Action> actions = new ArrayList<>();
+            actions.add(selectAction);
+            commitJob(actions);
+        });
+        job.setOnCancelled(this::updateSelectedSoundObjectArray);
+        compositionPaneController.scheduler.schedule(job);
     }
         
     /**
-     * Deletes the selected SoundObjects from the CompositionPane.
+     * Deletes the selected SoundObjects from the CompositionPane, a batch at
+     * a time.
      */
     public void delete() {
         ArrayList<Action> deletions = new ArrayList();
         
         DeleteAction deleteAction;
         deleteAction = new DeleteAction(SELECTED_SOUNDOBJECT_ARRAY, soundObjectPane);
-
-        deleteAction.execute();
         deletions.add(deleteAction);
-        
+
+        SlicedJob job = new SlicedJob("Deleting");
+        job.addPhase(SlicedJob.split(deleteAction.affectedObjs, SoundObjectLoader.BATCH_SIZE), 
+                deleteAction::execute, deleteAction::undo);
+        job.setOnFinished(() -> {
+            commitJob(deletions);
+        });
+        job.setOnCancelled(this::updateSelectedSoundObjectArray);
+        compositionPaneController.scheduler.schedule(job);
+    }
+    
+    /**
+     * Puts the actions of a finished sliced job onto the undo stack as one
+     * entry, in a transaction like the operations that run all at once, so
+     * the selected array is rescanned once as it commits.
+     * 
+     * @param actions the actions the job carried out
+     */
+    private void commitJob(ArrayList<Action> actions) {
+        actionManager.beginTransaction();
+        actionManager.putInUndoStack(actions);
         updateSelectedSoundObjectArray();
-        actionManager.putInUndoStack(deletions);
+        actionManager.commit();
     }
     
     /**
      * Groups the selected NoteBars or Gestures.
+     * The new Gesture is built from all of them at once, so the grouping is
+     * queued behind any running job but is not split into slices.
      */
     public void group() {
         GroupAction groupAction = new GroupAction(SELECTED_SOUNDOBJECT_ARRAY, 
         actionManager, soundObjectPane);
-        actionManager.execute(groupAction);
-        updateSelectedSoundObjectArray();
-        actionManager.putInUndoStack(groupAction);
+        SlicedJob job = new SlicedJob("Grouping");
+        job.addPhase(Arrays.asList(groupAction), actionManager::execute, null);
+        job.setOnFinished(() -> {
+            ArrayList<Action> actions = new ArrayList<>();
+            actions.add(groupAction);
+            commitJob(actions);
+        });
+        compositionPaneController.scheduler.schedule(job);
     }
     
     /**
      * Ungroups the selected group.
+     * All the ungroupings are made in one transaction, so they are undone
+     * together and the selected array is rescanned once.
      */
     public void ungroup() {
         ArrayList<Action> actions = new ArrayList();
@@ -221,9 +379,10 @@ public class SoundObjectPaneController {
             }
         }
         
+        actionManager.beginTransaction();
         actionManager.execute(actions);
         updateSelectedSoundObjectArray();
-        actionManager.putInUndoStack(actions);
+        actionManager.commit();
     }
     
     /**
@@ -231,46 +390,30 @@ public class SoundObjectPaneController {
      * @param instrumentName
      */
     public void changeInstrument(String instrumentName) {
-        ArrayList<Action> changes = new ArrayList();
-        
         ChangeInstrumentAction changeInstrumentAction;
         changeInstrumentAction = new ChangeInstrumentAction(instrumentName, 
                 SELECTED_SOUNDOBJECT_ARRAY, soundObjectPane);
 
-        changeInstrumentAction.execute();
-        changes.add(changeInstrumentAction);
-        
+        actionManager.beginTransaction();
+        actionManager.execute(changeInstrumentAction);
         updateSelectedSoundObjectArray();
-        actionManager.putInUndoStack(changes);
+        actionManager.commit();
     }
     
     /**
      * Creates a chord of the specified type.
+     * The chord is added and the previous selection unselected in one
+     * transaction.
      * 
      * @param noteData an integer array of the steps between each note.
      */
     public void makeChord(ArrayList<Integer> noteData){
-        ArrayList<Action> actionList = new ArrayList();
         UnselectAction usAction = new UnselectAction(SELECTED_SOUNDOBJECT_ARRAY);
-        actionList.add(usAction);
                     
-        double hmin = compositionPaneController.scrollPane.getHmin();
-        double hmax = compositionPaneController.scrollPane.getHmax();
-        double hvalue = compositionPaneController.scrollPane.getHvalue();
-        double contentWidth = 14400.0;
-        double viewportWidth = compositionPaneController.scrollPane.getViewportBounds().getWidth();
-
-        int xShift = (int)
-            (Math.max(0, contentWidth - viewportWidth) * (hvalue - hmin) / (hmax - hmin));
-        
-        double vmin = compositionPaneController.scrollPane.getVmin();
-        double vmax = compositionPaneController.scrollPane.getVmax();
-        double vvalue = compositionPaneController.scrollPane.getVvalue();
-        double contentHeight = 1280;
-        double viewportHeight = compositionPaneController.scrollPane.getViewportBounds().getHeight();
- 
-        int yShift = (int)
-            (Math.max(0,  contentHeight - viewportHeight) * (vvalue - vmin) / (vmax - vmin));
+        Bounds visible = CompositionPaneController.getVisibleBounds(
+                compositionPaneController.scrollPane);
+        int xShift = (int) visible.getMinX();
+        int yShift = (int) visible.getMinY();
         
         InstrumentInfo instrumentInfo = new InstrumentInfo();
         String name = InstrumentToolBarController.selectedInstrument;
@@ -291,10 +434,11 @@ public class SoundObjectPaneController {
         
         ArrayList<SoundObject> soundToAdd = new ArrayList<>(Arrays.asList(gest));
         AddSoundAction addSoundAction = new AddSoundAction(soundToAdd, soundObjectPane, actionManager, compositionPaneController.scrollPane);
-        actionList.add(addSoundAction);
-        actionManager.execute(actionList);
+        actionManager.beginTransaction();
+        actionManager.execute(usAction);
+        actionManager.execute(addSoundAction);
         updateSelectedSoundObjectArray();
-        actionManager.putInUndoStack(actionList);
+        actionManager.commit();
     }
     
     
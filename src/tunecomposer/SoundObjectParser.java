@@ -1,26 +1,67 @@
 package tunecomposer;
 
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.util.ArrayList;
 import javafx.scene.layout.Pane;
 
 /**
  * Class to convert SoundObjects between string and object representations.
+ * 
+ * The string is read in a single pass by a cursor that steps from tag to
+ * tag, reading the fields of each NoteBar in place, so no part of the string
+ * is copied, and parsing takes time in proportion to the length of the
+ * string. Tags and field names are read ignoring case. The notes and
+ * gestures are first read into a SoundObjectSnapshot, which holds only
+ * their values, and SoundObjects are built from it only when asked for.
  */
 public class SoundObjectParser {
     
     /**
-     * Initially, the string to be parsed to SoundObjects. 
-     * Will be reassigned as reader steps through, trimming the beginning so 
-     * the beginning of the string is always the next section to read.
+     * Kinds of tag found by nextTag(), along with the end of the string and
+     * anything that is not a valid tag.
+     */
+    private static final int NO_TAG = 0;
+    private static final int NOTEBAR_TAG = 1;
+    private static final int NOTEBAR_END_TAG = 2;
+    private static final int GESTURE_TAG = 3;
+    private static final int GESTURE_END_TAG = 4;
+    private static final int INVALID_TAG = 5;
+    
+    /**
+     * Names of the fields in a NoteBar object's string representation, in
+     * the order NoteBar's constructor takes them.
+     */
+    private static final String[] NOTEBAR_FIELDS = {"x", "y", "width", "instrument"};
+    
+    /**
+     * The characters to be parsed to SoundObjects.
      * Tags cannot be inside tags: <tag<tag>>
      */
-    private String iterateStr;
+    private final String input;
+    
+    /**
+     * Index in input at which the characters to parse start, and the index
+     * after the last of them.
+     */
+    private final int inputStart;
+    private final int inputEnd;
     
     /**
-     * All the keywords for the different fields in a NoteBar object's string
-     * representation.
+     * Index of the next character to read in input.
      */
-    private final ArrayList<String> noteBarKeywords = new ArrayList();
+    private int pos;
+    
+    /**
+     * Index at which the tag last read by nextTag() starts.
+     */
+    private int tagStart;
+    
+    /**
+     * Values of NOTEBAR_FIELDS for the NoteBar last read by readNoteFields().
+     */
+    private final int[] noteValues = new int[NOTEBAR_FIELDS.length];
     
     /**
      * Pane all SoundObjects are on. Used in SoundObject constructors.
@@ -34,42 +75,59 @@ public class SoundObjectParser {
     private final ActionManager actionManager;
     
     /**
-     * Instantiates the string field that will be stepped through as the class
-     * reads the given XML string.
+     * Sets the characters that will be stepped through as the class reads 
+     * the given XML string.
      * 
-     * @param stringToParse string in XML format to convert into an object
+     * @param stringToParse characters in XML format to convert into objects
      * @param soundObjPane must be pane all SoundObjects are put in
      * @param aM must be the actionManager being used for undo/redo.
      */
-    public SoundObjectParser(String stringToParse, Pane soundObjPane, ActionManager aM) {
+    public SoundObjectParser(CharSequence stringToParse, Pane soundObjPane, ActionManager aM) {
+        this(stringToParse.toString(), 0, stringToParse.length(), soundObjPane, aM);
+    }
+    
+    /**
+     * Sets the part of the given string that will be stepped through as the
+     * class reads it, such as one part from splitTopLevel(). The string is 
+     * not copied.
+     * 
+     * @param str string holding XML to convert into objects
+     * @param start index the part to parse starts at
+     * @param end index after the end of the part to parse
+     * @param soundObjPane must be pane all SoundObjects are put in
+     * @param aM must be the actionManager being used for undo/redo.
+     */
+    public SoundObjectParser(String str, int start, int end, Pane soundObjPane, 
+            ActionManager aM) {
         this.soundObjPane = soundObjPane;
         this.actionManager = aM;
-        
-        iterateStr = stringToParse.toLowerCase();
-        
-        noteBarKeywords.add("x");
-        noteBarKeywords.add("y");
-        noteBarKeywords.add("width");
-        noteBarKeywords.add("instrument");
+        input = str;
+        inputStart = start;
+        inputEnd = end;
     }
     
     /**
      * Find whether the given string in this parser instance is able to be
-     * parsed into SoundObject objects.
+     * parsed into SoundObject objects. Does not build any SoundObjects.
      * @return 
      *      true if it can be parsed, false if it cannot or if the string is empty.
      */
     public boolean isParsable() {
-        String strReset = iterateStr;
-        ArrayList<SoundObject> sObjs = parseString();
-        iterateStr = strReset;
-        if (sObjs.isEmpty()) {
-            return false;
-        }
-        else {
-            return true;
-        }
-        
+        return read(null, true);
+    }
+    
+    /**
+     * Find whether the given string is able to be parsed into SoundObject 
+     * objects, by reading it in one pass without building any SoundObjects.
+     * Accepts exactly the strings that parseString() would turn into a 
+     * non-empty list.
+     * 
+     * @param str string in XML format to check
+     * @return 
+     *      true if it can be parsed, false if it cannot or if the string is empty.
+     */
+    public static boolean isParsable(CharSequence str) {
+        return new SoundObjectParser(str, null, null).isParsable();
     }
     
     /**
@@ -79,271 +137,318 @@ public class SoundObjectParser {
      * @return string representation of given SoundObjects
      */
     public static String soundObjsToXML(ArrayList<SoundObject> sObjs) {
-        String parseStr = "";
+        StringWriter out = new StringWriter();
+        try {
+            writeXML(sObjs, out);
+        }
+        catch (IOException ex) {
+            // a StringWriter does not throw
+        }
+        return out.toString();
+    }
+    
+    /**
+     * Writes the string XML representation of the given SoundObjects to the
+     * given writer in one pass, one SoundObject at a time, as 
+     * soundObjsToXML() would return it.
+     * @param sObjs SoundObjects to be converted
+     * @param out writer to write to
+     * @throws IOException if the writer fails
+     */
+    public static void writeXML(Iterable<SoundObject> sObjs, Writer out) throws IOException {
         for (SoundObject s : sObjs) {
-            parseStr += s.objectToXML();
+            s.writeXML(out);
         }
-        return parseStr;
     }
     
+    /**
+     * Splits the given string into about the given number of parts, each
+     * holding whole top-level notebars and gestures, so that the parts can be
+     * parsed separately and their SoundObjects joined in order.
+     * A part only ends after a closing tag that is not inside a gesture. If
+     * the gestures in the string are not balanced, then everything after the
+     * first stray closing tag is left in one part. The parts are given as
+     * indices into the string, so nothing is copied.
+     *
+     * @param str string in XML format to split
+     * @param parts number of parts wanted, at least 1
+     * @return {start, end} indices of the parts in order, fewer than asked 
+     *          for if str is short
+     */
+    public static ArrayList<int[]> splitTopLevel(String str, int parts) {
+        ArrayList<int[]> split = new ArrayList<>();
+        int partLength = Math.max(1, str.length() / Math.max(1, parts));
+        int partStart = 0;
+        int depth = 0;
+        int tagStart = str.indexOf('<');
+        while (tagStart != -1) {
+            int tagEnd = str.indexOf('>', tagStart);
+            if (tagEnd == -1) {
+                break;
+            }
+            if (str.regionMatches(true, tagStart, "<gesture>", 0, tagEnd - tagStart + 1)) {
+                depth++;
+            }
+            else if (str.regionMatches(true, tagStart, "</gesture>", 0, tagEnd - tagStart + 1)) {
+                depth--;
+            }
+            else if (!str.regionMatches(true, tagStart, "</notebar>", 0, tagEnd - tagStart + 1)) {
+                tagStart = str.indexOf('<', tagEnd);
+                continue;
+            }
+            if (depth < 0) {
+                break;
+            }
+            if ((depth == 0) && (tagEnd + 1 - partStart >= partLength)) {
+                split.add(new int[] {partStart, tagEnd + 1});
+                partStart = tagEnd + 1;
+            }
+            tagStart = str.indexOf('<', tagEnd);
+        }
+        if (str.indexOf('<', partStart) != -1) {
+            split.add(new int[] {partStart, str.length()});
+        }
+        return split;
+    }
+
     /**
      * Returns parsed SoundObjects.
      * If the given string cannot be parsed, then it handles that by returning
      * an empty ArrayList.
      * @return array list of SoundObjects that were parsed.
      */
-    public ArrayList<SoundObject> parseString()  {
-        try {
-            ArrayList<SoundObject> sObjs = stringToObjects(false);
-            return sObjs;
-        }
-        catch (InvalidXMLTagException ex) {
+    public ArrayList<SoundObject> parseString() {
+        SoundObjectSnapshot snapshot = parseSnapshot();
+        if (snapshot == null) {
             return new ArrayList<>();
         }
+        return snapshot.toSoundObjects(soundObjPane, actionManager);
     }
     
     /**
-     * Convert given string of SoundObject representations into an ArrayList of
-     * fully instantiated SundObjects. Input string must have open and close
-     * tags for all objects. See example at end of file.
+     * Reads the string into a snapshot of the notes and gestures it holds,
+     * without building any SoundObjects, so that no JavaFX object is made.
      * 
-     * @param isRecursive true if this is a recursive call, false if not.
-     * @return ArrayList of SoundObjects created from a given, valid, string
-     * @throws InvalidXMLTagException if a tag was not recognized or no closing
-     *          tag was found.
+     * @return the snapshot, or null if the string cannot be parsed
      */
-    public ArrayList<SoundObject> stringToObjects(boolean isRecursive) 
-                                                throws InvalidXMLTagException{        
-        ArrayList<SoundObject> foundSoundObjs = new ArrayList();
-        
-        String tag;
-        while (true) {
-            tag = getNextTag();
-            moveThroughNextTag();
-            switch (tag) {
-                case "<notebar>":
-                    ArrayList<Integer> noteData = getNoteData();
-                    NoteBar note = makeNote(noteData);
-                    foundSoundObjs.add(note);
-                    moveThroughNextTag();
-                    break;
-                case "<gesture>":
-                    ArrayList<SoundObject> gestureContents;
-                    gestureContents = stringToObjects(true);
-                    if (!gestureContents.isEmpty()) {
-                        Gesture gest = createGesture(gestureContents);
-                        foundSoundObjs.add(gest);
-                    }   break;
-                case "</gesture>":
-                    return foundSoundObjs;
-                case "NO TAG":
-                    if (isRecursive) {
-                        String error = "No end tag in XML: " + iterateStr;
-                        throw new InvalidXMLTagException(error);
-                    }
-                    else {
-                        if (foundSoundObjs.isEmpty()) {
-                            String error = "no notes found in given string to parse";
-                            throw new InvalidXMLTagException(error);                            
-                        }
-                        else {
-                            return foundSoundObjs;
-                        }
-                    }
-                default:
-                    String error = "Tag, '"+tag+"', not recognized: ";
-                    throw new InvalidXMLTagException(error);
-            }
+    public SoundObjectSnapshot parseSnapshot() {
+        SoundObjectSnapshot.Builder builder = new SoundObjectSnapshot.Builder();
+        if (!read(builder, true)) {
+            return null;
         }
+        return builder.build();
     }
     
     /**
-     * Get the index for the beginning of the next tag in iterateStr.
+     * Reads one part of a larger string, such as from splitTopLevel(), into
+     * a snapshot as parseSnapshot() does, except that a part holding no 
+     * notes, such as only an empty gesture, gives a snapshot without notes.
+     * Whether the whole string holds a note is left to the caller.
      * 
-     * @param start Integer reference to alter to start of next tag's index
-     * @return true if tag found, false if no tag found
-     * @throws InvalidXMLTagException if empty tag, or no end to tag
+     * @return the snapshot, or null if the part cannot be parsed
      */
-    private int getNextTagStartIndex() throws InvalidXMLTagException {
-        int tagStart = iterateStr.indexOf("<");
-        
-        if ( iterateStr.isEmpty() ) {
-            return -1;
-        }
-        
-        //check if tag contains nothing
-        String nextChar = iterateStr.substring(tagStart+1, tagStart+2);
-        if ( nextChar.equals('>') ) {
-            String error = "empty tag found: " + iterateStr;
-            throw new InvalidXMLTagException(error);
+    public SoundObjectSnapshot parsePartSnapshot() {
+        SoundObjectSnapshot.Builder builder = new SoundObjectSnapshot.Builder();
+        if (!read(builder, false)) {
+            return null;
         }
-        
-        // check if a stray less-than symbol is before the greater-than symbol.
-        int closeTag = iterateStr.indexOf(">");
-        if (tagStart > closeTag) {
-            String error = "stray close tag found: " + iterateStr;
-            throw new InvalidXMLTagException(error);
-        }
-        // no tagStart, but has a close tag
-        if (tagStart == -1 && closeTag > -1) {
-            String error = "no start to tag, but there is a close: " + iterateStr;
-            throw new InvalidXMLTagException(error);
-        }
-        return tagStart;
+        return builder.build();
     }
     
     /**
-     * Get the end index of provided tag's start index in iterateStr.
-     * Provide the tag to find the end index of by giving the start index.
+     * Reads the string from the start in one pass, adding each note and 
+     * gesture to the given builder as soon as its tag is read. Text between
+     * tags is skipped. A closing gesture tag that is not inside a gesture
+     * ends the string.
      * 
-     * @param tagStart index the tag starts at
-     * @return the index of the less-than symbol that closes the tag
-     * @throws InvalidXMLTagException if no end found to tag
+     * @param builder builder to add to, or null to only check the string
+     * @param needsNote true if a string without any notes is not valid
+     * @return true if the string was valid, and held at least one note if
+     *          needsNote is true
      */
-    private int getEndIndexOfTag(int tagStart) throws InvalidXMLTagException {
-        int tagEnd = iterateStr.indexOf(">", tagStart);
-        if ( tagEnd == -1 ) {
-            String error = "No end tag found: \n" + iterateStr;
-            throw new InvalidXMLTagException(error);
+    private boolean read(SoundObjectSnapshot.Builder builder, boolean needsNote) {
+        pos = inputStart;
+        int depth = 0;
+        boolean foundNote = false;
+        while (true) {
+            switch (nextTag()) {
+                case NOTEBAR_TAG:
+                    int dataStart = pos;
+                    if ((nextTag() != NOTEBAR_END_TAG) || !readNoteFields(dataStart, tagStart)) {
+                        return false;
+                    }
+                    foundNote = true;
+                    if (builder != null) {
+                        builder.addNote(noteValues[0], noteValues[1], 
+                                noteValues[2], noteValues[3]);
+                    }
+                    break;
+                case GESTURE_TAG:
+                    depth++;
+                    if (builder != null) {
+                        builder.startGesture();
+                    }
+                    break;
+                case GESTURE_END_TAG:
+                    if (depth == 0) {
+                        return foundNote || !needsNote;
+                    }
+                    depth--;
+                    if (builder != null) {
+                        builder.endGesture();
+                    }
+                    break;
+                case NO_TAG:
+                    return (depth == 0) && (foundNote || !needsNote);
+                default:
+                    return false;
+            }
         }
-        return tagEnd;
     }
     
     /**
-     * Returns next open or close tag in given string. 
-     * Tag type is not checked to be valid except for a greater-than, less-than,
-     * and at least one character inside. Any character before the greater-than 
-     * will be ignored. Returns "NO TAG" if no tag is found in given string.
+     * Moves the cursor past the next tag and returns what kind it is. 
+     * Any characters before the tag are skipped, but a greater-than before 
+     * the tag's less-than, or a tag that is never closed, is not valid.
+     * Sets tagStart to the index the tag starts at.
      * 
-     * @throws InvalidXMLTagException
-     *          If no closing for a tag found or tags are empty
-     * @return "NO TAG" if no tag is found, else the next tag in iterateStr
+     * @return NO_TAG if there are no more tags, else the kind of tag read
      */
-    public String getNextTag() throws InvalidXMLTagException{
-        int tagStart = getNextTagStartIndex();
-        if ( tagStart == -1 ) {
-            return "NO TAG";
+    private int nextTag() {
+        int start = pos;
+        while ((start < inputEnd) && (input.charAt(start) != '<')) {
+            if (input.charAt(start) == '>') {
+                return INVALID_TAG;
+            }
+            start++;
         }
-        int tagEnd = getEndIndexOfTag(tagStart);
-        //if tagEnd is end of iterateStr, return tagStart to end
-        if ( tagEnd == iterateStr.length() - 1 ) {
-            return iterateStr.substring(tagStart);
+        if (start == inputEnd) {
+            return NO_TAG;
         }
-        else {
-            return iterateStr.substring(tagStart, tagEnd+1);
+        int end = start + 1;
+        while ((end < inputEnd) && (input.charAt(end) != '>')) {
+            if (input.charAt(end) == '<') {
+                return INVALID_TAG;
+            }
+            end++;
         }
-    }
-    
-    /**
-     * Trims off the beginning of iterateStr until the end of the next tag. If
-     * No more tags, then does nothing. The next tag must not be empty.
-     */
-    public void moveThroughNextTag() {
-        int tagStart = getNextTagStartIndex();
-        if ( tagStart == -1 ) {
-            return;
+        if (end == inputEnd) {
+            return INVALID_TAG;
         }
-        int tagEnd = getEndIndexOfTag(tagStart);
-        iterateStr = iterateStr.substring(tagEnd + 1);
-    }
-    
-    /**
-     * Reads the given string for NoteBar data. Spelling must be correct, no
-     * spaces between variable name, the colon, and the value. Spaces should
-     * separate each datapoint. Will begin reading at start of given str, and
-     * returns when reaching end tag. Exception if finds anything unexpected.
-     * 
-     * @return 
-     *       ArrayList with values of note's x and y coordinate, length, and
-     *       instrument number in order added to noteBarKeywords in constructor.
-     */
-    public ArrayList<Integer> getNoteData() {    
-        String endTag = getNextTag();
-        if (!endTag.equals("</notebar>")) {
-            String error = "'</notebar>' expected and not found: \n" + iterateStr;
-            throw new InvalidXMLTagException(error);
+        tagStart = start;
+        pos = end + 1;
+        if (matches(start, pos, "<notebar>")) {
+            return NOTEBAR_TAG;
+        }
+        else if (matches(start, pos, "</notebar>")) {
+            return NOTEBAR_END_TAG;
+        }
+        else if (matches(start, pos, "<gesture>")) {
+            return GESTURE_TAG;
         }
-        int tagStart = getNextTagStartIndex();
-        
-        ArrayList<Integer> noteValues = new ArrayList();
-        String dataString = iterateStr.substring(0, tagStart);
-        
-        //find all required values for NoteBars
-        for (String field : noteBarKeywords) {
-            Integer value = getDataFieldValue(field, dataString);
-            noteValues.add(value);
+        else if (matches(start, pos, "</gesture>")) {
+            return GESTURE_END_TAG;
         }
-        return noteValues;
+        return INVALID_TAG;
     }
     
     /**
-     * Get the value of a field from a given string. 
-     * After given field, find the sequence of values in given string, and 
-     * return as int. No spaces, if field-name not in given string, then throws
-     * exception. Field name must be followed directly by a colon, and then by
-     * the value. Value must be a sequence of number-characters with no letters
-     * or symbols.
+     * Returns true if the given part of input is the given word, ignoring
+     * case.
      * 
-     * @param fieldName field name of which to return value of
-     * @param str string extract value from
-     * @return value extracted from the string as an int
-     * @throws IndexOutOfBoundsException if fieldName not in str
+     * @param start index the part starts at
+     * @param end index after the end of the part
+     * @param word the word to compare to, in lower case
+     * @return true if they match
      */
-    private int getDataFieldValue(String fieldName, String str) 
-                                throws IndexOutOfBoundsException {
-        if (!str.contains(fieldName)) {
-            String error = "data string does not contain fieldName: '" 
-                                        + fieldName + "' str: '" + str;
-            throw new IndexOutOfBoundsException(error);
+    private boolean matches(int start, int end, String word) {
+        if (end - start != word.length()) {
+            return false;
         }
-        //get index before and after value
-        int valIndex = str.indexOf(fieldName) + fieldName.length();
-        int endValIndex = str.indexOf(" ", valIndex);
-        //grab value and return as int
-        String valString = str.substring(valIndex+1, endValIndex);
-        int valInt = 0;
-        try {
-            valInt = Integer.parseInt(valString);
-        } catch (NumberFormatException ex) {
+        for (int i = 0; i < word.length(); i++) {
+            if (Character.toLowerCase(input.charAt(start + i)) != word.charAt(i)) {
+                return false;
+            }
         }
-        return valInt;
-    }
-
-    private NoteBar makeNote(ArrayList<Integer> noteData) {
-        int x = noteData.get(0);
-        int y = noteData.get(1);
-        int width = noteData.get(2);
-        int instrument = noteData.get(3);
-        
-        NoteBar note = new NoteBar(x, y, width, instrument, actionManager, soundObjPane);
-        note.visualRectangle.setUserData(note);
-
-        return note;
+        return true;
     }
     
     /**
-     * Creates a gesture with the given contents. 
-     * Sets the mouse handlers for all children of gesture.
+     * Reads the NoteBar fields in the given part of input into noteValues. 
+     * Fields are separated by whitespace, and each is the field name, a 
+     * colon and then the value, with no spaces. If a field appears more than
+     * once, then the first is used. A value that is not a number is read as
+     * 0. Anything that is not a NoteBar field is skipped.
      * 
-     * @param gestureContents populated ArrayList of SoundObjects
-     * @return the created gesture
+     * @param start index the NoteBar data starts at
+     * @param end index after the end of the data
+     * @return true if every field was found
      */
-    private Gesture createGesture(ArrayList<SoundObject> gestureContents) {
-        //add if gest not empty
-        Gesture gest = new Gesture(gestureContents, actionManager, soundObjPane);
-//        gest.visualRectangle.setUserData(gest);
-//        gest.setTopGesture();
-        return gest;
+    private boolean readNoteFields(int start, int end) {
+        int foundFields = 0;
+        int i = start;
+        while (i < end) {
+            while ((i < end) && Character.isWhitespace(input.charAt(i))) {
+                i++;
+            }
+            int nameStart = i;
+            while ((i < end) && (input.charAt(i) != ':') 
+                    && !Character.isWhitespace(input.charAt(i))) {
+                i++;
+            }
+            if ((i == end) || (input.charAt(i) != ':')) {
+                continue;
+            }
+            int nameEnd = i;
+            int valueStart = ++i;
+            while ((i < end) && !Character.isWhitespace(input.charAt(i))) {
+                i++;
+            }
+            for (int field = 0; field < NOTEBAR_FIELDS.length; field++) {
+                if (((foundFields & (1 << field)) == 0) 
+                        && matches(nameStart, nameEnd, NOTEBAR_FIELDS[field])) {
+                    noteValues[field] = readInt(valueStart, i);
+                    foundFields |= 1 << field;
+                    break;
+                }
+            }
+        }
+        return foundFields == (1 << NOTEBAR_FIELDS.length) - 1;
     }
     
     /**
-     * Exceptions for tags in the given XML that are not declared, empty, or
-     * unending.
+     * Reads the given part of input as a decimal int, with an optional sign,
+     * as Integer.parseInt() would.
+     * 
+     * @param start index the number starts at
+     * @param end index after the end of the number
+     * @return the number, or 0 if it is not a valid int
      */
-    private static class InvalidXMLTagException extends StringIndexOutOfBoundsException {
-        
-        public InvalidXMLTagException(String s) {
-            super(s);
+    private int readInt(int start, int end) {
+        boolean negative = false;
+        int i = start;
+        if ((i < end) && ((input.charAt(i) == '-') || (input.charAt(i) == '+'))) {
+            negative = (input.charAt(i) == '-');
+            i++;
+        }
+        if (i == end) {
+            return 0;
+        }
+        long value = 0;
+        for (; i < end; i++) {
+            int digit = Character.digit(input.charAt(i), 10);
+            if (digit == -1) {
+                return 0;
+            }
+            value = value * 10 + digit;
+            if (value > (long) Integer.MAX_VALUE + 1) {
+                return 0;
+            }
+        }
+        value = negative ? -value : value;
+        if (value > Integer.MAX_VALUE) {
+            return 0;
         }
+        return (int) value;
     }
-}
\ No newline at end of file
+}
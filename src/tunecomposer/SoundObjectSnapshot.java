@@ -0,0 +1,445 @@
+package tunecomposer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javafx.scene.input.Clipboard;
+import javafx.scene.input.DataFormat;
+import javafx.scene.layout.Pane;
+
+/**
+ * A compact copy of some SoundObjects, put on the clipboard next to their
+ * text representation so that pasting inside Tune Composer can rebuild them
+ * directly, without writing and parsing text. Deletions also keep the
+ * SoundObjects they removed as a snapshot while they are in the undo history.
+ *
+ * A snapshot is also what the SoundObjectParser reads text into, before any
+ * NoteBar, Gesture or Rectangle is built, so that files are read on worker
+ * threads without JavaFX, and toSoundObjects() only builds the SoundObjects
+ * once they are to be put on the pane.
+ *
+ * The notes are kept in columns of ints: x, y, width and instrument, in the
+ * order they appear. The gestures are kept as a structure array that lists
+ * the note indices in order, with GESTURE_START and GESTURE_END around the
+ * contents of each gesture. On the clipboard, the snapshot is a byte array
+ * holding VERSION, the note count, the structure length, the structure and
+ * then the columns.
+ */
+public class SoundObjectSnapshot {
+
+    /**
+     * Clipboard format the snapshot is put on the clipboard as.
+     */
+    public static final DataFormat DATA_FORMAT =
+            new DataFormat("application/x-tunecomposer-snapshot");
+
+    /**
+     * Version of the byte layout, checked when reading it back.
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * Structure entries for the start and end of a gesture's contents.
+     */
+    static final int GESTURE_START = -1;
+    static final int GESTURE_END = -2;
+
+    /**
+     * Columns holding each note's x, y, width and instrument number, as
+     * written by NoteBar.objectToXML().
+     */
+    final int[] xs;
+    final int[] ys;
+    final int[] widths;
+    final int[] instruments;
+
+    /**
+     * Note indices in order, with the contents of each gesture between a
+     * GESTURE_START and a GESTURE_END.
+     */
+    final int[] structure;
+
+    /**
+     * Constructs a snapshot from its columns and structure.
+     *
+     * @param xs x of each note
+     * @param ys y of each note
+     * @param widths width of each note
+     * @param instruments instrument number of each note
+     * @param structure note indices and gesture bounds in order
+     */
+    SoundObjectSnapshot(int[] xs, int[] ys, int[] widths, int[] instruments,
+            int[] structure) {
+        this.xs = xs;
+        this.ys = ys;
+        this.widths = widths;
+        this.instruments = instruments;
+        this.structure = structure;
+    }
+
+    /**
+     * Builds a snapshot one note and gesture bound at a time, in the order
+     * they appear, such as while reading them from text. The columns grow as
+     * needed.
+     */
+    public static class Builder {
+
+        private int[] xs = new int[16];
+        private int[] ys = new int[16];
+        private int[] widths = new int[16];
+        private int[] instruments = new int[16];
+        private int noteCount;
+
+        private int[] structure = new int[16];
+        private int structureLength;
+
+        /**
+         * Adds a note inside the innermost open gesture, if any.
+         *
+         * @param x x of the note
+         * @param y y of the note
+         * @param width width of the note
+         * @param instrument instrument number of the note
+         */
+        public void addNote(int x, int y, int width, int instrument) {
+            if (noteCount == xs.length) {
+                int capacity = 2 * noteCount;
+                xs = Arrays.copyOf(xs, capacity);
+                ys = Arrays.copyOf(ys, capacity);
+                widths = Arrays.copyOf(widths, capacity);
+                instruments = Arrays.copyOf(instruments, capacity);
+            }
+            xs[noteCount] = x;
+            ys[noteCount] = y;
+            widths[noteCount] = width;
+            instruments[noteCount] = instrument;
+            addToStructure(noteCount);
+            noteCount++;
+        }
+
+        /**
+         * Opens a gesture inside the innermost open gesture, if any.
+         */
+        public void startGesture() {
+            addToStructure(GESTURE_START);
+        }
+
+        /**
+         * Closes the innermost open gesture. A gesture with nothing inside
+         * it is left out when the SoundObjects are built.
+         */
+        public void endGesture() {
+            addToStructure(GESTURE_END);
+        }
+
+        /**
+         * Adds an entry to the end of the structure.
+         *
+         * @param entry a note index, GESTURE_START or GESTURE_END
+         */
+        private void addToStructure(int entry) {
+            if (structureLength == structure.length) {
+                structure = Arrays.copyOf(structure, 2 * structureLength);
+            }
+            structure[structureLength++] = entry;
+        }
+
+        /**
+         * Returns the snapshot of everything added. Every gesture must have
+         * been closed.
+         *
+         * @return the snapshot
+         */
+        public SoundObjectSnapshot build() {
+            return new SoundObjectSnapshot(Arrays.copyOf(xs, noteCount),
+                    Arrays.copyOf(ys, noteCount), Arrays.copyOf(widths, noteCount),
+                    Arrays.copyOf(instruments, noteCount),
+                    Arrays.copyOf(structure, structureLength));
+        }
+    }
+
+    /**
+     * Takes a snapshot of the given SoundObjects and everything inside them.
+     *
+     * @param sObjs SoundObjects to copy
+     * @return snapshot of them
+     */
+    public static SoundObjectSnapshot of(List<SoundObject> sObjs) {
+        return of(sObjs, false);
+    }
+
+    /**
+     * Takes a snapshot of the given SoundObjects as the ActionJournal last
+     * recorded them, using each note's journaled values.
+     *
+     * @param sObjs SoundObjects to copy
+     * @return snapshot of them as journaled
+     */
+    static SoundObjectSnapshot ofJournaled(List<SoundObject> sObjs) {
+        return of(sObjs, true);
+    }
+
+    /**
+     * Takes a snapshot of the given SoundObjects and everything inside them.
+     *
+     * @param sObjs SoundObjects to copy
+     * @param journaled true to use each note's journaled values instead of
+     *          its current ones
+     * @return snapshot of them
+     */
+    private static SoundObjectSnapshot of(List<SoundObject> sObjs, boolean journaled) {
+        ArrayList<NoteBar> notes = new ArrayList<>();
+        ArrayList<Integer> structureList = new ArrayList<>();
+        for (SoundObject sObj : sObjs) {
+            addToStructure(sObj, notes, structureList);
+        }
+
+        int noteCount = notes.size();
+        int[] xs = new int[noteCount];
+        int[] ys = new int[noteCount];
+        int[] widths = new int[noteCount];
+        int[] instruments = new int[noteCount];
+        for (int i = 0; i < noteCount; i++) {
+            NoteBar note = notes.get(i);
+            if (journaled) {
+                xs[i] = note.journalX;
+                ys[i] = note.journalY;
+                widths[i] = note.journalWidth;
+                instruments[i] = note.journalInstrument;
+            }
+            else {
+                xs[i] = (int) note.visualRectangle.getX();
+                ys[i] = (int) note.visualRectangle.getY();
+                widths[i] = note.getDuration();
+                instruments[i] = note.getInstrument();
+            }
+        }
+        int[] structure = new int[structureList.size()];
+        for (int i = 0; i < structure.length; i++) {
+            structure[i] = structureList.get(i);
+        }
+        return new SoundObjectSnapshot(xs, ys, widths, instruments, structure);
+    }
+
+    /**
+     * Adds the given SoundObject to the structure, and its notes to the list
+     * of notes.
+     *
+     * @param sObj the NoteBar or Gesture to add
+     * @param notes notes found so far, in order
+     * @param structureList structure found so far
+     */
+    private static void addToStructure(SoundObject sObj, ArrayList<NoteBar> notes,
+            ArrayList<Integer> structureList) {
+        if (sObj instanceof Gesture) {
+            structureList.add(GESTURE_START);
+            for (SoundObject contained : ((Gesture) sObj).containedSoundObjects) {
+                addToStructure(contained, notes, structureList);
+            }
+            structureList.add(GESTURE_END);
+        }
+        else {
+            structureList.add(notes.size());
+            notes.add((NoteBar) sObj);
+        }
+    }
+
+    /**
+     * Joins the given snapshots into one holding all of their SoundObjects,
+     * in order.
+     *
+     * @param parts the snapshots to join
+     * @return the joined snapshot
+     */
+    public static SoundObjectSnapshot concat(List<SoundObjectSnapshot> parts) {
+        int noteCount = 0;
+        int structureLength = 0;
+        for (SoundObjectSnapshot part : parts) {
+            noteCount += part.xs.length;
+            structureLength += part.structure.length;
+        }
+        int[] xs = new int[noteCount];
+        int[] ys = new int[noteCount];
+        int[] widths = new int[noteCount];
+        int[] instruments = new int[noteCount];
+        int[] structure = new int[structureLength];
+        int noteOffset = 0;
+        int structureOffset = 0;
+        for (SoundObjectSnapshot part : parts) {
+            int partNotes = part.xs.length;
+            System.arraycopy(part.xs, 0, xs, noteOffset, partNotes);
+            System.arraycopy(part.ys, 0, ys, noteOffset, partNotes);
+            System.arraycopy(part.widths, 0, widths, noteOffset, partNotes);
+            System.arraycopy(part.instruments, 0, instruments, noteOffset, partNotes);
+            for (int entry : part.structure) {
+                structure[structureOffset++] = (entry >= 0) ? entry + noteOffset : entry;
+            }
+            noteOffset += partNotes;
+        }
+        return new SoundObjectSnapshot(xs, ys, widths, instruments, structure);
+    }
+
+    /**
+     * Returns the snapshot on the given clipboard.
+     *
+     * @param clipboard clipboard to read
+     * @return the snapshot, or null if the clipboard does not hold a valid one
+     */
+    public static SoundObjectSnapshot fromClipboard(Clipboard clipboard) {
+        if (!clipboard.hasContent(DATA_FORMAT)) {
+            return null;
+        }
+        Object content = clipboard.getContent(DATA_FORMAT);
+        if (content instanceof byte[]) {
+            return fromBytes(ByteBuffer.wrap((byte[]) content));
+        }
+        else if (content instanceof ByteBuffer) {
+            return fromBytes((ByteBuffer) content);
+        }
+        return null;
+    }
+
+    /**
+     * Writes the snapshot into a byte array for the clipboard.
+     *
+     * @return the snapshot as bytes
+     */
+    public byte[] toBytes() {
+        int noteCount = xs.length;
+        ByteBuffer buffer = ByteBuffer.allocate(
+                Integer.BYTES * (3 + structure.length + 4 * noteCount));
+        buffer.putInt(VERSION);
+        buffer.putInt(noteCount);
+        buffer.putInt(structure.length);
+        buffer.asIntBuffer().put(structure).put(xs).put(ys).put(widths).put(instruments);
+        return buffer.array();
+    }
+
+    /**
+     * Reads a snapshot written by toBytes().
+     *
+     * @param bytes the bytes to read
+     * @return the snapshot, or null if the bytes are not a valid snapshot
+     */
+    public static SoundObjectSnapshot fromBytes(byte[] bytes) {
+        return fromBytes(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Reads a snapshot written by toBytes().
+     *
+     * @param buffer the bytes to read
+     * @return the snapshot, or null if the bytes are not a valid snapshot
+     */
+    private static SoundObjectSnapshot fromBytes(ByteBuffer buffer) {
+        if ((buffer.remaining() < 3 * Integer.BYTES) || (buffer.getInt() != VERSION)) {
+            return null;
+        }
+        int noteCount = buffer.getInt();
+        int structureLength = buffer.getInt();
+        if ((noteCount < 0) || (structureLength < 0) || ((long) buffer.remaining()
+                != (long) Integer.BYTES * (structureLength + 4L * noteCount))) {
+            return null;
+        }
+        int[] structure = new int[structureLength];
+        int[] xs = new int[noteCount];
+        int[] ys = new int[noteCount];
+        int[] widths = new int[noteCount];
+        int[] instruments = new int[noteCount];
+        buffer.asIntBuffer().get(structure).get(xs).get(ys).get(widths).get(instruments);
+        return new SoundObjectSnapshot(xs, ys, widths, instruments, structure);
+    }
+
+    /**
+     * Returns the tick at which the last note in the snapshot ends.
+     *
+     * @return end of the last note, or 0 if there are no notes
+     */
+    public int getEndTick() {
+        int endTick = 0;
+        for (int i = 0; i < xs.length; i++) {
+            endTick = Math.max(endTick, xs[i] + widths[i]);
+        }
+        return endTick;
+    }
+
+    /**
+     * Returns the x and y of the first note in the snapshot packed into one
+     * long, as made by noteKey(), for looking up the SoundObject it copies.
+     *
+     * @return key of the first note, or -1 if there are no notes
+     */
+    long getFirstNoteKey() {
+        for (int entry : structure) {
+            if ((entry >= 0) && (entry < xs.length)) {
+                return noteKey(xs[entry], ys[entry]);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Packs the given x and y into one long.
+     *
+     * @param x x of a note
+     * @param y y of a note
+     * @return the packed key
+     */
+    static long noteKey(int x, int y) {
+        return ((long) x << 32) | (y & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Returns roughly how many bytes the snapshot takes up.
+     *
+     * @return estimated size in bytes
+     */
+    public long getEstimatedSize() {
+        return Integer.BYTES * (structure.length + 4L * xs.length) + 128;
+    }
+
+    /**
+     * Builds new SoundObjects from the snapshot, as the parser would build
+     * them from its text. They are not on a pane and are marked selected, so
+     * they may be built on a worker thread.
+     *
+     * @param soundObjPane pane the SoundObjects will be put in
+     * @param actionManager actionManager used for undo/redo
+     * @return the top-level SoundObjects, or an empty list if the structure
+     *          is not valid
+     */
+    public ArrayList<SoundObject> toSoundObjects(Pane soundObjPane, ActionManager actionManager) {
+        ArrayList<ArrayList<SoundObject>> levels = new ArrayList<>();
+        levels.add(new ArrayList<>());
+        for (int entry : structure) {
+            ArrayList<SoundObject> level = levels.get(levels.size() - 1);
+            if (entry == GESTURE_START) {
+                levels.add(new ArrayList<>());
+            }
+            else if (entry == GESTURE_END) {
+                if (levels.size() == 1) {
+                    return new ArrayList<>();
+                }
+                levels.remove(levels.size() - 1);
+                if (!level.isEmpty()) {
+                    Gesture gest = new Gesture(level, actionManager, soundObjPane);
+                    levels.get(levels.size() - 1).add(gest);
+                }
+            }
+            else if ((entry >= 0) && (entry < xs.length)) {
+                NoteBar note = new NoteBar(xs[entry], ys[entry], widths[entry],
+                        instruments[entry], actionManager, soundObjPane);
+                note.visualRectangle.setUserData(note);
+                level.add(note);
+            }
+            else {
+                return new ArrayList<>();
+            }
+        }
+        if (levels.size() != 1) {
+            return new ArrayList<>();
+        }
+        return levels.get(0);
+    }
+}
@@ -0,0 +1,790 @@
+package tunecomposer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import javafx.beans.InvalidationListener;
+import javafx.beans.value.ObservableValue;
+import javafx.beans.binding.Bindings;
+import javafx.collections.ListChangeListener;
+import javafx.collections.ObservableList;
+import javafx.geometry.Bounds;
+import javafx.scene.Group;
+import javafx.scene.Node;
+import javafx.scene.control.ScrollPane;
+import javafx.scene.layout.Pane;
+import javafx.scene.shape.Rectangle;
+
+/**
+ * Virtualizes the display of SoundObjects on the soundObjectPane.
+ * The visualRectangle of every SoundObject on the composition is kept in
+ * soundObjectNodes, and is never put in the scene graph itself. Only the
+ * rectangles intersecting the visible part of the ScrollPane, plus a margin,
+ * are shown by binding a view Rectangle to them. View Rectangles are taken from
+ * a pool and given back to it once their SoundObject scrolls out of view, so
+ * the number of nodes on the soundObjectPane depends on the screen size rather
+ * than the size of the composition.
+ *
+ * The visualRectangles are kept in a SoundObjectColumnIndex. A scroll only
+ * looks at the columns that came into or went out of view, and an edit only
+ * at the visualRectangles that changed, so neither costs time proportional to
+ * the size of the composition.
+ *
+ * The viewport is also the one listener on each visualRectangle. Other
+ * layers that follow the composition, such as the canvas layer, the note
+ * density pyramid and the minimap, are told of changes through
+ * addRectangleListener() instead of listening to every visualRectangle
+ * themselves.
+ */
+public class SoundObjectViewport {
+
+    /**
+     * Told when a visualRectangle on the composition changes.
+     */
+    public interface RectangleListener {
+
+        /**
+         * Called when the position, size, id or style classes of one of the
+         * visualRectangles in the viewport change.
+         *
+         * @param r the visualRectangle that changed
+         */
+        void rectangleChanged(Rectangle r);
+    }
+
+    /**
+     * Key the viewport is stored under in the soundObjectPane's properties.
+     */
+    private static final String VIEWPORT_KEY = "soundObjectViewport";
+
+    /**
+     * Number of pixels around the visible area that are also given nodes, so
+     * that small scrolls do not need to rebind anything.
+     */
+    private static final double VIEWPORT_MARGIN = 200;
+    
+    /**
+     * Height in pixels that the top and bottom of the shown area are rounded
+     * out to, so that small vertical scrolls do not look at any columns.
+     */
+    private static final double SHOWN_ROW_HEIGHT = 100;
+    
+    /**
+     * Horizontal zoom below which the composition is drawn from the note
+     * density pyramid instead of note by note.
+     */
+    public static final double OVERVIEW_ZOOM = 0.25;
+
+    /**
+     * Pane that the view Rectangles are shown on.
+     */
+    private final Pane soundObjectPane;
+
+    /**
+     * ScrollPane that the soundObjectPane is viewed through.
+     * If null, then the whole soundObjectPane is treated as visible.
+     */
+    private ScrollPane scrollPane;
+
+    /**
+     * The visualRectangles of all SoundObjects on the composition.
+     * This is the list to add to and remove from when putting SoundObjects on
+     * the pane, and to iterate over when looking at all of them.
+     */
+    private final SoundObjectNodeList soundObjectNodes = new SoundObjectNodeList();
+
+    /**
+     * Spatial index of soundObjectNodes.
+     */
+    private final SoundObjectColumnIndex columnIndex = new SoundObjectColumnIndex();
+
+    /**
+     * visualRectangles that were added, removed or changed since the last
+     * refresh, and so may have moved in or out of the shown area.
+     */
+    private final LinkedHashSet<Rectangle> changedRects = new LinkedHashSet<>();
+
+    /**
+     * First and last column and top and bottom of the area whose
+     * visualRectangles are bound to views, as of the last refresh.
+     * No area is shown while shownFirstColumn is after shownLastColumn, such
+     * as in canvas mode; the next refresh then looks at every column in view.
+     */
+    private int shownFirstColumn = 0;
+    private int shownLastColumn = -1;
+    private double shownMinY;
+    private double shownMaxY;
+
+    /**
+     * Maps each visualRectangle that is currently shown to its view Rectangle.
+     */
+    private final HashMap<Rectangle, Rectangle> boundViews = new HashMap<>();
+
+    /**
+     * View Rectangles that are not bound to any visualRectangle.
+     */
+    private final ArrayDeque<Rectangle> viewPool = new ArrayDeque<>();
+
+    /**
+     * Group that holds the view Rectangles being dragged.
+     * Null if no drag is in progress. See beginDrag().
+     */
+    private Group dragGroup;
+    
+    /**
+     * Layer that draws the SoundObjects onto a Canvas instead of binding view
+     * Rectangles to them. Null unless canvas mode is on. See setCanvasMode().
+     */
+    private SoundObjectCanvasLayer canvasLayer;
+    
+    /**
+     * Note counts of the composition at several resolutions.
+     */
+    private final NoteDensityPyramid densityPyramid = new NoteDensityPyramid();
+    
+    /**
+     * Layer that draws the composition from densityPyramid while zoomed out
+     * past OVERVIEW_ZOOM. Null while zoomed in.
+     */
+    private SoundObjectOverviewLayer overviewLayer;
+
+    /**
+     * Area ahead of the view whose SoundObjects are being bound early by
+     * prefetch(). Null when nothing is being prefetched.
+     */
+    private Bounds prefetchRegion;
+    
+    /**
+     * Column of the index that prefetch() continues from.
+     */
+    private int prefetchColumn;
+    
+    /**
+     * visualRectangles bound by prefetch() that have not come into view yet.
+     */
+    private final HashSet<Rectangle> prefetchedRects = new HashSet<>();
+    
+    /**
+     * Number of SoundObjects that came into view already bound by prefetch(),
+     * and number that had to be bound as they came into view while a
+     * prefetch was going on.
+     */
+    private long prefetchHits = 0;
+    private long prefetchMisses = 0;
+
+    /**
+     * Recomputes the shown Rectangles at most once per pulse.
+     */
+    private final PulseCoalescer refreshCoalescer = new PulseCoalescer(this::refresh);
+
+    /**
+     * Requests a refresh whenever the ScrollPane is scrolled or resized.
+     */
+    private final InvalidationListener scrollListener = (observable) -> {
+        requestRefresh();
+    };
+
+    /**
+     * The listener on each visualRectangle, which passes its changes on to
+     * rectangleChanged().
+     */
+    private final HashMap<Rectangle, InvalidationListener> changeListeners =
+            new HashMap<>();
+
+    /**
+     * Listeners told of every change to a visualRectangle, in the order they
+     * were added.
+     */
+    private final ArrayList<RectangleListener> rectangleListeners = new ArrayList<>();
+
+    /**
+     * Constructs a viewport for the given pane and stores it in the pane's
+     * properties. Use of() to get the viewport of a pane.
+     *
+     * @param soundObjectPane pane to show the SoundObjects on
+     */
+    private SoundObjectViewport(Pane soundObjectPane) {
+        this.soundObjectPane = soundObjectPane;
+        soundObjectPane.getProperties().put(VIEWPORT_KEY, this);
+
+        soundObjectNodes.addListener((ListChangeListener.Change<? extends Node> change) -> {
+            while (change.next()) {
+                for (Node n : change.getRemoved()) {
+                    Rectangle r = (Rectangle) n;
+                    removeChangeListener(r);
+                    columnIndex.remove(r);
+                    changedRects.add(r);
+                }
+                for (Node n : change.getAddedSubList()) {
+                    Rectangle r = (Rectangle) n;
+                    addChangeListener(r);
+                    columnIndex.add(r);
+                    changedRects.add(r);
+                }
+            }
+            requestRefresh();
+            ChangeEventBus.post(ChangeEvent.MODEL_CHANGED);
+        });
+        densityPyramid.track(this);
+    }
+
+    /**
+     * Returns the viewport of the given pane, creating it if the pane does
+     * not have one yet.
+     *
+     * @param soundObjectPane pane the SoundObjects are shown on
+     * @return the viewport of the given pane
+     */
+    public static SoundObjectViewport of(Pane soundObjectPane) {
+        Object viewport = soundObjectPane.getProperties().get(VIEWPORT_KEY);
+        if (viewport == null) {
+            return new SoundObjectViewport(soundObjectPane);
+        }
+        return (SoundObjectViewport) viewport;
+    }
+
+    /**
+     * Returns the visualRectangles of all SoundObjects on the given pane.
+     * Shortcut for of(soundObjectPane).getSoundObjectNodes().
+     *
+     * @param soundObjectPane pane the SoundObjects are shown on
+     * @return list of all visualRectangles on the pane
+     */
+    public static ObservableList<Node> getSoundObjectNodes(Pane soundObjectPane) {
+        return of(soundObjectPane).getSoundObjectNodes();
+    }
+
+    /**
+     * Returns the visualRectangles of all SoundObjects on the composition,
+     * whether or not they are currently shown.
+     *
+     * @return list of all visualRectangles on the pane
+     */
+    public ObservableList<Node> getSoundObjectNodes() {
+        return soundObjectNodes;
+    }
+
+    /**
+     * Returns the spatial index of the visualRectangles on the composition.
+     * It is kept up to date as they are added, removed and changed.
+     *
+     * @return the column index
+     */
+    public SoundObjectColumnIndex getColumnIndex() {
+        return columnIndex;
+    }
+
+    /**
+     * Adds a listener to be told of every change to a visualRectangle on the
+     * composition. Additions to and removals from the composition are not
+     * passed on; listen to getSoundObjectNodes() for those.
+     *
+     * @param listener the listener
+     */
+    public void addRectangleListener(RectangleListener listener) {
+        rectangleListeners.add(listener);
+    }
+
+    /**
+     * Removes a listener added by addRectangleListener().
+     *
+     * @param listener the listener
+     */
+    public void removeRectangleListener(RectangleListener listener) {
+        rectangleListeners.remove(listener);
+    }
+
+    /**
+     * Sets the ScrollPane that limits which SoundObjects are shown, and
+     * refreshes the shown SoundObjects whenever it is scrolled or resized.
+     *
+     * @param scrollPane the ScrollPane soundObjectPane is viewed through
+     */
+    public void setScrollPane(ScrollPane scrollPane) {
+        this.scrollPane = scrollPane;
+        scrollPane.hvalueProperty().addListener(scrollListener);
+        scrollPane.vvalueProperty().addListener(scrollListener);
+        scrollPane.viewportBoundsProperty().addListener(scrollListener);
+        requestRefresh();
+    }
+
+    /**
+     * Returns the part of the soundObjectPane that is visible in the
+     * ScrollPane. If there is no ScrollPane, then returns the whole pane.
+     *
+     * @return bounds of the visible area in soundObjectPane coordinates
+     */
+    public Bounds getVisibleBounds() {
+        return CompositionPaneController.getVisibleBounds(scrollPane);
+    }
+
+    /**
+     * Turns canvas mode on or off. In canvas mode no view Rectangles are
+     * shown; the SoundObjects are drawn onto a SoundObjectCanvasLayer, which
+     * suits compositions too large for the scene graph.
+     * 
+     * @param on true to draw onto a Canvas, false to show view Rectangles
+     */
+    public void setCanvasMode(boolean on) {
+        if (on == isCanvasMode()) {
+            return;
+        }
+        if (on) {
+            unbindAllViews();
+            canvasLayer = new SoundObjectCanvasLayer(this, soundObjectPane);
+            canvasLayer.setVisible(overviewLayer == null);
+        }
+        else {
+            canvasLayer.dispose();
+            canvasLayer = null;
+        }
+        requestRefresh();
+    }
+    
+    /**
+     * Returns true if the SoundObjects are drawn onto a Canvas.
+     * 
+     * @return true if canvas mode is on
+     */
+    public boolean isCanvasMode() {
+        return canvasLayer != null;
+    }
+    
+    /**
+     * Returns the note counts of the composition at several resolutions.
+     * 
+     * @return the note density pyramid
+     */
+    public NoteDensityPyramid getDensityPyramid() {
+        return densityPyramid;
+    }
+    
+    /**
+     * Returns true if the composition is zoomed out far enough to be drawn
+     * from the density pyramid.
+     * 
+     * @return true if the horizontal zoom is below OVERVIEW_ZOOM
+     */
+    public boolean isOverview() {
+        return CompositionPaneController.getZoomX() < OVERVIEW_ZOOM;
+    }
+    
+    /**
+     * Requests that the shown SoundObjects are recomputed on the next pulse.
+     */
+    public void requestRefresh() {
+        refreshCoalescer.request();
+    }
+
+    /**
+     * Binds views to the SoundObjects in the given area ahead of the view,
+     * so they are ready when it scrolls there. Looks only at the columns of
+     * the index the area overlaps, one column at a time until the given time,
+     * and continues where it stopped on the next call with the same area.
+     * SoundObjects bound this way stay bound until they come into view or
+     * clearPrefetch() is called. Does nothing in canvas mode, while zoomed
+     * out past OVERVIEW_ZOOM or while dragging, as there are no views to bind.
+     * 
+     * @param region area to bind views in, in soundObjectPane coordinates
+     * @param deadline System.nanoTime() value to stop working at
+     * @return true if every SoundObject in the area is bound
+     */
+    public boolean prefetch(Bounds region, long deadline) {
+        if (!region.equals(prefetchRegion)) {
+            prefetchRegion = region;
+            prefetchColumn = SoundObjectColumnIndex.columnOf(region.getMinX());
+            changedRects.addAll(prefetchedRects);
+            requestRefresh();
+        }
+        if ((canvasLayer != null) || isOverview() || (dragGroup != null)) {
+            return true;
+        }
+        
+        int lastColumn = SoundObjectColumnIndex.columnOf(region.getMaxX());
+        ArrayList<Rectangle> newViews = new ArrayList<>();
+        while ((prefetchColumn <= lastColumn) && (System.nanoTime() <= deadline)) {
+            for (Rectangle r : columnIndex.getColumn(prefetchColumn)) {
+                if (!boundViews.containsKey(r) && intersects(r, region, 0)) {
+                    Rectangle view = viewPool.isEmpty() ? new Rectangle() : viewPool.pop();
+                    bind(view, r);
+                    boundViews.put(r, view);
+                    prefetchedRects.add(r);
+                    newViews.add(view);
+                }
+            }
+            prefetchColumn++;
+        }
+        soundObjectPane.getChildren().addAll(newViews);
+        return prefetchColumn > lastColumn;
+    }
+    
+    /**
+     * Stops keeping prefetched views bound. Those that are not in view are
+     * given back to the pool on the next refresh.
+     */
+    public void clearPrefetch() {
+        prefetchRegion = null;
+        changedRects.addAll(prefetchedRects);
+        prefetchedRects.clear();
+        requestRefresh();
+    }
+    
+    /**
+     * Returns the number of SoundObjects that were already bound by
+     * prefetch() when they came into view.
+     * 
+     * @return number of prefetch hits since the counts were last reset
+     */
+    public long getPrefetchHits() {
+        return prefetchHits;
+    }
+    
+    /**
+     * Returns the number of SoundObjects that had to be bound as they came
+     * into view while a prefetch was going on.
+     * 
+     * @return number of prefetch misses since the counts were last reset
+     */
+    public long getPrefetchMisses() {
+        return prefetchMisses;
+    }
+    
+    /**
+     * Sets the prefetch hit and miss counts back to zero.
+     */
+    public void resetPrefetchCounts() {
+        prefetchHits = 0;
+        prefetchMisses = 0;
+    }
+
+    /**
+     * Moves the view Rectangles of the given visualRectangles into a group,
+     * so a drag only needs to translate the group. Rectangles that are not
+     * shown are ignored. The shown SoundObjects are not refreshed until
+     * endDrag() is called. In canvas mode, the canvas layer draws the given
+     * visualRectangles offset instead.
+     *
+     * @param draggedRects visualRectangles of the SoundObjects being dragged
+     */
+    public void beginDrag(Collection<Rectangle> draggedRects) {
+        if (canvasLayer != null) {
+            canvasLayer.beginDrag(draggedRects);
+            return;
+        }
+        ArrayList<Rectangle> views = new ArrayList<>();
+        for (Rectangle r : draggedRects) {
+            Rectangle view = boundViews.get(r);
+            if (view != null) {
+                views.add(view);
+            }
+        }
+
+        soundObjectPane.getChildren().removeAll(new HashSet<>(views));
+        dragGroup = new Group();
+        dragGroup.getChildren().addAll(views);
+        soundObjectPane.getChildren().add(dragGroup);
+    }
+
+    /**
+     * Translates the group of dragged view Rectangles, or their drawing in
+     * canvas mode, by the given offset.
+     * Does nothing if beginDrag() has not been called.
+     *
+     * @param x total x offset since beginDrag()
+     * @param y total y offset since beginDrag()
+     */
+    public void setDragOffset(double x, double y) {
+        if (canvasLayer != null) {
+            canvasLayer.setDragOffset(x, y);
+            return;
+        }
+        if (dragGroup == null) {
+            return;
+        }
+        dragGroup.setTranslateX(x);
+        dragGroup.setTranslateY(y);
+    }
+
+    /**
+     * Returns the dragged view Rectangles to the soundObjectPane, untranslated.
+     * The SoundObjects must be moved afterwards to keep them in place.
+     * Does nothing if beginDrag() has not been called.
+     */
+    public void endDrag() {
+        if (canvasLayer != null) {
+            canvasLayer.endDrag();
+            return;
+        }
+        if (dragGroup == null) {
+            return;
+        }
+        ArrayList<Node> views = new ArrayList<>(dragGroup.getChildren());
+        soundObjectPane.getChildren().remove(dragGroup);
+        dragGroup.getChildren().clear();
+        dragGroup = null;
+        soundObjectPane.getChildren().addAll(views);
+        requestRefresh();
+    }
+
+    /**
+     * Rebinds the views of the visualRectangles that moved in or out of the
+     * shown area.
+     * Deferred while a drag is in progress. In canvas mode, only asks the
+     * canvas layer to catch up with the visible area. While zoomed out past
+     * OVERVIEW_ZOOM, shows the overview layer in place of either.
+     */
+    private void refresh() {
+        if (isOverview()) {
+            if (overviewLayer == null) {
+                unbindAllViews();
+                if (canvasLayer != null) {
+                    canvasLayer.setVisible(false);
+                }
+                overviewLayer = new SoundObjectOverviewLayer(this, soundObjectPane,
+                        densityPyramid);
+            }
+            changedRects.clear();
+            overviewLayer.requestRepaint();
+            return;
+        }
+        if (overviewLayer != null) {
+            overviewLayer.dispose();
+            overviewLayer = null;
+            if (canvasLayer != null) {
+                canvasLayer.setVisible(true);
+            }
+        }
+        
+        if (canvasLayer != null) {
+            changedRects.clear();
+            canvasLayer.requestRepaint();
+            return;
+        }
+        if (dragGroup != null) {
+            return;
+        }
+        updateViews();
+    }
+
+    /**
+     * Recomputes which visualRectangles intersect the visible area and its
+     * margin, looking only at the changed visualRectangles and at the columns
+     * that came into or went out of that area. Every column in the area is
+     * looked at if its top or bottom moved to another row of SHOWN_ROW_HEIGHT.
+     * Rectangles that left the area give their view back to the pool, and
+     * rectangles that entered it are bound to a view from the pool.
+     * Rectangles bound by prefetch() keep their view while they are in the
+     * prefetched area.
+     */
+    private void updateViews() {
+        Bounds visible = getVisibleBounds();
+        int firstColumn = SoundObjectColumnIndex.columnOf(visible.getMinX() - VIEWPORT_MARGIN);
+        int lastColumn = SoundObjectColumnIndex.columnOf(visible.getMaxX() + VIEWPORT_MARGIN);
+        double minY = SHOWN_ROW_HEIGHT
+                * Math.floor((visible.getMinY() - VIEWPORT_MARGIN) / SHOWN_ROW_HEIGHT);
+        double maxY = SHOWN_ROW_HEIGHT
+                * Math.ceil((visible.getMaxY() + VIEWPORT_MARGIN) / SHOWN_ROW_HEIGHT);
+        boolean sameRows = (minY == shownMinY) && (maxY == shownMaxY);
+
+        LinkedHashSet<Rectangle> toCheck = new LinkedHashSet<>(changedRects);
+        changedRects.clear();
+        for (int c = shownFirstColumn; c <= shownLastColumn; c++) {
+            if (!sameRows || (c < firstColumn) || (c > lastColumn)) {
+                toCheck.addAll(columnIndex.getColumn(c));
+            }
+        }
+        for (int c = firstColumn; c <= lastColumn; c++) {
+            if (!sameRows || (c < shownFirstColumn) || (c > shownLastColumn)) {
+                toCheck.addAll(columnIndex.getColumn(c));
+            }
+        }
+        shownFirstColumn = firstColumn;
+        shownLastColumn = lastColumn;
+        shownMinY = minY;
+        shownMaxY = maxY;
+
+        HashSet<Node> unboundViews = new HashSet<>();
+        ArrayList<Rectangle> newViews = new ArrayList<>();
+        for (Rectangle r : toCheck) {
+            Rectangle view = boundViews.get(r);
+            boolean indexed = columnIndex.contains(r);
+            if (indexed && isInShownArea(r)) {
+                if (prefetchedRects.remove(r)) {
+                    prefetchHits++;
+                }
+                else if (view == null) {
+                    if (prefetchRegion != null) {
+                        prefetchMisses++;
+                    }
+                    view = viewPool.isEmpty() ? new Rectangle() : viewPool.pop();
+                    bind(view, r);
+                    boundViews.put(r, view);
+                    newViews.add(view);
+                }
+            }
+            else if ((view != null) && !(indexed && prefetchedRects.contains(r)
+                    && (prefetchRegion != null) && intersects(r, prefetchRegion, 0))) {
+                prefetchedRects.remove(r);
+                unbind(view, r);
+                boundViews.remove(r);
+                unboundViews.add(view);
+                viewPool.push(view);
+            }
+        }
+        soundObjectPane.getChildren().removeAll(unboundViews);
+        soundObjectPane.getChildren().addAll(newViews);
+    }
+
+    /**
+     * Returns true if the given visualRectangle overlaps the area shown as of
+     * the last refresh, column for column as it is indexed.
+     *
+     * @param r visualRectangle of a SoundObject
+     * @return true if r should be bound to a view
+     */
+    private boolean isInShownArea(Rectangle r) {
+        return (SoundObjectColumnIndex.columnOf(r.getX()) <= shownLastColumn)
+                && (SoundObjectColumnIndex.columnOf(r.getX() + r.getWidth()) >= shownFirstColumn)
+                && (r.getY() <= shownMaxY)
+                && (r.getY() + r.getHeight() >= shownMinY);
+    }
+
+    /**
+     * Gives every shown view Rectangle back to the pool and removes it from
+     * the soundObjectPane. The next refresh that binds views looks at every
+     * column in view.
+     */
+    private void unbindAllViews() {
+        for (Map.Entry<Rectangle, Rectangle> entry : boundViews.entrySet()) {
+            unbind(entry.getValue(), entry.getKey());
+            viewPool.push(entry.getValue());
+        }
+        soundObjectPane.getChildren().removeAll(new HashSet<>(boundViews.values()));
+        boundViews.clear();
+        prefetchedRects.clear();
+        shownFirstColumn = 0;
+        shownLastColumn = -1;
+    }
+    
+    /**
+     * Returns true if the given visualRectangle intersects the given area
+     * grown by the given margin on every side.
+     * 
+     * @param r visualRectangle of a SoundObject
+     * @param area area in soundObjectPane coordinates
+     * @param margin number of pixels to grow the area by
+     * @return true if r intersects the grown area
+     */
+    private static boolean intersects(Rectangle r, Bounds area, double margin) {
+        return (r.getX() <= area.getMaxX() + margin) 
+                && (r.getX() + r.getWidth() >= area.getMinX() - margin)
+                && (r.getY() <= area.getMaxY() + margin) 
+                && (r.getY() + r.getHeight() >= area.getMinY() - margin);
+    }
+    
+    /**
+     * Binds the given view so that it looks and behaves like the given
+     * visualRectangle.
+     *
+     * @param view Rectangle shown on the soundObjectPane
+     * @param model visualRectangle of a SoundObject
+     */
+    private void bind(Rectangle view, Rectangle model) {
+        view.xProperty().bind(model.xProperty());
+        view.yProperty().bind(model.yProperty());
+        view.widthProperty().bind(model.widthProperty());
+        view.heightProperty().bind(model.heightProperty());
+        view.idProperty().bind(model.idProperty());
+        Bindings.bindContent(view.getStyleClass(), model.getStyleClass());
+        view.mouseTransparentProperty().bind(model.mouseTransparentProperty());
+        view.onMousePressedProperty().bind(model.onMousePressedProperty());
+        view.onMouseDraggedProperty().bind(model.onMouseDraggedProperty());
+        view.onMouseReleasedProperty().bind(model.onMouseReleasedProperty());
+        view.setUserData(model.getUserData());
+    }
+
+    /**
+     * Removes the bindings made by bind(), so the view can be reused.
+     *
+     * @param view Rectangle shown on the soundObjectPane
+     * @param model visualRectangle the view was bound to
+     */
+    private void unbind(Rectangle view, Rectangle model) {
+        view.xProperty().unbind();
+        view.yProperty().unbind();
+        view.widthProperty().unbind();
+        view.heightProperty().unbind();
+        view.idProperty().unbind();
+        Bindings.unbindContent(view.getStyleClass(), model.getStyleClass());
+        view.getStyleClass().clear();
+        view.mouseTransparentProperty().unbind();
+        view.onMousePressedProperty().unbind();
+        view.onMouseDraggedProperty().unbind();
+        view.onMouseReleasedProperty().unbind();
+        view.setUserData(null);
+    }
+
+    /**
+     * Listens to the given visualRectangle for changes to its position, size,
+     * id or style classes.
+     *
+     * @param model visualRectangle added to soundObjectNodes
+     */
+    private void addChangeListener(Rectangle model) {
+        if (changeListeners.containsKey(model)) {
+            return;
+        }
+        InvalidationListener listener = (observable) -> {
+            if (observable instanceof ObservableValue) {
+                // validate the property, so that it reports its next change
+                ((ObservableValue<?>) observable).getValue();
+            }
+            rectangleChanged(model);
+        };
+        model.xProperty().addListener(listener);
+        model.yProperty().addListener(listener);
+        model.widthProperty().addListener(listener);
+        model.heightProperty().addListener(listener);
+        model.idProperty().addListener(listener);
+        model.getStyleClass().addListener(listener);
+        changeListeners.put(model, listener);
+    }
+
+    /**
+     * Stops listening to the given visualRectangle.
+     *
+     * @param model visualRectangle removed from soundObjectNodes
+     */
+    private void removeChangeListener(Rectangle model) {
+        InvalidationListener listener = changeListeners.remove(model);
+        if (listener == null) {
+            return;
+        }
+        model.xProperty().removeListener(listener);
+        model.yProperty().removeListener(listener);
+        model.widthProperty().removeListener(listener);
+        model.heightProperty().removeListener(listener);
+        model.idProperty().removeListener(listener);
+        model.getStyleClass().removeListener(listener);
+    }
+
+    /**
+     * Moves the given visualRectangle to its new place in the index, requests
+     * a refresh as it may have moved in or out of view, and tells the
+     * RectangleListeners.
+     *
+     * @param model visualRectangle that changed
+     */
+    private void rectangleChanged(Rectangle model) {
+        columnIndex.update(model);
+        changedRects.add(model);
+        requestRefresh();
+        for (RectangleListener listener : rectangleListeners) {
+            listener.rectangleChanged(model);
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package tunecomposer;
+
+import javafx.beans.property.ReadOnlyStringProperty;
+import javafx.beans.property.ReadOnlyStringWrapper;
+
+/**
+ * The line of statistics at the bottom of the window, shown when Performance
+ * Statistics is checked in the View menu. Reports, for example, how many
+ * mouse events the last drag folded together, and whether prefetching kept
+ * up during the last playback. The latest report replaces the one before.
+ */
+public final class StatusLine {
+
+    /**
+     * Text of the latest report.
+     */
+    private static final ReadOnlyStringWrapper MESSAGE = new ReadOnlyStringWrapper("");
+
+    /**
+     * Not constructed; all methods are static.
+     */
+    private StatusLine() {
+    }
+
+    /**
+     * Shows the given report on the status line.
+     *
+     * @param message the report
+     */
+    public static void show(String message) {
+        MESSAGE.set(message);
+    }
+
+    /**
+     * Returns the text of the latest report, for the status line to show.
+     *
+     * @return property holding the latest report
+     */
+    public static ReadOnlyStringProperty messageProperty() {
+        return MESSAGE.getReadOnlyProperty();
+    }
+}
@@ -0,0 +1,213 @@
+package tunecomposer;
+
+import java.util.ArrayDeque;
+import javafx.animation.AnimationTimer;
+import javafx.beans.property.ReadOnlyBooleanProperty;
+import javafx.beans.property.ReadOnlyBooleanWrapper;
+import javafx.beans.property.ReadOnlyDoubleProperty;
+import javafx.beans.property.ReadOnlyDoubleWrapper;
+import javafx.beans.property.ReadOnlyStringProperty;
+import javafx.beans.property.ReadOnlyStringWrapper;
+import javafx.scene.control.Alert;
+import static javafx.scene.control.Alert.AlertType.NONE;
+import javafx.scene.control.ButtonType;
+
+/**
+ * Runs SlicedJobs on the FX thread a slice at a time, so that operations on
+ * very large compositions do not freeze the window.
+ *
+ * A job is given SLICE_BUDGET as soon as it is scheduled. Small jobs finish
+ * within it, exactly as if they had run directly. Larger jobs carry on for
+ * SLICE_BUDGET of every pulse after that, leaving the rest of each pulse for
+ * repainting and input. Jobs run one at a time, in the order they were
+ * scheduled. While jobs are waiting, the running property is true, and the
+ * progress and message properties describe the job at the head of the queue.
+ *
+ * Each slice runs with selection updates deferred, so that a slice that
+ * selects or unselects many SoundObjects rescans the selected array once at
+ * its end rather than once per SoundObject. A job that fails is reported to
+ * the user once it has been rolled back.
+ */
+public class TimeSlicedScheduler extends AnimationTimer {
+
+    /**
+     * Longest time in nanoseconds spent on jobs in one pulse.
+     */
+    public static final long SLICE_BUDGET = 8000000;
+
+    /**
+     * Jobs that have been scheduled and have not ended, the running one first.
+     */
+    private final ArrayDeque<SlicedJob> jobs = new ArrayDeque<>();
+
+    /**
+     * True while there are jobs that have not ended.
+     */
+    private final ReadOnlyBooleanWrapper running = new ReadOnlyBooleanWrapper(false);
+
+    /**
+     * Fraction of the running job that is done.
+     */
+    private final ReadOnlyDoubleWrapper progress = new ReadOnlyDoubleWrapper(0);
+
+    /**
+     * Description of the running job.
+     */
+    private final ReadOnlyStringWrapper message = new ReadOnlyStringWrapper("");
+
+    /**
+     * True if the running job can be cancelled.
+     */
+    private final ReadOnlyBooleanWrapper cancellable = new ReadOnlyBooleanWrapper(false);
+
+    /**
+     * Schedules the given job. If no other job is waiting, then the job runs
+     * for up to SLICE_BUDGET right away, and only waits for later pulses if
+     * it does not finish in that time.
+     *
+     * @param job the job to run
+     */
+    public void schedule(SlicedJob job) {
+        if (jobs.isEmpty() && runSlice(job, System.nanoTime() + SLICE_BUDGET)) {
+            return;
+        }
+        jobs.add(job);
+        if (!running.get()) {
+            running.set(true);
+            start();
+        }
+        updateProperties();
+    }
+
+    /**
+     * Cancels the running job if it can be cancelled. It is rolled back over
+     * the next pulses.
+     */
+    public void cancel() {
+        if (!jobs.isEmpty()) {
+            jobs.peek().cancel();
+            updateProperties();
+        }
+    }
+
+    /**
+     * Returns the property that is true while jobs have not ended.
+     *
+     * @return running property
+     */
+    public ReadOnlyBooleanProperty runningProperty() {
+        return running.getReadOnlyProperty();
+    }
+
+    /**
+     * Returns the property holding how much of the running job is done.
+     *
+     * @return progress property, from 0 to 1
+     */
+    public ReadOnlyDoubleProperty progressProperty() {
+        return progress.getReadOnlyProperty();
+    }
+
+    /**
+     * Returns the property holding the description of the running job.
+     *
+     * @return message property
+     */
+    public ReadOnlyStringProperty messageProperty() {
+        return message.getReadOnlyProperty();
+    }
+
+    /**
+     * Returns the property that is true if the running job can be cancelled.
+     *
+     * @return cancellable property
+     */
+    public ReadOnlyBooleanProperty cancellableProperty() {
+        return cancellable.getReadOnlyProperty();
+    }
+
+    /**
+     * Returns true while jobs have not ended.
+     *
+     * @return true if a job is running
+     */
+    public boolean isRunning() {
+        return running.get();
+    }
+
+    /**
+     * Runs jobs for up to SLICE_BUDGET, then stops until the next pulse, or
+     * stops for good once no jobs are left. A job waiting for its items to
+     * be prepared on another thread is checked again on the next pulse.
+     *
+     * @param now timestamp of the current pulse in nanoseconds
+     */
+    @Override
+    public void handle(long now) {
+        long deadline = System.nanoTime() + SLICE_BUDGET;
+        while (!jobs.isEmpty() && (System.nanoTime() < deadline)) {
+            if (jobs.peek().isWaiting()) {
+                break;
+            }
+            if (runSlice(jobs.peek(), deadline)) {
+                jobs.poll();
+            }
+        }
+        if (jobs.isEmpty()) {
+            stop();
+            running.set(false);
+        }
+        updateProperties();
+    }
+
+    /**
+     * Runs the given job until it ends or the given time passes, with
+     * selection updates deferred. Reports the job to the user if it failed.
+     *
+     * @param job the job to run
+     * @param deadline System.nanoTime() value to stop at
+     * @return true if the job has ended
+     */
+    private boolean runSlice(SlicedJob job, long deadline) {
+        boolean ended;
+        SoundObjectPaneController.deferSelectionUpdates();
+        try {
+            ended = job.runUntil(deadline);
+        }
+        finally {
+            SoundObjectPaneController.resumeSelectionUpdates();
+        }
+        if (ended && (job.getFailure() != null)) {
+            showFailure(job);
+        }
+        return ended;
+    }
+
+    /**
+     * Tells the user that the given job failed. The alert is not waited for,
+     * as it may be shown during a pulse.
+     *
+     * @param job the failed job
+     */
+    private void showFailure(SlicedJob job) {
+        Throwable failure = job.getFailure();
+        String reason = (failure.getMessage() == null) ? failure.toString() 
+                : failure.getMessage();
+        Alert alert = new Alert(NONE);
+        alert.setTitle(job.getDescription());
+        alert.setContentText(job.getDescription() + " could not be finished: " + reason);
+        alert.getDialogPane().getButtonTypes().add(ButtonType.OK);
+        alert.show();
+    }
+
+    /**
+     * Updates the progress, message and cancellable properties to describe
+     * the job at the head of the queue.
+     */
+    private void updateProperties() {
+        SlicedJob job = jobs.peek();
+        progress.set((job == null) ? 0 : job.getProgress());
+        message.set((job == null) ? "" : job.getDescription());
+        cancellable.set((job != null) && job.isCancellable());
+    }
+}
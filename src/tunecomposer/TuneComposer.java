@@ -35,6 +35,12 @@ public class TuneComposer extends Application {
                 we.consume();
             }
         });        
+        primaryStage.focusedProperty().addListener((observable, wasFocused, isFocused) -> {
+            if (isFocused) {
+                // another application may have changed the clipboard
+                ChangeEventBus.post(ChangeEvent.CLIPBOARD_CHANGED);
+            }
+        });
         primaryStage.show();                
     }
 
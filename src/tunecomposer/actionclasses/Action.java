@@ -1,8 +1,11 @@
 package tunecomposer.actionclasses;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import javafx.scene.layout.Pane;
+import tunecomposer.ActionManager;
 import tunecomposer.SoundObject;
+import tunecomposer.SoundObjectPaneController;
 
 /**
  * Abstract action class creates the skeleton of an action item, which stores
@@ -10,6 +13,14 @@ import tunecomposer.SoundObject;
  */
 public abstract class Action {
     
+    /**
+     * Rough number of bytes kept alive by an action itself, and by each
+     * SoundObject it holds along with its Rectangle, used by the ActionManager
+     * to keep the undo history within its budget.
+     */
+    public static final long ACTION_SIZE = 64;
+    public static final long SOUNDOBJECT_SIZE = 512;
+    
     /**
      * Array of SoundObjects affected by the action.
      * Not always used in actions.
@@ -20,6 +31,12 @@ public abstract class Action {
      * Pane reference to the pane that affectedObjs are on.
      */
     public Pane soundObjectPane;
+    
+    /**
+     * True if affectedObjs is the selection shared with other actions, and so
+     * must not be modified.
+     */
+    protected boolean sharesSelection = false;
         
     /**
      * Performs the action based on the current state of the Action's fields.
@@ -36,4 +53,64 @@ public abstract class Action {
      * Similar to execute, but in complex cases is not identical.
      */
     public abstract void redo();
+    
+    /**
+     * Sets affectedObjs to the given SoundObjects. If they are the
+     * SELECTED_SOUNDOBJECT_ARRAY, then the shared copy of the selection is
+     * used instead of a new copy, so actions repeating an edit on the same
+     * selection hold one list between them. Otherwise they are copied.
+     * 
+     * @param selectedObjs SoundObjects the action affects
+     */
+    protected void setAffectedObjs(ArrayList<SoundObject> selectedObjs) {
+        sharesSelection = (selectedObjs == SoundObjectPaneController.SELECTED_SOUNDOBJECT_ARRAY);
+        if (sharesSelection) {
+            affectedObjs = SoundObjectPaneController.getSharedSelection();
+        }
+        else {
+            affectedObjs = (ArrayList<SoundObject>) selectedObjs.clone();
+        }
+    }
+    
+    /**
+     * Adds the SoundObjects whose notes, place on the pane or grouping the
+     * action may change to the given collection, so that the ActionJournal
+     * can record what the action did. Adds the affectedObjs unless
+     * overridden.
+     * 
+     * @param sObjs collection to add the SoundObjects to
+     */
+    public void collectTouched(Collection<SoundObject> sObjs) {
+        if (affectedObjs != null) {
+            sObjs.addAll(affectedObjs);
+        }
+    }
+    
+    /**
+     * Called when the action is put onto the undo stack, so that it can let
+     * go of anything it only needs again if it is undone. Does nothing unless
+     * overridden.
+     * 
+     * @param actionManager the ActionManager keeping the action
+     */
+    public void dehydrate(ActionManager actionManager) {
+    }
+    
+    /**
+     * Estimates how much memory the action keeps alive while it is in the
+     * undo history. Actions holding more than their affectedObjs should add
+     * it on. A shared selection is not counted, as the SoundObjects in it are
+     * held by the composition or by the action that shared it first. If they
+     * are later deleted, the selection keeps them alive without being 
+     * counted until the entries sharing it are forgotten.
+     * 
+     * @return estimated size in bytes
+     */
+    public long getEstimatedSize() {
+        long size = ACTION_SIZE;
+        if ((affectedObjs != null) && !sharesSelection) {
+            size += affectedObjs.size() * SOUNDOBJECT_SIZE;
+        }
+        return size;
+    }
 }
@@ -1,8 +1,10 @@
 package tunecomposer.actionclasses;
 
+import java.util.Collection;
 import javafx.scene.layout.Pane;
 import tunecomposer.NoteBar;
 import tunecomposer.ActionManager;
+import tunecomposer.SoundObject;
 
 /**
  * An action which adds a new note to the soundObjectPane.
@@ -63,4 +65,14 @@ public class AddNoteAction extends Action {
     public NoteBar getNote() {
         return note;
     }
-}
\ No newline at end of file
+    
+    /**
+     * Adds the note that was added.
+     * 
+     * @param sObjs collection to add the SoundObjects to
+     */
+    @Override
+    public void collectTouched(Collection<SoundObject> sObjs) {
+        sObjs.add(note);
+    }
+}
@@ -40,9 +40,7 @@ public class AddSoundAction extends Action{
      */
     @Override
     public void execute(){        
-        affectedObjs.forEach((sObj) -> {
-            sObj.addToPane(soundObjectPane);
-                    });
+        SoundObject.addAllToPane(affectedObjs, soundObjectPane);
     }
     
     /**
@@ -50,9 +48,7 @@ public class AddSoundAction extends Action{
      */
     @Override
     public void undo(){
-        affectedObjs.forEach((sObj) -> {
-            sObj.removeFromPane(soundObjectPane);
-        });
+        SoundObject.removeAllFromPane(affectedObjs, soundObjectPane);
     }
     
     /**
@@ -1,60 +1,135 @@
 package tunecomposer.actionclasses;
 
 import java.util.ArrayList;
+import java.util.function.Consumer;
 import javafx.scene.layout.Pane;
+import tunecomposer.Gesture;
+import tunecomposer.NoteBar;
 import tunecomposer.SoundObject;
 
 /**
- * An action which deletes given SoundObjects from their pane.
+ * An action which changes the instrument of given SoundObjects.
+ *
+ * Changing the instrument cannot be undone from the new instrument alone, so
+ * the previous instruments of the notes are kept, in the order the notes are
+ * visited, as runs of notes that had the same instrument. A selection of
+ * notes that all had one instrument costs a single run however large it is.
  */
 public class ChangeInstrumentAction extends Action {
-    
+
     private final String instrument;
-        
+
+    /**
+     * Previous instrument of each run of notes and the number of notes in
+     * the run, recorded by execute().
+     */
+    private ArrayList<String> previousNames = new ArrayList<>();
+    private ArrayList<Integer> runLengths = new ArrayList<>();
+
     /**
-     * Constructs an action event to delete SoundObjects.
+     * Constructs an action event to change the instrument of SoundObjects.
      * Sets affectObjs and soundObjectPane.
-     * 
-     * @param instrumentName
+     *
+     * @param instrumentName name of the instrument to change to
      * @param selectedObjs selList all SoundObjects to be affected
      * @param soundObjectPane the SoundObjectPane these selectedObjs are on
      */
-    public ChangeInstrumentAction(String instrumentName, 
+    public ChangeInstrumentAction(String instrumentName,
             ArrayList<SoundObject> selectedObjs, Pane soundObjectPane) {
-        affectedObjs = (ArrayList<SoundObject>) selectedObjs.clone();
+        setAffectedObjs(selectedObjs);
         this.soundObjectPane = soundObjectPane;
         instrument = instrumentName;
     }
-    
+
     /**
-     * Removes all affectedObjs from the soundObjectPane.
+     * Records the instruments of all notes in affectedObjs, then changes
+     * them to the new instrument.
      */
     @Override
     public void execute() {
-        affectedObjs.forEach((sObj) -> {
-            sObj.setPreviousName();
+        previousNames = new ArrayList<>();
+        runLengths = new ArrayList<>();
+        forEachNote((note) -> {
+            int last = previousNames.size() - 1;
+            if ((last >= 0) && previousNames.get(last).equals(note.name)) {
+                runLengths.set(last, runLengths.get(last) + 1);
+            }
+            else {
+                previousNames.add(note.name);
+                runLengths.add(1);
+            }
         });
         affectedObjs.forEach((sObj) -> {
             sObj.changeInstrument(instrument);
         });
     }
-    
+
     /**
-     * Adds all affectedObjs to the soundObjectPane.
+     * Changes all notes in affectedObjs back to the instruments recorded by
+     * execute().
      */
     @Override
     public void undo() {
-        affectedObjs.forEach((sObj) -> {
-            sObj.changeToPreviousInstrument();
+        int[] run = {0, 0};
+        forEachNote((note) -> {
+            while ((run[0] < runLengths.size()) && (run[1] >= runLengths.get(run[0]))) {
+                run[0]++;
+                run[1] = 0;
+            }
+            if (run[0] < runLengths.size()) {
+                note.changeInstrument(previousNames.get(run[0]));
+                run[1]++;
+            }
         });
     }
 
     /**
-     * Re-executes action. 
-     * Removes all notes in affectedObjs from soundObjectPane.
+     * Re-executes action.
+     * Changes all notes in affectedObjs to the new instrument again.
      */
     @Override
     public void redo() {
         execute();
     }
+
+    /**
+     * Estimates how much memory the action keeps alive, counting the runs of
+     * previous instruments.
+     *
+     * @return estimated size in bytes
+     */
+    @Override
+    public long getEstimatedSize() {
+        return super.getEstimatedSize() + runLengths.size() * 32L;
+    }
+
+    /**
+     * Visits every note in affectedObjs, including those inside gestures,
+     * always in the same order.
+     *
+     * @param visitor called for each note
+     */
+    private void forEachNote(Consumer<NoteBar> visitor) {
+        affectedObjs.forEach((sObj) -> {
+            visitNotes(sObj, visitor);
+        });
+    }
+
+    /**
+     * Visits the given SoundObject if it is a note, or every note inside it
+     * if it is a gesture.
+     *
+     * @param sObj the NoteBar or Gesture to visit
+     * @param visitor called for each note
+     */
+    private static void visitNotes(SoundObject sObj, Consumer<NoteBar> visitor) {
+        if (sObj instanceof Gesture) {
+            ((Gesture) sObj).containedSoundObjects.forEach((inner) -> {
+                visitNotes(inner, visitor);
+            });
+        }
+        else {
+            visitor.accept((NoteBar) sObj);
+        }
+    }
 }
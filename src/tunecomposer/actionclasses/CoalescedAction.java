@@ -0,0 +1,141 @@
+package tunecomposer.actionclasses;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import tunecomposer.ActionManager;
+import tunecomposer.SoundObject;
+
+/**
+ * An action made of several undo entries that the ActionManager merged into
+ * one, such as a quick run of clicks that select and unselect notes.
+ * Undoing it undoes the entries from the newest to the oldest, each as the
+ * ActionManager would have undone it on its own; redoing it redoes them from
+ * the oldest to the newest.
+ */
+public class CoalescedAction extends Action {
+
+    /**
+     * The merged entries, oldest first.
+     */
+    private final ArrayList<ArrayList<Action>> entries = new ArrayList<>();
+
+    /**
+     * Constructs an action from the given entry.
+     *
+     * @param entry the oldest entry
+     */
+    public CoalescedAction(ArrayList<Action> entry) {
+        entries.add(entry);
+    }
+
+    /**
+     * Adds a newer entry after the ones already merged.
+     *
+     * @param entry the entry to merge in
+     */
+    public void add(ArrayList<Action> entry) {
+        entries.add(entry);
+    }
+
+    /**
+     * Returns the last action of the newest entry.
+     *
+     * @return the most recent action merged in
+     */
+    public Action getLastAction() {
+        ArrayList<Action> newest = entries.get(entries.size() - 1);
+        return newest.get(newest.size() - 1);
+    }
+
+    /**
+     * Returns true if every merged action only selects or unselects.
+     *
+     * @return true if the merged entries only change the selection
+     */
+    public boolean isSelectionOnly() {
+        for (ArrayList<Action> entry : entries) {
+            for (Action a : entry) {
+                if (!(a instanceof SelectAction) && !(a instanceof UnselectAction)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Performs every merged entry again.
+     */
+    @Override
+    public void execute() {
+        redo();
+    }
+
+    /**
+     * Undoes the merged entries from the newest to the oldest.
+     */
+    @Override
+    public void undo() {
+        for (int i = entries.size() - 1; i >= 0; i--) {
+            entries.get(i).forEach((a) -> {
+                a.undo();
+            });
+        }
+    }
+
+    /**
+     * Redoes the merged entries from the oldest to the newest.
+     */
+    @Override
+    public void redo() {
+        entries.forEach((entry) -> {
+            entry.forEach((a) -> {
+                a.redo();
+            });
+        });
+    }
+
+    /**
+     * Dehydrates every merged action.
+     *
+     * @param actionManager the ActionManager keeping the action
+     */
+    @Override
+    public void dehydrate(ActionManager actionManager) {
+        entries.forEach((entry) -> {
+            entry.forEach((a) -> {
+                a.dehydrate(actionManager);
+            });
+        });
+    }
+
+    /**
+     * Estimates how much memory the merged actions keep alive.
+     *
+     * @return estimated size in bytes
+     */
+    @Override
+    public long getEstimatedSize() {
+        long size = ACTION_SIZE;
+        for (ArrayList<Action> entry : entries) {
+            for (Action a : entry) {
+                size += a.getEstimatedSize();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Adds the SoundObjects touched by every merged action.
+     *
+     * @param sObjs collection to add the SoundObjects to
+     */
+    @Override
+    public void collectTouched(Collection<SoundObject> sObjs) {
+        entries.forEach((entry) -> {
+            entry.forEach((a) -> {
+                a.collectTouched(sObjs);
+            });
+        });
+    }
+}
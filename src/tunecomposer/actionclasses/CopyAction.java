@@ -1,9 +1,14 @@
 package tunecomposer.actionclasses;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import javafx.scene.input.Clipboard;
 import javafx.scene.input.ClipboardContent;
+import tunecomposer.ActionManager;
+import tunecomposer.ChangeEvent;
+import tunecomposer.ChangeEventBus;
 import tunecomposer.SoundObject;
+import tunecomposer.SoundObjectSnapshot;
 import static tunecomposer.SoundObjectParser.soundObjsToXML;
 
 /**
@@ -22,7 +27,9 @@ public class CopyAction extends Action {
     }
     
     /**
-     * Copies all affectedObjs from the soundObjectPane.
+     * Copies all affectedObjs from the soundObjectPane, both as text for
+     * other applications and as a SoundObjectSnapshot for pasting here.
+     * Posts CLIPBOARD_CHANGED on the ChangeEventBus.
      */
     @Override
     public void execute() {
@@ -32,7 +39,10 @@ public class CopyAction extends Action {
         clipboard = Clipboard.getSystemClipboard();
         ClipboardContent content = new ClipboardContent();
         content.putString(sObjsString);
+        content.put(SoundObjectSnapshot.DATA_FORMAT, 
+                SoundObjectSnapshot.of(affectedObjs).toBytes());
         clipboard.setContent(content);
+        ChangeEventBus.post(ChangeEvent.CLIPBOARD_CHANGED);
     }
     
     /**
@@ -41,6 +51,16 @@ public class CopyAction extends Action {
     @Override
     public void undo() {
     }
+    
+    /**
+     * Lets go of the copied SoundObjects, which are only needed by execute().
+     * 
+     * @param actionManager the ActionManager keeping the action
+     */
+    @Override
+    public void dehydrate(ActionManager actionManager) {
+        affectedObjs = new ArrayList<>();
+    }
 
     /**
      * Not possible. 
@@ -48,4 +68,13 @@ public class CopyAction extends Action {
     @Override
     public void redo() {
     }
+    
+    /**
+     * Adds nothing, as copying does not change the composition.
+     * 
+     * @param sObjs collection to add the SoundObjects to
+     */
+    @Override
+    public void collectTouched(Collection<SoundObject> sObjs) {
+    }
 }
@@ -1,7 +1,9 @@
 package tunecomposer.actionclasses;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import javafx.scene.layout.Pane;
+import tunecomposer.ActionManager;
 import tunecomposer.SoundObject;
 
 /**
@@ -53,4 +55,37 @@ public class CutAction extends Action {
         deleteAction.redo();
         copyAction.redo();
     }
+    
+    /**
+     * Dehydrates the deletion and lets go of the other copies of the cut
+     * SoundObjects, which undo and redo do not use.
+     * 
+     * @param actionManager the ActionManager keeping the action
+     */
+    @Override
+    public void dehydrate(ActionManager actionManager) {
+        deleteAction.dehydrate(actionManager);
+        copyAction.dehydrate(actionManager);
+        affectedObjs = new ArrayList<>();
+    }
+    
+    /**
+     * Estimates how much memory the cut keeps alive, counting its deletion.
+     * 
+     * @return estimated size in bytes
+     */
+    @Override
+    public long getEstimatedSize() {
+        return super.getEstimatedSize() + deleteAction.getEstimatedSize();
+    }
+    
+    /**
+     * Adds the SoundObjects that were cut.
+     * 
+     * @param sObjs collection to add the SoundObjects to
+     */
+    @Override
+    public void collectTouched(Collection<SoundObject> sObjs) {
+        deleteAction.collectTouched(sObjs);
+    }
 }
@@ -1,15 +1,49 @@
 
 package tunecomposer.actionclasses;
 
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.List;
 import javafx.scene.layout.Pane;
+import tunecomposer.ActionManager;
 import tunecomposer.SoundObject;
+import tunecomposer.SoundObjectSnapshot;
 
 /**
  * An action which deletes given SoundObjects from their pane.
+ * 
+ * Once the deletion is in the undo history, the deleted SoundObjects are only
+ * kept as a SoundObjectSnapshot and weak references. If the deletion is
+ * undone, each SoundObject that is still alive is put back as it was, and any
+ * that nothing else referred to, and so has been collected, is rebuilt from
+ * the snapshot.
+ * 
+ * A dehydrated deletion keeps about 60 bytes per deleted note, most of it the
+ * weak references. The deleted SoundObjects themselves are only freed once
+ * nothing older in the history refers to them: after selecting, moving and
+ * then deleting notes, the selection and move entries below the deletion
+ * still hold the shared selection, and so every deleted note, until they are
+ * forgotten. Undoing those entries needs the same SoundObjects, so they are
+ * not dehydrated.
  */
 public class DeleteAction extends Action {
     
+    /**
+     * The deleted SoundObjects while the action is dehydrated, or null.
+     */
+    private SoundObjectSnapshot snapshot;
+    private ArrayList<WeakReference<SoundObject>> originals;
+    
+    /**
+     * ActionManager the rebuilt SoundObjects are given, set when dehydrated.
+     */
+    private ActionManager actionManager;
+    
+    /**
+     * Rough number of bytes taken by each weak reference.
+     */
+    private static final long WEAK_REFERENCE_SIZE = 40;
+    
     /**
      * Constructs an action event to delete SoundObjects.
      * Sets affectObjs and soundObjectPane.
@@ -23,23 +57,40 @@ public class DeleteAction extends Action {
     }
     
     /**
-     * Removes all affectedObjs from the soundObjectPane.
+     * Removes all affectedObjs from the soundObjectPane in one pass.
      */
     @Override
     public void execute() { 
-        affectedObjs.forEach((sObj) -> {
-            sObj.removeFromPane(soundObjectPane);
-        });
+        execute(affectedObjs);
     }
     
     /**
-     * Adds all affectedObjs to the soundObjectPane.
+     * Removes some of the affectedObjs from the soundObjectPane in one pass.
+     * Lets the action be run a batch at a time by a TimeSlicedScheduler.
+     * 
+     * @param sObjs the SoundObjects to remove
+     */
+    public void execute(List<SoundObject> sObjs) {
+        SoundObject.removeAllFromPane(sObjs, soundObjectPane);
+    }
+    
+    /**
+     * Adds all affectedObjs to the soundObjectPane in one addAll().
      */
     @Override
     public void undo() {
-        affectedObjs.forEach((sObj) -> {
-            sObj.addToPane(soundObjectPane);
-        });
+        rehydrate();
+        undo(affectedObjs);
+    }
+    
+    /**
+     * Adds some of the affectedObjs back to the soundObjectPane in one 
+     * addAll().
+     * 
+     * @param sObjs the SoundObjects to add back
+     */
+    public void undo(List<SoundObject> sObjs) {
+        SoundObject.addAllToPane(sObjs, soundObjectPane);
     }
 
     /**
@@ -50,4 +101,74 @@ public class DeleteAction extends Action {
     public void redo() {
         execute();
     }
-}
\ No newline at end of file
+    
+    /**
+     * Replaces the affectedObjs with a snapshot of them and weak references
+     * to them, so that the deleted SoundObjects, their Rectangles and their
+     * handlers are not kept alive by the undo history alone.
+     * 
+     * @param actionManager the ActionManager keeping the action
+     */
+    @Override
+    public void dehydrate(ActionManager actionManager) {
+        if (snapshot != null) {
+            return;
+        }
+        this.actionManager = actionManager;
+        snapshot = SoundObjectSnapshot.of(affectedObjs);
+        originals = new ArrayList<>(affectedObjs.size());
+        for (SoundObject sObj : affectedObjs) {
+            originals.add(new WeakReference<>(sObj));
+        }
+        affectedObjs = new ArrayList<>();
+    }
+    
+    /**
+     * Fills the affectedObjs again after dehydrate(), with the original
+     * SoundObjects that are still alive and rebuilt copies of the rest.
+     * Nothing can refer to a collected SoundObject, so its copy can stand in
+     * for it.
+     * 
+     * @throws IllegalStateException if the snapshot does not hold as many
+     *          top-level SoundObjects as were deleted
+     */
+    private void rehydrate() {
+        if (snapshot == null) {
+            return;
+        }
+        ArrayList<SoundObject> rebuilt = null;
+        affectedObjs = new ArrayList<>(originals.size());
+        for (int i = 0; i < originals.size(); i++) {
+            SoundObject sObj = originals.get(i).get();
+            if (sObj == null) {
+                if (rebuilt == null) {
+                    rebuilt = snapshot.toSoundObjects(soundObjectPane, actionManager);
+                    if (rebuilt.size() != originals.size()) {
+                        throw new IllegalStateException("Snapshot of a deletion holds " 
+                                + rebuilt.size() + " SoundObjects, but " 
+                                + originals.size() + " were deleted");
+                    }
+                }
+                sObj = rebuilt.get(i);
+            }
+            affectedObjs.add(sObj);
+        }
+        snapshot = null;
+        originals = null;
+    }
+    
+    /**
+     * Estimates how much memory the deletion keeps alive, counting the
+     * snapshot and weak references while it is dehydrated.
+     * 
+     * @return estimated size in bytes
+     */
+    @Override
+    public long getEstimatedSize() {
+        long size = super.getEstimatedSize();
+        if (snapshot != null) {
+            size += snapshot.getEstimatedSize() + originals.size() * WEAK_REFERENCE_SIZE;
+        }
+        return size;
+    }
+}
@@ -28,7 +28,7 @@ public class LengthChangeAction extends Action{
      */
     public LengthChangeAction(ArrayList<SoundObject> selectedObjs, int initialX){
         this.initialX = initialX;
-        affectedObjs = (ArrayList<SoundObject>) selectedObjs.clone();
+        setAffectedObjs(selectedObjs);
     }
     
     /**
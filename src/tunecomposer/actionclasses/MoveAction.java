@@ -1,7 +1,12 @@
 package tunecomposer.actionclasses;
 
 import java.util.ArrayList;
+import javafx.scene.layout.Pane;
+import javafx.scene.shape.Rectangle;
+import tunecomposer.CompositionPaneController;
+import tunecomposer.Gesture;
 import tunecomposer.SoundObject;
+import tunecomposer.SoundObjectViewport;
 
 /**
  * An action which can be called repeatedly to move an Array of SoundObjects.
@@ -28,6 +33,30 @@ public class MoveAction extends Action {
      * past the pane's borders.
      */
     private boolean lockMove;
+    
+    /**
+     * True while affectedObjs are being dragged. Their shown rectangles are 
+     * then held in the viewport's drag group, and only the group is 
+     * translated on each drag step.
+     */
+    private boolean dragging = false;
+    
+    /**
+     * Total distance the drag group has been translated during the current drag.
+     * Written back to affectedObjs when the drag is committed.
+     */
+    private double dragX;
+    private double dragY;
+    
+    /**
+     * Bounds surrounding all affectedObjs when the drag began.
+     * Found once per drag, so each drag step only checks this one extent
+     * against the pane's borders.
+     */
+    private double extentMinX;
+    private double extentMinY;
+    private double extentMaxX;
+    private double extentMaxY;
 
     /**
      * Constructs an action event to move SoundObjects on the screen.
@@ -38,11 +67,26 @@ public class MoveAction extends Action {
      * @param y initial y location of mouse click
      */
     public MoveAction(ArrayList<SoundObject> selectedObjs, double x, double y) {
-        affectedObjs = (ArrayList<SoundObject>) selectedObjs.clone();
+        setAffectedObjs(selectedObjs);
         startX = x;
         startY = y;
     }
     
+    /**
+     * Constructs an action event to drag SoundObjects on the given pane.
+     * The pane's viewport holds the drag group while dragging.
+     * 
+     * @param selectedObjs selList all SoundObjects to be affected
+     * @param x initial x location of mouse click  
+     * @param y initial y location of mouse click
+     * @param soundObjectPane the SoundObjectPane these selectedObjs are on
+     */
+    public MoveAction(ArrayList<SoundObject> selectedObjs, double x, double y,
+            Pane soundObjectPane) {
+        this(selectedObjs, x, y);
+        this.soundObjectPane = soundObjectPane;
+    }
+    
     /**
      * Moves and snaps into place all affectedObjs.
      */
@@ -98,6 +142,99 @@ public class MoveAction extends Action {
         }
     }
     
+    /**
+     * Drags all affectedObjs by translating the viewport's drag group.
+     * The first call places the shown rectangles of affectedObjs in the 
+     * drag group and finds their extent. The positions of affectedObjs are not
+     * changed until commitDrag() is called.
+     * 
+     * @param incX increment to move x coordinate by
+     * @param incY increment to move y coordinate by
+     */
+    public void drag(double incX, double incY) {
+        lockMove = false;
+        if (incX == 0 && incY == 0) {
+            return;
+        }
+        if (!dragging) {
+            beginDrag();
+        }
+        
+        double newX = dragX + incX;
+        double newY = dragY + incY;
+        if ((extentMinX + newX < 0) 
+                || (extentMaxX + newX > CompositionPaneController.PANE_X_MAX)
+                || (extentMinY + newY < 0) 
+                || (extentMaxY + newY > CompositionPaneController.PANE_Y_MAX)) {
+            lockMove = true;
+            return;
+        }
+        
+        dragX = newX;
+        dragY = newY;
+        SoundObjectViewport.of(soundObjectPane).setDragOffset(dragX, dragY);
+    }
+    
+    /**
+     * Ends the viewport's drag group, and writes the total drag distance back
+     * to affectedObjs. If no drag is in progress, then does nothing.
+     */
+    public void commitDrag() {
+        if (!dragging) {
+            return;
+        }
+        dragging = false;
+        SoundObjectViewport.of(soundObjectPane).endDrag();
+        
+        affectedObjs.forEach((sObj) -> {
+            sObj.move(dragX, dragY);
+        });
+    }
+    
+    /**
+     * Finds the extent of affectedObjs and moves their shown rectangles into
+     * the viewport's drag group.
+     */
+    private void beginDrag() {
+        extentMinX = Double.MAX_VALUE;
+        extentMinY = Double.MAX_VALUE;
+        extentMaxX = -Double.MAX_VALUE;
+        extentMaxY = -Double.MAX_VALUE;
+        
+        ArrayList<Rectangle> rects = new ArrayList<>();
+        for (SoundObject sObj : affectedObjs) {
+            collectRectangles(sObj, rects);
+            for (SoundObject note : sObj.getAllChildren()) {
+                Rectangle r = note.visualRectangle;
+                extentMinX = Math.min(extentMinX, r.getX());
+                extentMinY = Math.min(extentMinY, r.getY());
+                extentMaxX = Math.max(extentMaxX, r.getX() + r.getWidth());
+                extentMaxY = Math.max(extentMaxY, r.getY() + r.getHeight());
+            }
+        }
+        
+        SoundObjectViewport.of(soundObjectPane).beginDrag(rects);
+        dragging = true;
+        dragX = 0;
+        dragY = 0;
+    }
+    
+    /**
+     * Adds the visual rectangle of the given SoundObject, and of everything
+     * nested in it, to the given list.
+     * 
+     * @param sObj SoundObject to collect the rectangles of
+     * @param rects list the rectangles are added to
+     */
+    private void collectRectangles(SoundObject sObj, ArrayList<Rectangle> rects) {
+        rects.add(sObj.visualRectangle);
+        if (sObj instanceof Gesture) {
+            for (SoundObject inner : ((Gesture) sObj).containedSoundObjects) {
+                collectRectangles(inner, rects);
+            }
+        }
+    }
+    
     /**
      * Returns if the move is failed.
      * Reason for fail could be trying to move notes outside of the pane's borders.
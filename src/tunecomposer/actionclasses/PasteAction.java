@@ -1,9 +1,12 @@
 package tunecomposer.actionclasses;
 
+import java.util.ArrayList;
+import java.util.List;
 import javafx.scene.input.Clipboard;
 import javafx.scene.layout.Pane;
 import tunecomposer.ActionManager;
 import tunecomposer.SoundObject;
+import tunecomposer.SoundObjectPaneController;
 import tunecomposer.SoundObjectParser;
 
 /**
@@ -39,43 +42,105 @@ public class PasteAction extends Action {
         affectedObjs = parser.parseString();
     }
     
+    /**
+     * Constructs an action event to paste SoundObjects that have already been
+     * parsed from the given string, such as by a SoundObjectLoader.
+     * 
+     * @param soundObjectPane
+     * @param parseString string the SoundObjects were parsed from, or null
+     *          if they were built from a SoundObjectSnapshot
+     * @param pastedObjs SoundObjects parsed from parseString, not on a pane
+     */
+    public PasteAction(Pane soundObjectPane, String parseString, 
+            ArrayList<SoundObject> pastedObjs) {
+        this.soundObjectPane = soundObjectPane;
+        this.parseString = parseString;
+        affectedObjs = pastedObjs;
+    }
+    
     /**
      * Pastes all affectedObjs to the soundObjectPane.
      */
     @Override
     public void execute() {   
+        moveToOffset();
+
+        affectedObjs.forEach((sObj) -> {
+            execute(sObj);
+        });
+        SoundObjectPaneController.staticUpdateSelectedArray(soundObjectPane);
+    }
+    
+    /**
+     * Moves all affectedObjs by the offset, before they are pasted.
+     * Must be called once before execute(SoundObject) is called for any of them.
+     */
+    public void moveToOffset() {
         MoveAction movePaste = new MoveAction(affectedObjs, 0, 0);
         int xOffset = Math.round(yOffset / 10) * SoundObject.snapXDistance;
         movePaste.move(xOffset, yOffset);
-
-        affectedObjs.forEach((sObj) -> {
-            sObj.snapYInPlace();
-            sObj.addToPane(soundObjectPane);
+    }
+    
+    /**
+     * Pastes one of the affectedObjs to the soundObjectPane. Lets the action
+     * be run a part at a time by a TimeSlicedScheduler. Newly built 
+     * SoundObjects are already selected, and are not selected again, so the
+     * selected array is not rescanned for each one; it must be updated once
+     * all of them are pasted.
+     * 
+     * @param sObj the SoundObject to paste
+     */
+    public void execute(SoundObject sObj) {
+        sObj.snapYInPlace();
+        sObj.addToPane(soundObjectPane);
+        if (!sObj.isSelected()) {
             sObj.select();
-        });
+        }
     }
     
     /**
-     * Un-pastes the affectedObjs from the soundObjectPane.
+     * Un-pastes the affectedObjs from the soundObjectPane in one pass.
      */
     @Override
     public void undo() {
-        affectedObjs.forEach((sObj) -> {
-            sObj.removeFromPane(soundObjectPane);
-        });
+        undo(affectedObjs);
+    }
+    
+    /**
+     * Un-pastes some of the affectedObjs from the soundObjectPane in one pass.
+     * 
+     * @param sObjs the SoundObjects to remove
+     */
+    public void undo(List<SoundObject> sObjs) {
+        SoundObject.removeAllFromPane(sObjs, soundObjectPane);
     }
 
     /**
-     * Re-executes paste action. 
+     * Re-executes paste action, adding the affectedObjs in one addAll(). 
      */
     @Override
     public void redo() {
+        SoundObject.addAllToPane(affectedObjs, soundObjectPane);
         affectedObjs.forEach((sObj) -> {
-            sObj.addToPane(soundObjectPane);
             sObj.select();
         });
     }
     
+    /**
+     * Estimates how much memory the paste keeps alive, counting the string
+     * it was parsed from.
+     * 
+     * @return estimated size in bytes
+     */
+    @Override
+    public long getEstimatedSize() {
+        long size = super.getEstimatedSize();
+        if (parseString != null) {
+            size += 2L * parseString.length();
+        }
+        return size;
+    }
+    
     /**
      * Returns the string that this object created its objects from.
      * @return string this object parsed into objects
@@ -1,6 +1,7 @@
 package tunecomposer.actionclasses;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import tunecomposer.SoundObject;
 
 /**
@@ -23,22 +24,41 @@ public class SelectAction extends Action {
     @Override
     public void execute() {
         for (SoundObject sObj : affectedObjs) {
-            sObj.select();
-            sObj.selectTopGesture();
+            execute(sObj);
         }
     }
     
+    /**
+     * Selects one of the affectedObjs. Lets the action be run a part at a 
+     * time by a TimeSlicedScheduler.
+     * 
+     * @param sObj the SoundObject to select
+     */
+    public void execute(SoundObject sObj) {
+        sObj.select();
+        sObj.selectTopGesture();
+    }
+    
     /**
      * Unselects all affectedObjs.
      */
     @Override
     public void undo() {
         for (SoundObject sObj : affectedObjs) {
-            sObj.unselect();
-            sObj.unselectTopGesture();
+            undo(sObj);
         }
     }
     
+    /**
+     * Unselects one of the affectedObjs.
+     * 
+     * @param sObj the SoundObject to unselect
+     */
+    public void undo(SoundObject sObj) {
+        sObj.unselect();
+        sObj.unselectTopGesture();
+    }
+    
     /**
      * Re-selects all affectedObjs.
      */
@@ -57,4 +77,13 @@ public class SelectAction extends Action {
     public void changeAffectedObjs(ArrayList<SoundObject> selectedObjs) {
         this.affectedObjs = (ArrayList<SoundObject>) selectedObjs.clone();
     }
-}
\ No newline at end of file
+    
+    /**
+     * Adds nothing, as selecting does not change the composition that is saved.
+     * 
+     * @param sObjs collection to add the SoundObjects to
+     */
+    @Override
+    public void collectTouched(Collection<SoundObject> sObjs) {
+    }
+}
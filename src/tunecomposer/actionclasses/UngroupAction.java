@@ -1,7 +1,9 @@
 package tunecomposer.actionclasses;
 
+import java.util.Collection;
 import javafx.scene.layout.Pane;
 import tunecomposer.Gesture;
+import tunecomposer.SoundObject;
 
 /**
  * An action which ungroups given gesture.
@@ -52,4 +54,14 @@ public class UngroupAction extends Action {
     public void redo() {
         execute();
     }
+    
+    /**
+     * Adds the SoundObjects that were in the gesture.
+     * 
+     * @param sObjs collection to add the SoundObjects to
+     */
+    @Override
+    public void collectTouched(Collection<SoundObject> sObjs) {
+        sObjs.addAll(gesture.containedSoundObjects);
+    }
 }
@@ -1,6 +1,7 @@
 package tunecomposer.actionclasses;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import tunecomposer.SoundObject;
 
 /**
@@ -23,22 +24,41 @@ public class UnselectAction extends Action {
     @Override
     public void execute() {
         affectedObjs.forEach((sObj) -> {
-            sObj.unselect();
-            sObj.unselectTopGesture();
+            execute(sObj);
         });
     }
     
+    /**
+     * Unselects one of the affectedObjs. Lets the action be run a part at a 
+     * time by a TimeSlicedScheduler.
+     * 
+     * @param sObj the SoundObject to unselect
+     */
+    public void execute(SoundObject sObj) {
+        sObj.unselect();
+        sObj.unselectTopGesture();
+    }
+    
     /**
      * Selects all affectedObjs.
      */
     @Override
     public void undo() {
         affectedObjs.forEach((sObj) -> {
-            sObj.select();
-            sObj.selectTopGesture();
+            undo(sObj);
         });
     }
     
+    /**
+     * Selects one of the affectedObjs again.
+     * 
+     * @param sObj the SoundObject to select
+     */
+    public void undo(SoundObject sObj) {
+        sObj.select();
+        sObj.selectTopGesture();
+    }
+    
     /**
      * Re-executes the action.
      */
@@ -57,4 +77,13 @@ public class UnselectAction extends Action {
     public void changeAffectedObjs(ArrayList<SoundObject> selectedObjs) {
         this.affectedObjs = (ArrayList<SoundObject>) selectedObjs.clone();
     }
-}
\ No newline at end of file
+    
+    /**
+     * Adds nothing, as unselecting does not change the composition that is saved.
+     * 
+     * @param sObjs collection to add the SoundObjects to
+     */
+    @Override
+    public void collectTouched(Collection<SoundObject> sObjs) {
+    }
+}